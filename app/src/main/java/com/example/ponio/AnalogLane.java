@@ -0,0 +1,81 @@
+package com.example.ponio;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latest-value-wins slots for the analog sticks. Each stick holds at most one pending
+// position; publishing again before the sender took it simply replaces it, so a slow
+// link never builds a backlog of stale stick positions.
+public class AnalogLane {
+    // x and y float bits packed into one long, so a reader never sees a torn pair
+    private final AtomicLongArray values = new AtomicLongArray(ControllerState.STICK_COUNT);
+    private final AtomicLongArray publishNanos = new AtomicLongArray(ControllerState.STICK_COUNT);
+    // MotionEvent and listener times of the newest position, for InputTracer
+    private final AtomicLongArray originNanos = new AtomicLongArray(ControllerState.STICK_COUNT);
+    private final AtomicLongArray dispatchNanos = new AtomicLongArray(ControllerState.STICK_COUNT);
+    private final AtomicIntegerArray pending = new AtomicIntegerArray(ControllerState.STICK_COUNT);
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // Producer side, never allocates or blocks
+    public void publish(int stick, float x, float y) {
+        publish(stick, x, y, 0, 0);
+    }
+
+    public void publish(int stick, float x, float y, long origin, long dispatch) {
+        values.set(stick, ((long) Float.floatToRawIntBits(x) << 32) | (Float.floatToRawIntBits(y) & 0xFFFFFFFFL));
+        originNanos.set(stick, origin);
+        dispatchNanos.set(stick, dispatch);
+        publishNanos.set(stick, System.nanoTime());
+        published.getAndIncrement();
+        if (pending.getAndSet(stick, 1) != 0) {
+            // The previous position was never sent and now never will be
+            coalesced.getAndIncrement();
+        }
+    }
+
+    // Consumer side: claims the pending position of a stick, false if there is none.
+    // The value is read after claiming, so a racing publish is at worst sent twice.
+    public boolean take(int stick, ControllerState into) {
+        if (pending.getAndSet(stick, 0) == 0) {
+            return false;
+        }
+        long packed = values.get(stick);
+        into.setStick(stick, Float.intBitsToFloat((int) (packed >>> 32)), Float.intBitsToFloat((int) packed));
+        return true;
+    }
+
+    public boolean hasPending() {
+        for (int i = 0; i < ControllerState.STICK_COUNT; i++) {
+            if (pending.get(i) != 0) return true;
+        }
+        return false;
+    }
+
+    public long getPublishNanos(int stick) {
+        return publishNanos.get(stick);
+    }
+
+    public long getOriginNanos(int stick) {
+        return originNanos.get(stick);
+    }
+
+    public long getDispatchNanos(int stick) {
+        return dispatchNanos.get(stick);
+    }
+
+    public void clear() {
+        for (int i = 0; i < ControllerState.STICK_COUNT; i++) {
+            pending.set(i, 0);
+        }
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.ponio;
+
+import java.util.Locale;
+
+// Snaps joystick positions to a fixed number of steps per axis before they are reported,
+// and drops updates that did not move by at least the minimum change. Touch coordinates
+// have sub-pixel precision, so a resting finger produces a stream of moves that differ only
+// in digits the wire format throws away; none of those reach the sender. The center and the
+// edges are always reported, so a release or full tilt is never held back by the threshold.
+// UI thread only.
+public class AxisQuantizer {
+    public static final int MIN_BITS = 2;
+    public static final int MAX_BITS = 16;
+    // Under half a pixel of the 80px stick: the jitter of a resting thumb, not a move
+    public static final float DEFAULT_MIN_CHANGE = 0.005f;
+
+    private int xSteps;
+    private int ySteps;
+    private float minChange = DEFAULT_MIN_CHANGE;
+
+    private boolean reported = false;
+    private float lastX = 0f;
+    private float lastY = 0f;
+    private float x = 0f;
+    private float y = 0f;
+    private long emitted = 0;
+    private long suppressed = 0;
+
+    // 10 bits is finer than the 0.001 steps of the text format and the pixel steps of
+    // a stick a few hundred pixels wide
+    public AxisQuantizer() {
+        this(10, 10);
+    }
+
+    public AxisQuantizer(int xBits, int yBits) {
+        setBitDepth(xBits, yBits);
+    }
+
+    // Bits per axis including the sign: 10 bits gives 511 steps on each side of the center
+    public void setBitDepth(int xBits, int yBits) {
+        xSteps = steps(xBits);
+        ySteps = steps(yBits);
+        reported = false;
+    }
+
+    // Smallest move on either axis worth reporting, in normalized units (0 = any step)
+    public void setMinChange(float minChange) {
+        if (minChange < 0f || minChange >= 1f) {
+            throw new IllegalArgumentException("Minimum change must be 0..1, was " + minChange);
+        }
+        this.minChange = minChange;
+    }
+
+    // Returns true when the position should be reported; getX/getY then hold it, quantized
+    public boolean update(float rawX, float rawY) {
+        float qx = quantize(rawX, xSteps);
+        float qy = quantize(rawY, ySteps);
+        if (reported && !worthReporting(qx, lastX) && !worthReporting(qy, lastY)) {
+            suppressed++;
+            return false;
+        }
+        x = lastX = qx;
+        y = lastY = qy;
+        reported = true;
+        emitted++;
+        return true;
+    }
+
+    private boolean worthReporting(float value, float last) {
+        if (value == last) {
+            return false;
+        }
+        // Reaching the center or an edge always counts, however small the step
+        return Math.abs(value - last) >= minChange || value == 0f || Math.abs(value) == 1f;
+    }
+
+    // The stick was released or reappeared somewhere else: report the next position
+    public void reset() {
+        reported = false;
+    }
+
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    public void resetCounters() {
+        emitted = 0;
+        suppressed = 0;
+    }
+
+    static float quantize(float value, int steps) {
+        if (value > 1f) value = 1f;
+        if (value < -1f) value = -1f;
+        return Math.round(value * steps) / (float) steps;
+    }
+
+    private static int steps(int bits) {
+        if (bits < MIN_BITS || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Bit depth must be " + MIN_BITS + ".." + MAX_BITS + ", was " + bits);
+        }
+        return (1 << (bits - 1)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        long total = emitted + suppressed;
+        return emitted + " emitted, " + suppressed + " suppressed"
+                + (total == 0 ? "" : String.format(Locale.US, " (%.1f%%)", 100.0 * suppressed / total));
+    }
+}
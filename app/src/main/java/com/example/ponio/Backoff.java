@@ -0,0 +1,44 @@
+package com.example.ponio;
+
+import java.util.Random;
+
+// Jittered exponential backoff between reconnect attempts. The delay ceiling doubles with
+// every attempt up to a maximum; half of it is fixed and half is random ("equal jitter"),
+// so attempts keep a minimum spacing but clients that lost the same host do not retry in
+// lockstep.
+public class Backoff {
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final Random random;
+
+    public Backoff(long initialDelayMs, long maxDelayMs) {
+        this(initialDelayMs, maxDelayMs, new Random());
+    }
+
+    Backoff(long initialDelayMs, long maxDelayMs, Random random) {
+        if (initialDelayMs <= 0 || maxDelayMs < initialDelayMs) {
+            throw new IllegalArgumentException("Invalid backoff " + initialDelayMs + ".." + maxDelayMs + "ms");
+        }
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    // Delay before the given attempt, counting from 0
+    public long getDelayMs(int attempt) {
+        long ceiling = maxDelayMs;
+        if (attempt < 31) {
+            ceiling = Math.min(maxDelayMs, initialDelayMs << attempt);
+        }
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    public long getInitialDelayMs() {
+        return initialDelayMs;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+}
@@ -6,36 +6,181 @@ package com.example.ponio;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.UUID;
 
 public abstract class ConnectionProtocol {
     protected static final String TAG = "ConnectionProtocol";
     protected OutputStream outputStream;
-    protected boolean isConnected = false;
+    protected volatile boolean isConnected = false;
+    // Set when the server closed the connection, so the next send fails instead of vanishing
+    protected volatile boolean closedByPeer = false;
+    protected volatile MessageListener messageListener;
+    // How long the sender keeps a batch open waiting for more input, 0 = one drain pass
+    protected volatile long batchWindowNanos = 0;
+
+    // Receives messages from the server, called on the transport's reader thread
+    public interface MessageListener {
+        void onMessage(byte[] data, int offset, int length);
+    }
 
     public abstract void connect(String address, int port) throws IOException;
     public abstract void disconnect() throws IOException;
-    public abstract void sendData(byte[] data) throws IOException;
+    public abstract void sendData(byte[] data, int offset, int length) throws IOException;
     public abstract boolean isConnected();
     public abstract String getProtocolName();
 
+    public void sendData(byte[] data) throws IOException {
+        sendData(data, 0, data.length);
+    }
+
+    // Input frames from the sender. Each one builds on the ones before, so a datagram
+    // transport may repeat recent frames alongside the new one; the others just send it.
+    public void sendInput(byte[] data, int offset, int length) throws IOException {
+        sendData(data, offset, length);
+    }
+
+    // For messages that must arrive, like button edges. Stream transports are reliable already.
+    public void sendReliable(byte[] data, int offset, int length) throws IOException {
+        sendData(data, offset, length);
+    }
+
+    public void setMessageListener(MessageListener listener) {
+        this.messageListener = listener;
+    }
+
+    // Everything sent between beginBatch and endBatch may be held back and written together.
+    // Transports that cannot batch just send immediately.
+    public void beginBatch() {
+    }
+
+    public void endBatch() throws IOException {
+    }
+
+    public void setBatchWindowMicros(long micros) {
+        batchWindowNanos = micros * 1000;
+    }
+
+    public long getBatchWindowNanos() {
+        return batchWindowNanos;
+    }
+
+    protected void deliverMessage(byte[] data, int offset, int length) {
+        MessageListener listener = messageListener;
+        if (listener != null) {
+            listener.onMessage(data, offset, length);
+        }
+    }
+
+    // Splits a byte stream into newline terminated messages
+    protected static class LineSplitter {
+        private final byte[] line = new byte[1024];
+        private int length = 0;
+
+        void feed(ConnectionProtocol protocol, byte[] data, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    protocol.deliverMessage(line, 0, length);
+                    length = 0;
+                } else if (length < line.length) {
+                    line[length++] = b;
+                }
+            }
+        }
+
+        void feed(ConnectionProtocol protocol, ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    protocol.deliverMessage(line, 0, length);
+                    length = 0;
+                } else if (length < line.length) {
+                    line[length++] = b;
+                }
+            }
+        }
+
+        void reset() {
+            length = 0;
+        }
+    }
+
     // TCP Implementation
     public static class TCPProtocol extends ConnectionProtocol {
+        private static final int BATCH_BUFFER_SIZE = 4096;
+        private static final int CONNECT_TIMEOUT_MS = 5000;
         private Socket socket;
 
+        // Batching: messages between beginBatch and endBatch leave in a single write
+        private boolean batchingEnabled = true;
+        private boolean inBatch = false;
+        private final byte[] batchBuffer = new byte[BATCH_BUFFER_SIZE];
+        private int batchLength = 0;
+        private long segmentsSent = 0;
+        private long messagesCarried = 0;
+        private final LineSplitter lineSplitter = new LineSplitter();
+
         @Override
         public void connect(String address, int port) throws IOException {
-            socket = new Socket(address, port);
+            // An unreachable host must not hold the executor for the OS SYN timeout
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            socket = s;
+            // Input is latency bound, never let Nagle hold a small write back
+            socket.setTcpNoDelay(true);
             outputStream = socket.getOutputStream();
+            // A batch left open by a failed write must not swallow the next greeting
+            inBatch = false;
+            batchLength = 0;
+            lineSplitter.reset();
+            closedByPeer = false;
             isConnected = true;
+
+            Thread reader = new Thread(this::readLoop, "PonioTcpReader");
+            reader.setDaemon(true);
+            reader.start();
             Log.d(TAG, "TCP connected to " + address + ":" + port);
         }
 
+        // Reads newline separated server messages until the socket closes
+        private void readLoop() {
+            Socket s = socket;
+            byte[] buffer = new byte[1024];
+            try {
+                InputStream in = s.getInputStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    lineSplitter.feed(this, buffer, 0, read);
+                }
+                Log.d(TAG, "TCP closed by server");
+            } catch (IOException e) {
+                if (isConnected) {
+                    Log.w(TAG, "TCP read failed", e);
+                }
+            }
+            if (s == socket) {
+                closedByPeer = isConnected;
+                isConnected = false;
+            }
+        }
+
         @Override
         public void disconnect() throws IOException {
             isConnected = false;
@@ -49,11 +194,65 @@ public abstract class ConnectionProtocol {
         }
 
         @Override
-        public void sendData(byte[] data) throws IOException {
-            if (outputStream != null && isConnected) {
-                outputStream.write(data);
+        public void sendData(byte[] data, int offset, int length) throws IOException {
+            if (closedByPeer) {
+                throw new IOException("Connection closed by server");
+            }
+            if (outputStream == null || !isConnected) {
+                return;
+            }
+            messagesCarried++;
+            if (!inBatch) {
+                outputStream.write(data, offset, length);
                 outputStream.flush();
+                segmentsSent++;
+                return;
+            }
+            if (batchLength + length > batchBuffer.length) {
+                flushBatch();
+                if (length > batchBuffer.length) {
+                    outputStream.write(data, offset, length);
+                    segmentsSent++;
+                    return;
+                }
             }
+            System.arraycopy(data, offset, batchBuffer, batchLength, length);
+            batchLength += length;
+        }
+
+        @Override
+        public void beginBatch() {
+            inBatch = batchingEnabled;
+        }
+
+        @Override
+        public void endBatch() throws IOException {
+            inBatch = false;
+            flushBatch();
+        }
+
+        private void flushBatch() throws IOException {
+            if (batchLength == 0) {
+                return;
+            }
+            int length = batchLength;
+            batchLength = 0;
+            outputStream.write(batchBuffer, 0, length);
+            outputStream.flush();
+            segmentsSent++;
+        }
+
+        // When disabled every message is written and flushed on its own, as before
+        public void setBatchingEnabled(boolean enabled) {
+            batchingEnabled = enabled;
+        }
+
+        public long getSegmentsSent() {
+            return segmentsSent;
+        }
+
+        public long getMessagesCarried() {
+            return messagesCarried;
         }
 
         @Override
@@ -67,22 +266,291 @@ public abstract class ConnectionProtocol {
         }
     }
 
-    // UDP Implementation - COMMENTED OUT
-    /*
+    // Non-blocking TCP Implementation on a SocketChannel. Frames are copied into preallocated
+    // direct buffers and written with one gathering write per batch; a selector thread reads
+    // server messages and finishes writes the socket could not take at once.
+    public static class NioTCPProtocol extends ConnectionProtocol {
+        private static final int MAX_PENDING_FRAMES = 64;
+        private static final int MAX_FRAME_SIZE = 512;
+        private static final int CONNECT_TIMEOUT_MS = 5000;
+
+        private SocketChannel channel;
+        private Selector selector;
+        private Thread selectorThread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+        private final LineSplitter lineSplitter = new LineSplitter();
+
+        // frames[pendingStart, pendingEnd) are waiting to be written
+        private final ByteBuffer[] frames = new ByteBuffer[MAX_PENDING_FRAMES];
+        private int pendingStart = 0;
+        private int pendingEnd = 0;
+        private boolean batching = false;
+        private volatile boolean wantWrite = false;
+        private final Object writeLock = new Object();
+
+        private long writeCalls = 0;
+        private long framesWritten = 0;
+
+        public NioTCPProtocol() {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+            }
+        }
+
+        @Override
+        public void connect(String address, int port) throws IOException {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+            channel.configureBlocking(false);
+
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            synchronized (writeLock) {
+                batching = false;
+                pendingStart = 0;
+                pendingEnd = 0;
+            }
+            lineSplitter.reset();
+            closedByPeer = false;
+            isConnected = true;
+
+            selectorThread = new Thread(this::selectLoop, "PonioNioSelector");
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+            Log.d(TAG, "NIO TCP connected to " + address + ":" + port);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            isConnected = false;
+            if (selector != null) {
+                selector.wakeup();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+            Log.d(TAG, "NIO TCP disconnected");
+        }
+
+        @Override
+        public void sendData(byte[] data, int offset, int length) throws IOException {
+            if (closedByPeer) {
+                throw new IOException("Connection closed by server");
+            }
+            if (!isConnected) {
+                return;
+            }
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large: " + length + " bytes");
+            }
+            synchronized (writeLock) {
+                if (pendingEnd == frames.length) {
+                    flushLocked();
+                    compactLocked();
+                    if (pendingEnd == frames.length) {
+                        throw new IOException("Send buffer full, peer is not reading");
+                    }
+                }
+                ByteBuffer frame = frames[pendingEnd++];
+                frame.clear();
+                frame.put(data, offset, length);
+                frame.flip();
+                if (!batching) {
+                    flushLocked();
+                }
+            }
+        }
+
+        @Override
+        public void beginBatch() {
+            synchronized (writeLock) {
+                batching = true;
+            }
+        }
+
+        @Override
+        public void endBatch() throws IOException {
+            synchronized (writeLock) {
+                batching = false;
+                flushLocked();
+            }
+        }
+
+        // One gathering write for everything pending; leftovers are finished by the selector
+        private void flushLocked() throws IOException {
+            if (pendingStart == pendingEnd || !isConnected) {
+                return;
+            }
+            channel.write(frames, pendingStart, pendingEnd - pendingStart);
+            writeCalls++;
+            while (pendingStart < pendingEnd && !frames[pendingStart].hasRemaining()) {
+                pendingStart++;
+                framesWritten++;
+            }
+            if (pendingStart == pendingEnd) {
+                pendingStart = 0;
+                pendingEnd = 0;
+                wantWrite = false;
+            } else if (!wantWrite) {
+                wantWrite = true;
+                selector.wakeup();
+            }
+        }
+
+        // Moves pending frames to the front so their slots can be reused
+        private void compactLocked() {
+            if (pendingStart == 0) {
+                return;
+            }
+            int count = pendingEnd - pendingStart;
+            for (int i = 0; i < count; i++) {
+                ByteBuffer free = frames[i];
+                frames[i] = frames[pendingStart + i];
+                frames[pendingStart + i] = free;
+            }
+            pendingStart = 0;
+            pendingEnd = count;
+        }
+
+        private void selectLoop() {
+            SelectionKey key = channel.keyFor(selector);
+            try {
+                while (isConnected) {
+                    // Interest ops are only changed here, never while another thread is selecting
+                    key.interestOps(SelectionKey.OP_READ | (wantWrite ? SelectionKey.OP_WRITE : 0));
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey selected = keys.next();
+                        keys.remove();
+                        if (!selected.isValid()) {
+                            continue;
+                        }
+                        if (selected.isReadable()) {
+                            readMessages();
+                        }
+                        if (selected.isValid() && selected.isWritable()) {
+                            synchronized (writeLock) {
+                                flushLocked();
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (isConnected) {
+                    Log.e(TAG, "NIO selector loop failed", e);
+                    closedByPeer = true;
+                }
+                isConnected = false;
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close selector", e);
+                }
+            }
+        }
+
+        private void readMessages() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                Log.d(TAG, "NIO TCP closed by server");
+                closedByPeer = true;
+                isConnected = false;
+                channel.close();
+                return;
+            }
+            readBuffer.flip();
+            lineSplitter.feed(this, readBuffer);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return isConnected && channel != null && channel.isConnected();
+        }
+
+        @Override
+        public String getProtocolName() {
+            return "TCP-NIO";
+        }
+
+        // Write syscalls versus frames they carried, to see how well batching works
+        public long getWriteCalls() {
+            synchronized (writeLock) {
+                return writeCalls;
+            }
+        }
+
+        public long getFramesWritten() {
+            synchronized (writeLock) {
+                return framesWritten;
+            }
+        }
+    }
+
+    // UDP Implementation
     public static class UDPProtocol extends ConnectionProtocol {
+        // Datagram header: 4-byte sequence number followed by a 1-byte packet type
+        public static final int HEADER_SIZE = 5;
+        public static final byte TYPE_DATA = 0;
+        // Reliable datagrams add a 4-byte message id after the header; the server answers
+        // with TYPE_ACK datagrams whose sequence field is the highest id it delivered in order.
+        // Their button edges are delivered by id, their state only counts as current if the
+        // sequence is newer than the last datagram seen, like any other input
+        public static final byte TYPE_RELIABLE = 1;
+        public static final byte TYPE_ACK = 2;
+        public static final int RELIABLE_HEADER_SIZE = HEADER_SIZE + 4;
+        // Redundant datagrams carry an input frame followed by the previous ones as deltas,
+        // see RedundancyEncoder
+        public static final byte TYPE_REDUNDANT = 3;
+        private static final int MAX_DATAGRAM_SIZE = 1400;
+
         private DatagramSocket socket;
         private InetAddress serverAddress;
         private int serverPort;
 
+        // Reused for every send so the hot path does not allocate
+        private final byte[] sendBuffer = new byte[MAX_DATAGRAM_SIZE];
+        private DatagramPacket sendPacket;
+        private int nextSequence = 0;
+        // The sender thread and the retransmit thread both send
+        private final Object sendLock = new Object();
+        private final ReliableLane reliableLane = new ReliableLane(this::sendReliableDatagram);
+        // Only when the server acknowledges, see Handshake.FEATURE_RELIABLE
+        private volatile boolean reliableEnabled = false;
+        // Previous input frames repeated in every datagram, 0 = off; guarded by sendLock
+        private final RedundancyEncoder redundancy = new RedundancyEncoder(0);
+        // A resumed session continues the sequence and reliable id space the server already
+        // tracks instead of starting over at 0
+        private volatile boolean keepSequence = false;
+
         @Override
         public void connect(String address, int port) throws IOException {
-            socket = new DatagramSocket();
             serverAddress = InetAddress.getByName(address);
             serverPort = port;
+
+            socket = new DatagramSocket();
+            // Connected datagram sockets skip the per-send address checks
+            socket.connect(serverAddress, serverPort);
+            synchronized (sendLock) {
+                sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, serverAddress, serverPort);
+                if (!keepSequence) {
+                    nextSequence = 0;
+                }
+                redundancy.reset();
+            }
+            if (!keepSequence) {
+                reliableLane.reset();
+            }
+            reliableLane.start();
             isConnected = true;
 
-            // Send initial connection packet
-            sendData("CONNECT:Ponio Android Gamepad\n".getBytes());
+            Thread reader = new Thread(this::receiveLoop, "PonioUdpReader");
+            reader.setDaemon(true);
+            reader.start();
 
             Log.d(TAG, "UDP connected to " + address + ":" + port);
         }
@@ -90,14 +558,7 @@ public abstract class ConnectionProtocol {
         @Override
         public void disconnect() throws IOException {
             isConnected = false;
-
-            // Send disconnect packet
-            try {
-                sendData("DISCONNECT\n".getBytes());
-            } catch (IOException e) {
-                Log.w(TAG, "Failed to send disconnect packet", e);
-            }
-
+            reliableLane.stop();
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -105,15 +566,128 @@ public abstract class ConnectionProtocol {
         }
 
         @Override
-        public void sendData(byte[] data) throws IOException {
-            if (socket != null && !socket.isClosed() && isConnected) {
-                DatagramPacket packet = new DatagramPacket(
-                        data,
-                        data.length,
-                        serverAddress,
-                        serverPort
-                );
-                socket.send(packet);
+        public void sendData(byte[] data, int offset, int length) throws IOException {
+            if (socket == null || socket.isClosed() || !isConnected) {
+                return;
+            }
+            if (length > MAX_DATAGRAM_SIZE - HEADER_SIZE) {
+                throw new IOException("Datagram too large: " + length + " bytes");
+            }
+
+            synchronized (sendLock) {
+                int sequence = nextSequence++;
+                writeHeader(sendBuffer, sequence, TYPE_DATA);
+                System.arraycopy(data, offset, sendBuffer, HEADER_SIZE, length);
+                sendPacket.setData(sendBuffer, 0, HEADER_SIZE + length);
+                socket.send(sendPacket);
+            }
+        }
+
+        @Override
+        public void sendInput(byte[] data, int offset, int length) throws IOException {
+            if (socket == null || socket.isClosed() || !isConnected) {
+                return;
+            }
+            synchronized (sendLock) {
+                if (redundancy.getRedundancy() == 0) {
+                    sendData(data, offset, length);
+                    return;
+                }
+                if (length > MAX_DATAGRAM_SIZE - HEADER_SIZE - 3) {
+                    throw new IOException("Datagram too large: " + length + " bytes");
+                }
+                int sequence = nextSequence++;
+                writeHeader(sendBuffer, sequence, TYPE_REDUNDANT);
+                int end = redundancy.encode(sequence, data, offset, length, sendBuffer, HEADER_SIZE, MAX_DATAGRAM_SIZE);
+                sendPacket.setData(sendBuffer, 0, end);
+                socket.send(sendPacket);
+            }
+        }
+
+        @Override
+        public void sendReliable(byte[] data, int offset, int length) throws IOException {
+            if (!reliableEnabled) {
+                sendInput(data, offset, length);
+                return;
+            }
+            if (socket == null || socket.isClosed() || !isConnected) {
+                return;
+            }
+            reliableLane.send(data, offset, length);
+        }
+
+        // A first transmission takes the next sequence number, a retransmit repeats the one
+        // its first transmission had. A reliable frame may be a full state frame, and the
+        // receiver's SequenceFilter must not take an old one for newer input
+        private int sendReliableDatagram(int id, boolean retransmit, int sequence, byte[] data, int offset, int length)
+                throws IOException {
+            DatagramSocket s = socket;
+            if (s == null || s.isClosed()) {
+                throw new IOException("Socket closed");
+            }
+            synchronized (sendLock) {
+                if (!retransmit) {
+                    sequence = nextSequence++;
+                }
+                writeHeader(sendBuffer, sequence, TYPE_RELIABLE);
+                writeInt(sendBuffer, HEADER_SIZE, id);
+                System.arraycopy(data, offset, sendBuffer, RELIABLE_HEADER_SIZE, length);
+                sendPacket.setData(sendBuffer, 0, RELIABLE_HEADER_SIZE + length);
+                s.send(sendPacket);
+                return sequence;
+            }
+        }
+
+        public void setReliableEnabled(boolean enabled) {
+            reliableEnabled = enabled;
+        }
+
+        public boolean isReliableEnabled() {
+            return reliableEnabled;
+        }
+
+        // Retransmits, ack latency and duplicate acks of the reliable lane
+        public ReliableLane getReliableLane() {
+            return reliableLane;
+        }
+
+        // Repeat the previous n input frames in every input datagram, so the server can rebuild
+        // frames it missed from any later datagram. Only for servers that understand
+        // TYPE_REDUNDANT, see Handshake.FEATURE_REDUNDANT; 0 turns it off
+        public void setRedundancy(int n) {
+            synchronized (sendLock) {
+                redundancy.setRedundancy(n);
+            }
+        }
+
+        public int getRedundancy() {
+            synchronized (sendLock) {
+                return redundancy.getRedundancy();
+            }
+        }
+
+        // Server datagrams carry the same header, followed by newline separated messages
+        private void receiveLoop() {
+            DatagramSocket s = socket;
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            LineSplitter lineSplitter = new LineSplitter();
+            while (!s.isClosed()) {
+                try {
+                    packet.setData(buffer);
+                    s.receive(packet);
+                    if (packet.getLength() > HEADER_SIZE && buffer[4] == TYPE_DATA) {
+                        lineSplitter.feed(this, buffer, HEADER_SIZE, packet.getLength() - HEADER_SIZE);
+                        lineSplitter.reset();
+                    } else if (packet.getLength() >= HEADER_SIZE && buffer[4] == TYPE_ACK) {
+                        reliableLane.onAck(readSequence(buffer, 0));
+                    }
+                } catch (IOException e) {
+                    // Closed on disconnect, or an ICMP error for a port nobody listens on
+                    if (!s.isClosed()) {
+                        Log.w(TAG, "UDP receive failed", e);
+                    }
+                }
             }
         }
 
@@ -126,8 +700,358 @@ public abstract class ConnectionProtocol {
         public String getProtocolName() {
             return "UDP";
         }
+
+        // For the next connect: keep numbering where the previous connection stopped
+        public void setKeepSequence(boolean keep) {
+            keepSequence = keep;
+        }
+
+        public int getLastSequence() {
+            synchronized (sendLock) {
+                return nextSequence - 1;
+            }
+        }
+
+        static void writeHeader(byte[] buffer, int sequence, byte type) {
+            buffer[0] = (byte) (sequence >>> 24);
+            buffer[1] = (byte) (sequence >>> 16);
+            buffer[2] = (byte) (sequence >>> 8);
+            buffer[3] = (byte) sequence;
+            buffer[4] = type;
+        }
+
+        static void writeInt(byte[] buffer, int offset, int value) {
+            buffer[offset] = (byte) (value >>> 24);
+            buffer[offset + 1] = (byte) (value >>> 16);
+            buffer[offset + 2] = (byte) (value >>> 8);
+            buffer[offset + 3] = (byte) value;
+        }
+
+        public static int readSequence(byte[] datagram, int offset) {
+            return ((datagram[offset] & 0xFF) << 24)
+                    | ((datagram[offset + 1] & 0xFF) << 16)
+                    | ((datagram[offset + 2] & 0xFF) << 8)
+                    | (datagram[offset + 3] & 0xFF);
+        }
+
+        // Serial number comparison (RFC 1982) so the sequence may wrap around
+        public static boolean isNewer(int sequence, int lastSequence) {
+            return sequence - lastSequence > 0;
+        }
+
+        // Receiver side helper: accepts only datagrams newer than the last one seen
+        public static class SequenceFilter {
+            private boolean hasLast = false;
+            private int lastSequence;
+            private long accepted = 0;
+            private long dropped = 0;
+
+            public boolean accept(int sequence) {
+                if (hasLast && !isNewer(sequence, lastSequence)) {
+                    dropped++;
+                    return false;
+                }
+                hasLast = true;
+                lastSequence = sequence;
+                accepted++;
+                return true;
+            }
+
+            public void reset() {
+                hasLast = false;
+                accepted = 0;
+                dropped = 0;
+            }
+
+            public long getAccepted() {
+                return accepted;
+            }
+
+            public long getDropped() {
+                return dropped;
+            }
+        }
+
+        // Keeps the last input frames and writes them behind the current one, newest first,
+        // each as a delta to the frame after it:
+        //   [count] [length:2] current frame
+        //   per earlier frame: [sequence distance] [0] [change mask] changed bytes   (same length)
+        //                      [sequence distance] [1] [length:2] frame              (otherwise)
+        // With the binary codec every frame is a full state, so one byte of mask per 8 bytes
+        // plus the changed bytes is usually all an earlier state costs.
+        public static class RedundancyEncoder {
+            public static final int MAX_REDUNDANCY = 8;
+            static final int MAX_FRAME = 256; // larger frames are sent but not repeated
+            private static final int MAX_MASKED = 64;
+            private static final byte DELTA_MASKED = 0;
+            private static final byte DELTA_RAW = 1;
+
+            private final byte[][] history = new byte[MAX_REDUNDANCY][MAX_FRAME];
+            private final int[] historyLength = new int[MAX_REDUNDANCY];
+            private final int[] historySequence = new int[MAX_REDUNDANCY];
+            private int head = 0; // slot for the next frame
+            private int size = 0;
+            private int redundancy;
+
+            public RedundancyEncoder(int redundancy) {
+                setRedundancy(redundancy);
+            }
+
+            public void setRedundancy(int n) {
+                if (n < 0 || n > MAX_REDUNDANCY) {
+                    throw new IllegalArgumentException("Redundancy must be 0.." + MAX_REDUNDANCY + ", got " + n);
+                }
+                redundancy = n;
+            }
+
+            public int getRedundancy() {
+                return redundancy;
+            }
+
+            public void reset() {
+                size = 0;
+            }
+
+            // Writes the frame sent with the given sequence plus as many earlier frames as fit
+            // before limit; returns the end position
+            public int encode(int sequence, byte[] data, int offset, int length, byte[] out, int pos, int limit) {
+                int countPos = pos++;
+                InputCodec.writeShort(out, pos, length);
+                System.arraycopy(data, offset, out, pos + 2, length);
+                pos += 2 + length;
+
+                int count = 0;
+                byte[] newer = data;
+                int newerOffset = offset;
+                int newerLength = length;
+                int newerSequence = sequence;
+                int available = Math.min(size, redundancy);
+                for (int i = 0; i < available; i++) {
+                    int slot = (head - 1 - i + MAX_REDUNDANCY) % MAX_REDUNDANCY;
+                    int distance = newerSequence - historySequence[slot];
+                    if (distance <= 0 || distance > 255) {
+                        break;
+                    }
+                    byte[] older = history[slot];
+                    int olderLength = historyLength[slot];
+                    int cost = deltaSize(older, olderLength, newer, newerOffset, newerLength);
+                    if (pos + 1 + cost > limit) {
+                        break;
+                    }
+                    out[pos++] = (byte) distance;
+                    pos = writeDelta(older, olderLength, newer, newerOffset, newerLength, out, pos);
+                    newer = older;
+                    newerOffset = 0;
+                    newerLength = olderLength;
+                    newerSequence = historySequence[slot];
+                    count++;
+                }
+                out[countPos] = (byte) count;
+                remember(sequence, data, offset, length);
+                return pos;
+            }
+
+            private void remember(int sequence, byte[] data, int offset, int length) {
+                if (length > MAX_FRAME) {
+                    return;
+                }
+                System.arraycopy(data, offset, history[head], 0, length);
+                historyLength[head] = length;
+                historySequence[head] = sequence;
+                head = (head + 1) % MAX_REDUNDANCY;
+                if (size < MAX_REDUNDANCY) {
+                    size++;
+                }
+            }
+
+            private static boolean masked(int olderLength, int newerLength) {
+                return olderLength == newerLength && olderLength <= MAX_MASKED;
+            }
+
+            private static int deltaSize(byte[] older, int olderLength, byte[] newer, int newerOffset, int newerLength) {
+                int raw = 3 + olderLength;
+                if (!masked(olderLength, newerLength)) {
+                    return raw;
+                }
+                int changed = 0;
+                for (int i = 0; i < olderLength; i++) {
+                    if (older[i] != newer[newerOffset + i]) changed++;
+                }
+                return Math.min(raw, 1 + (olderLength + 7) / 8 + changed);
+            }
+
+            private static int writeDelta(byte[] older, int olderLength, byte[] newer, int newerOffset, int newerLength,
+                                          byte[] out, int pos) {
+                int maskBytes = (olderLength + 7) / 8;
+                if (deltaSize(older, olderLength, newer, newerOffset, newerLength) < 3 + olderLength) {
+                    out[pos++] = DELTA_MASKED;
+                    int maskPos = pos;
+                    pos += maskBytes;
+                    for (int i = 0; i < maskBytes; i++) {
+                        out[maskPos + i] = 0;
+                    }
+                    for (int i = 0; i < olderLength; i++) {
+                        if (older[i] != newer[newerOffset + i]) {
+                            out[maskPos + i / 8] |= (byte) (1 << (i % 8));
+                            out[pos++] = older[i];
+                        }
+                    }
+                    return pos;
+                }
+                out[pos++] = DELTA_RAW;
+                InputCodec.writeShort(out, pos, olderLength);
+                System.arraycopy(older, 0, out, pos + 2, olderLength);
+                return pos + 2 + olderLength;
+            }
+        }
+
+        // Receiver side of the redundancy: rebuilds the earlier frames a datagram carries and
+        // delivers every frame once, oldest first. Frames whose own datagram was lost come out
+        // of a later one and are reported as recovered
+        public static class RedundancyDecoder {
+            public interface Sink {
+                void onFrame(int sequence, byte[] data, int offset, int length, boolean recovered);
+            }
+
+            private final byte[][] frames = new byte[RedundancyEncoder.MAX_REDUNDANCY + 1][MAX_DATAGRAM_SIZE];
+            private final int[] lengths = new int[RedundancyEncoder.MAX_REDUNDANCY + 1];
+            private final int[] sequences = new int[RedundancyEncoder.MAX_REDUNDANCY + 1];
+            private boolean hasLast = false;
+            private int lastSequence;
+            private long delivered = 0;
+            private long recovered = 0;
+
+            // A whole TYPE_REDUNDANT datagram; throws if it is malformed
+            public void accept(byte[] datagram, int length, Sink sink) {
+                int sequence = readSequence(datagram, 0);
+                if (length < HEADER_SIZE + 3 || datagram[4] != TYPE_REDUNDANT) {
+                    throw new IllegalArgumentException("Not a redundant datagram");
+                }
+                int pos = HEADER_SIZE;
+                int count = Math.min(datagram[pos++] & 0xFF, RedundancyEncoder.MAX_REDUNDANCY);
+                int frameLength = InputCodec.readShort(datagram, pos) & 0xFFFF;
+                pos += 2;
+                check(pos + frameLength, length);
+                System.arraycopy(datagram, pos, frames[0], 0, frameLength);
+                lengths[0] = frameLength;
+                sequences[0] = sequence;
+                pos += frameLength;
+
+                int rebuilt = 1;
+                for (int i = 1; i <= count; i++) {
+                    check(pos + 2, length);
+                    int older = sequences[i - 1] - (datagram[pos++] & 0xFF);
+                    if (datagram[pos++] == RedundancyEncoder.DELTA_RAW) {
+                        check(pos + 2, length);
+                        frameLength = InputCodec.readShort(datagram, pos) & 0xFFFF;
+                        pos += 2;
+                        check(pos + frameLength, length);
+                        System.arraycopy(datagram, pos, frames[i], 0, frameLength);
+                        pos += frameLength;
+                    } else {
+                        frameLength = lengths[i - 1];
+                        int maskPos = pos;
+                        pos += (frameLength + 7) / 8;
+                        check(pos, length);
+                        for (int b = 0; b < frameLength; b++) {
+                            if ((datagram[maskPos + b / 8] & (1 << (b % 8))) != 0) {
+                                check(pos + 1, length);
+                                frames[i][b] = datagram[pos++];
+                            } else {
+                                frames[i][b] = frames[i - 1][b];
+                            }
+                        }
+                    }
+                    lengths[i] = frameLength;
+                    sequences[i] = older;
+                    rebuilt++;
+                }
+
+                // Oldest first, skipping whatever was delivered already
+                for (int i = rebuilt - 1; i >= 0; i--) {
+                    if (hasLast && !isNewer(sequences[i], lastSequence)) {
+                        continue;
+                    }
+                    hasLast = true;
+                    lastSequence = sequences[i];
+                    delivered++;
+                    if (i > 0) {
+                        recovered++;
+                    }
+                    sink.onFrame(sequences[i], frames[i], 0, lengths[i], i > 0);
+                }
+            }
+
+            private static void check(int end, int length) {
+                if (end > length) {
+                    throw new IllegalArgumentException("Truncated redundant datagram");
+                }
+            }
+
+            public void reset() {
+                hasLast = false;
+                delivered = 0;
+                recovered = 0;
+            }
+
+            public long getDelivered() {
+                return delivered;
+            }
+
+            // Delivered from a later datagram because their own never arrived
+            public long getRecovered() {
+                return recovered;
+            }
+        }
+
+        // Receiver side of the reliable lane: delivers every message id once and in order,
+        // and tells which id to acknowledge
+        public static class ReliableFilter {
+            private int expected = 0;
+            private long delivered = 0;
+            private long duplicates = 0;
+            private long outOfOrder = 0;
+
+            // True if the message should be delivered now
+            public boolean accept(int id) {
+                if (id == expected) {
+                    expected++;
+                    delivered++;
+                    return true;
+                }
+                if (id - expected < 0) {
+                    duplicates++; // a retransmit of something already delivered
+                } else {
+                    outOfOrder++; // an earlier one is missing, the sender will go back for it
+                }
+                return false;
+            }
+
+            // Cumulative ack: highest id delivered, -1 before the first one
+            public int getAckId() {
+                return expected - 1;
+            }
+
+            public void reset() {
+                expected = 0;
+                delivered = 0;
+                duplicates = 0;
+                outOfOrder = 0;
+            }
+
+            public long getDelivered() {
+                return delivered;
+            }
+
+            public long getDuplicates() {
+                return duplicates;
+            }
+
+            public long getOutOfOrder() {
+                return outOfOrder;
+            }
+        }
     }
-    */
 
     // Bluetooth Implementation - COMMENTED OUT
     /*
@@ -200,8 +1124,10 @@ public abstract class ConnectionProtocol {
         switch (protocolType.toLowerCase()) {
             case "tcp":
                 return new TCPProtocol();
-            // case "udp":
-            //     return new UDPProtocol();
+            case "nio":
+                return new NioTCPProtocol();
+            case "udp":
+                return new UDPProtocol();
             // case "bluetooth":
             //     return new BluetoothProtocol();
             default:
@@ -2,6 +2,8 @@ package com.example.ponio;
 
 import android.annotation.SuppressLint;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.FrameLayout;
@@ -12,6 +14,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.button.MaterialButton;
 
 public class ControllerActivity extends AppCompatActivity {
+    private static final String TAG = "ControllerActivity";
 
     private GamepadManager gamepadManager;
     private FloatingJoystickView leftJoystick;
@@ -22,6 +25,39 @@ public class ControllerActivity extends AppCompatActivity {
     private int activeLeftPointerId = -1;
     private int activeRightPointerId = -1;
 
+    // Times of the MotionEvent being handled, passed along for latency tracing
+    private long touchOriginNanos = 0;
+    private long touchDispatchNanos = 0;
+
+    // One toast per link event instead of one per touch
+    private final GamepadManager.ConnectionListener connectionListener = new GamepadManager.ConnectionListener() {
+        @Override
+        public void onConnectionLost() {
+            runOnUiThread(() -> Toast.makeText(ControllerActivity.this,
+                    "Connection lost, reconnecting...", Toast.LENGTH_SHORT).show());
+        }
+
+        @Override
+        public void onReconnected(long recoveryNanos) {
+            runOnUiThread(() -> Toast.makeText(ControllerActivity.this,
+                    "Reconnected in " + recoveryNanos / 1_000_000 + " ms", Toast.LENGTH_SHORT).show());
+        }
+
+        @Override
+        public void onConnectionClosed(String reason) {
+            runOnUiThread(() -> {
+                Toast.makeText(ControllerActivity.this, reason, Toast.LENGTH_LONG).show();
+                finish();
+            });
+        }
+
+        @Override
+        public void onTransportSwitched(String from, String to, long switchNanos) {
+            runOnUiThread(() -> Toast.makeText(ControllerActivity.this,
+                    "Weak link, switched to " + to.toUpperCase(), Toast.LENGTH_SHORT).show());
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -35,8 +71,9 @@ public class ControllerActivity extends AppCompatActivity {
         setupGamepadControls();
         setupFloatingJoysticks();
         
-        if (gamepadManager.isConnected) {
+        if (gamepadManager.isSessionActive()) {
             gamepadManager.enableGamepadControls(true);
+            gamepadManager.setConnectionListener(connectionListener);
         } else {
             Toast.makeText(this, "Not connected to server", Toast.LENGTH_SHORT).show();
             finish();
@@ -81,23 +118,23 @@ public class ControllerActivity extends AppCompatActivity {
     }
 
     private void setupGamepadControls() {
-        setupButton(gamepadManager.btnA, "BTN_A");
-        setupButton(gamepadManager.btnB, "BTN_B");
-        setupButton(gamepadManager.btnX, "BTN_X");
-        setupButton(gamepadManager.btnY, "BTN_Y");
+        setupButton(gamepadManager.btnA, ControllerState.BTN_A);
+        setupButton(gamepadManager.btnB, ControllerState.BTN_B);
+        setupButton(gamepadManager.btnX, ControllerState.BTN_X);
+        setupButton(gamepadManager.btnY, ControllerState.BTN_Y);
 
-        setupButton(gamepadManager.btnL1, "BTN_L1");
-        setupButton(gamepadManager.btnR1, "BTN_R1");
-        setupButton(gamepadManager.btnL2, "BTN_L2");
-        setupButton(gamepadManager.btnR2, "BTN_R2");
+        setupButton(gamepadManager.btnL1, ControllerState.BTN_L1);
+        setupButton(gamepadManager.btnR1, ControllerState.BTN_R1);
+        setupButton(gamepadManager.btnL2, ControllerState.BTN_L2);
+        setupButton(gamepadManager.btnR2, ControllerState.BTN_R2);
 
-        setupButton(gamepadManager.btnStart, "BTN_START");
-        setupButton(gamepadManager.btnSelect, "BTN_SELECT");
+        setupButton(gamepadManager.btnStart, ControllerState.BTN_START);
+        setupButton(gamepadManager.btnSelect, ControllerState.BTN_SELECT);
 
-        setupButton(gamepadManager.btnDpadUp, "DPAD_UP");
-        setupButton(gamepadManager.btnDpadDown, "DPAD_DOWN");
-        setupButton(gamepadManager.btnDpadLeft, "DPAD_LEFT");
-        setupButton(gamepadManager.btnDpadRight, "DPAD_RIGHT");
+        setupButton(gamepadManager.btnDpadUp, ControllerState.DPAD_UP);
+        setupButton(gamepadManager.btnDpadDown, ControllerState.DPAD_DOWN);
+        setupButton(gamepadManager.btnDpadLeft, ControllerState.DPAD_LEFT);
+        setupButton(gamepadManager.btnDpadRight, ControllerState.DPAD_RIGHT);
     }
 
     @SuppressLint("ClickableViewAccessibility")
@@ -108,37 +145,38 @@ public class ControllerActivity extends AppCompatActivity {
         leftJoystick.setJoystickListener(new FloatingJoystickView.JoystickListener() {
             @Override
             public void onJoystickMoved(float x, float y, boolean isLeft) {
-                if (!gamepadManager.isConnected) return;
-                gamepadManager.sendCommand(String.format("LJOY:%.3f,%.3f", x, y));
+                if (!gamepadManager.isSessionActive()) return;
+                gamepadManager.setStick(ControllerState.STICK_LEFT, x, y, touchOriginNanos, touchDispatchNanos);
             }
 
             @Override
             public void onJoystickReleased(boolean isLeft) {
-                if (!gamepadManager.isConnected) return;
-                gamepadManager.sendCommand("LJOY:0.000,0.000");
+                if (!gamepadManager.isSessionActive()) return;
+                gamepadManager.setStick(ControllerState.STICK_LEFT, 0f, 0f, touchOriginNanos, touchDispatchNanos);
             }
         });
         
         rightJoystick.setJoystickListener(new FloatingJoystickView.JoystickListener() {
             @Override
             public void onJoystickMoved(float x, float y, boolean isLeft) {
-                if (!gamepadManager.isConnected) return;
-                gamepadManager.sendCommand(String.format("RJOY:%.3f,%.3f", x, y));
+                if (!gamepadManager.isSessionActive()) return;
+                gamepadManager.setStick(ControllerState.STICK_RIGHT, x, y, touchOriginNanos, touchDispatchNanos);
             }
 
             @Override
             public void onJoystickReleased(boolean isLeft) {
-                if (!gamepadManager.isConnected) return;
-                gamepadManager.sendCommand("RJOY:0.000,0.000");
+                if (!gamepadManager.isSessionActive()) return;
+                gamepadManager.setStick(ControllerState.STICK_RIGHT, 0f, 0f, touchOriginNanos, touchDispatchNanos);
             }
         });
         
         // Setup touch area for left joystick
         touchAreaLeft.setOnTouchListener((v, event) -> {
-            if (!gamepadManager.isConnected) {
-                Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
+            // While reconnecting input is still captured and resent once the link is back
+            if (!gamepadManager.isSessionActive()) {
                 return false;
             }
+            traceTouch(event);
             
             int pointerIndex = event.getActionIndex();
             int pointerId = event.getPointerId(pointerIndex);
@@ -183,10 +221,11 @@ public class ControllerActivity extends AppCompatActivity {
         
         // Setup touch area for right joystick
         touchAreaRight.setOnTouchListener((v, event) -> {
-            if (!gamepadManager.isConnected) {
-                Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
+            // While reconnecting input is still captured and resent once the link is back
+            if (!gamepadManager.isSessionActive()) {
                 return false;
             }
+            traceTouch(event);
             
             int pointerIndex = event.getActionIndex();
             int pointerId = event.getPointerId(pointerIndex);
@@ -230,23 +269,30 @@ public class ControllerActivity extends AppCompatActivity {
         });
     }
 
+    // MotionEvent times are uptimeMillis based; convert to the nanoTime clock the sender uses
+    private void traceTouch(MotionEvent event) {
+        touchDispatchNanos = System.nanoTime();
+        touchOriginNanos = touchDispatchNanos - (SystemClock.uptimeMillis() - event.getEventTime()) * 1_000_000L;
+    }
+
     @SuppressLint("ClickableViewAccessibility")
-    private void setupButton(MaterialButton button, String buttonName) {
+    private void setupButton(MaterialButton button, int buttonId) {
         button.setOnTouchListener((v, event) -> {
-            if (!gamepadManager.isConnected) {
-                Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
+            // While reconnecting input is still captured and resent once the link is back
+            if (!gamepadManager.isSessionActive()) {
                 return false;
             }
+            traceTouch(event);
 
             switch (event.getAction()) {
                 case MotionEvent.ACTION_DOWN:
-                    gamepadManager.sendCommand(buttonName + ":1");
+                    gamepadManager.setButton(buttonId, true, touchOriginNanos, touchDispatchNanos);
                     button.setPressed(true);
                     return true;
                     
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
-                    gamepadManager.sendCommand(buttonName + ":0");
+                    gamepadManager.setButton(buttonId, false, touchOriginNanos, touchDispatchNanos);
                     button.setPressed(false);
                     return true;
             }
@@ -259,7 +305,7 @@ public class ControllerActivity extends AppCompatActivity {
         super.onResume();
         setupFullscreen();
         
-        if (!gamepadManager.isConnected) {
+        if (!gamepadManager.isSessionActive()) {
             Toast.makeText(this, "Connection lost. Returning to main screen.", Toast.LENGTH_LONG).show();
             finish();
         }
@@ -273,5 +319,9 @@ public class ControllerActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        gamepadManager.setConnectionListener(null);
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Stick updates, left: " + leftJoystick.getQuantizer() + ", right: " + rightJoystick.getQuantizer());
+        }
     }
 }
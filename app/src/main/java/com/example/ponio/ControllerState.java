@@ -0,0 +1,89 @@
+package com.example.ponio;
+
+// Complete state of the virtual gamepad: 14 digital buttons and two analog sticks
+public class ControllerState {
+    // Button ids, also the bit position in the button mask
+    public static final int BTN_A = 0;
+    public static final int BTN_B = 1;
+    public static final int BTN_X = 2;
+    public static final int BTN_Y = 3;
+    public static final int BTN_L1 = 4;
+    public static final int BTN_R1 = 5;
+    public static final int BTN_L2 = 6;
+    public static final int BTN_R2 = 7;
+    public static final int BTN_START = 8;
+    public static final int BTN_SELECT = 9;
+    public static final int DPAD_UP = 10;
+    public static final int DPAD_DOWN = 11;
+    public static final int DPAD_LEFT = 12;
+    public static final int DPAD_RIGHT = 13;
+    public static final int BUTTON_COUNT = 14;
+
+    // Names used by the text protocol, indexed by button id
+    public static final String[] BUTTON_NAMES = {
+            "BTN_A", "BTN_B", "BTN_X", "BTN_Y",
+            "BTN_L1", "BTN_R1", "BTN_L2", "BTN_R2",
+            "BTN_START", "BTN_SELECT",
+            "DPAD_UP", "DPAD_DOWN", "DPAD_LEFT", "DPAD_RIGHT"
+    };
+
+    public static final int STICK_LEFT = 0;
+    public static final int STICK_RIGHT = 1;
+    public static final int STICK_COUNT = 2;
+
+    private int buttons = 0;
+    // x/y pairs per stick, normalized to -1..1
+    private final float[] axes = new float[STICK_COUNT * 2];
+
+    public void setButton(int button, boolean pressed) {
+        if (pressed) {
+            buttons |= 1 << button;
+        } else {
+            buttons &= ~(1 << button);
+        }
+    }
+
+    public boolean isPressed(int button) {
+        return (buttons & (1 << button)) != 0;
+    }
+
+    public int getButtons() {
+        return buttons;
+    }
+
+    public void setStick(int stick, float x, float y) {
+        axes[stick * 2] = x;
+        axes[stick * 2 + 1] = y;
+    }
+
+    public float getX(int stick) {
+        return axes[stick * 2];
+    }
+
+    public float getY(int stick) {
+        return axes[stick * 2 + 1];
+    }
+
+    public void copyFrom(ControllerState other) {
+        buttons = other.buttons;
+        System.arraycopy(other.axes, 0, axes, 0, axes.length);
+    }
+
+    public void reset() {
+        buttons = 0;
+        for (int i = 0; i < axes.length; i++) {
+            axes[i] = 0f;
+        }
+    }
+
+    // Maps a normalized axis value to the int16 range used on the wire
+    public static short quantizeAxis(float value) {
+        if (value > 1f) value = 1f;
+        if (value < -1f) value = -1f;
+        return (short) Math.round(value * Short.MAX_VALUE);
+    }
+
+    public static float dequantizeAxis(short value) {
+        return value / (float) Short.MAX_VALUE;
+    }
+}
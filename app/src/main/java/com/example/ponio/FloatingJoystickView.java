@@ -26,6 +26,8 @@ public class FloatingJoystickView extends View {
     private boolean isLeft = false;
     
     private JoystickListener listener;
+    // Positions are quantized and tiny moves dropped before the listener hears of them
+    private final AxisQuantizer quantizer = new AxisQuantizer();
     
     public interface JoystickListener {
         void onJoystickMoved(float x, float y, boolean isLeft);
@@ -64,6 +66,10 @@ public class FloatingJoystickView extends View {
     public void setIsLeft(boolean isLeft) {
         this.isLeft = isLeft;
     }
+
+    public AxisQuantizer getQuantizer() {
+        return quantizer;
+    }
     
     public void show(float x, float y) {
         centerX = x;
@@ -71,6 +77,7 @@ public class FloatingJoystickView extends View {
         stickX = x;
         stickY = y;
         isVisible = true;
+        quantizer.reset();
         invalidate();
     }
     
@@ -123,8 +130,8 @@ public class FloatingJoystickView extends View {
         float normalizedX = (stickX - centerX) / maxDistance;
         float normalizedY = (stickY - centerY) / maxDistance;
         
-        if (listener != null) {
-            listener.onJoystickMoved(normalizedX, normalizedY, isLeft);
+        if (quantizer.update(normalizedX, normalizedY) && listener != null) {
+            listener.onJoystickMoved(quantizer.getX(), quantizer.getY(), isLeft);
         }
         
         invalidate();
@@ -133,6 +140,7 @@ public class FloatingJoystickView extends View {
     public void resetStick() {
         stickX = centerX;
         stickY = centerY;
+        quantizer.reset();
         
         if (listener != null) {
             listener.onJoystickReleased(isLeft);
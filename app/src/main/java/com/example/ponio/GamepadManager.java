@@ -6,18 +6,90 @@ import android.view.View;
 import com.google.android.material.button.MaterialButton;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class GamepadManager {
     private static final String TAG = "GamepadManager";
     private static GamepadManager instance;
 
     // Connection protocol (TCP/UDP/Bluetooth)
-    private ConnectionProtocol protocol;
-    private String currentProtocol = "tcp"; // Default
-    private ExecutorService executor;
-    public boolean isConnected = false;
+    private volatile ConnectionProtocol protocol;
+    private volatile String currentProtocol = "tcp"; // Default
+    // Slow connect/disconnect/reconnect work, input goes through the sender thread instead
+    private ScheduledExecutorService executor;
+    public volatile boolean isConnected = false;
+
+    // Automatic reconnect after the link failed. Reconnect state is only changed on the executor
+    private volatile boolean reconnecting = false;
+    private volatile boolean autoReconnect = true;
+    private volatile Backoff backoff = new Backoff(100, 3000);
+    private volatile int maxReconnectAttempts = 20;
+    private String lastAddress;
+    private int lastPort;
+    private int connectionGeneration = 0; // bumped by connect/disconnect, cancels a running reconnect
+    private long connectionLostNanos = 0;
+    private final LatencyHistogram recoveryTime = new LatencyHistogram();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong reconnectAttempts = new AtomicLong();
+    private volatile ConnectionListener connectionListener;
+
+    // Input codec preference (auto/text/binary), chosen before connect; the codec in use
+    // is what the server picked during the handshake
+    private volatile InputCodec codec = InputCodec.create("text");
+    private String currentCodec = "auto";
+
+    // Capability handshake
+    private static final int MAX_TICK_RATE = 1000;
+    private static final List<String> FEATURES = Arrays.asList(
+            Handshake.FEATURE_PING, Handshake.FEATURE_SNAPSHOT, Handshake.FEATURE_RESYNC,
+            Handshake.FEATURE_RELIABLE, Handshake.FEATURE_REDUNDANT, Handshake.FEATURE_RESUME);
+    private volatile Handshake handshake; // while one is waiting for the server
+    private volatile Handshake.Result negotiated;
+    private volatile long handshakeTimeoutMs = 500;
+    // Servers from before the handshake never answer HELLO; greet them the old way after the timeout
+    private volatile boolean legacyFallback = true;
+    // Reconnects present the session token instead of greeting again, if the server gave one
+    private volatile boolean sessionResumption = true;
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong failedResumes = new AtomicLong();
+    // Earlier input frames repeated in each UDP datagram, if the server supports it
+    private volatile int redundancy = 0;
+
+    // Send modes: one message per input event, or one full state frame per tick
+    public static final int SEND_MODE_EVENT = 0;
+    public static final int SEND_MODE_SNAPSHOT = 1;
+
+    // Encodes and writes input on its own high priority thread
+    private final InputSender sender = new InputSender();
+    private long batchWindowMicros = 0;
+    // RTT/jitter/loss measurement, pings share the sender's control queue with other commands
+    private final PingMonitor pingMonitor = new PingMonitor(message -> sender.sendCommand(message));
+    // Pings double as keepalives: the watchdog declares the link dead when the answers stop
+    // or a write blocks past its deadline
+    private final LinkWatchdog watchdog = new LinkWatchdog(sender, this::onLinkDead);
+    // Bumped for every established link, so a late failure report of an old link is ignored
+    private volatile int linkEpoch = 0;
+    // Throttles the frame rate and widens the write batch when the pings show queueing or loss
+    private final RateController rateController = new RateController(this::applyRate);
+    private volatile boolean adaptiveRate = true;
+
+    // Transport failover: when the quality score of the link stays low, the session moves to
+    // the other transport (TCP <-> UDP). The new one is connected and greeted while the old
+    // one still carries input, then the sender switches over with a full state resync
+    private final LinkQuality quality = new LinkQuality();
+    private volatile boolean failoverEnabled = true;
+    private volatile long failoverCooldownMs = 10_000;
+    private volatile boolean failoverPending = false;
+    private volatile long lastFailoverNanos = 0;
+    private final LatencyHistogram switchTime = new LatencyHistogram();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong failedFailovers = new AtomicLong();
 
     // UI Components
     public MaterialButton btnA, btnB, btnX, btnY;
@@ -31,8 +103,30 @@ public class GamepadManager {
 
     // Private constructor
     private GamepadManager() {
-        executor = Executors.newSingleThreadExecutor();
+        executor = Executors.newSingleThreadScheduledExecutor();
         protocol = ConnectionProtocol.create("tcp");
+        sender.setListener(e -> onLinkFailed("Send failed: " + e.getMessage()));
+        sender.start();
+        pingMonitor.setInterval(100);
+        pingMonitor.setSampleListener(new PingMonitor.SampleListener() {
+            @Override
+            public void onRttSample(long rttNanos) {
+                if (adaptiveRate) {
+                    rateController.onRttSample(rttNanos);
+                }
+                quality.onRttSample(rttNanos);
+                checkFailover();
+            }
+
+            @Override
+            public void onPingLost() {
+                if (adaptiveRate) {
+                    rateController.onLoss();
+                }
+                quality.onLoss();
+                checkFailover();
+            }
+        });
     }
 
     // Singleton instance accessor
@@ -43,10 +137,20 @@ public class GamepadManager {
         return instance;
     }
 
-    // Set connection protocol (call before connect)
+    // Set connection protocol (call before connect). Ignored while a session is active: the
+    // executor may already be connecting the current instance, replacing it would leak it
     public void setProtocol(String protocolType) {
-        this.currentProtocol = protocolType.toLowerCase();
+        String type = protocolType.toLowerCase();
+        if (protocol != null && type.equals(currentProtocol)) {
+            return;
+        }
+        if (isSessionActive()) {
+            Log.w(TAG, "Not switching to " + type + " during a session on " + currentProtocol);
+            return;
+        }
+        this.currentProtocol = type;
         this.protocol = ConnectionProtocol.create(protocolType);
+        this.protocol.setBatchWindowMicros(batchWindowMicros);
         Log.d(TAG, "Protocol set to: " + protocolType);
     }
 
@@ -54,18 +158,286 @@ public class GamepadManager {
         return currentProtocol;
     }
 
+    // Set input codec preference (call before connect): "auto" offers delta, binary and text
+    // and lets the server choose, "text", "binary" or "delta" offers only that one
+    public void setCodec(String codecType) {
+        this.currentCodec = codecType.toLowerCase();
+        Log.d(TAG, "Codec set to: " + codecType);
+    }
+
+    public String getCurrentCodec() {
+        return currentCodec;
+    }
+
+    // The codec of the current connection
+    public String getActiveCodec() {
+        return codec.getCodecName();
+    }
+
+    private List<String> offeredCodecs() {
+        if (currentCodec.equals("auto")) {
+            // Delta frames are the smallest, binary is smaller and cheaper to encode than text
+            return Arrays.asList("delta", "binary", "text");
+        }
+        return Collections.singletonList(currentCodec);
+    }
+
+    public void setHandshakeTimeout(long timeoutMs) {
+        handshakeTimeoutMs = timeoutMs;
+    }
+
+    public void setLegacyFallback(boolean enabled) {
+        legacyFallback = enabled;
+    }
+
+    public void setSessionResumption(boolean enabled) {
+        sessionResumption = enabled;
+    }
+
+    public boolean isSessionResumption() {
+        return sessionResumption;
+    }
+
+    // Reconnects that reattached to the server's session
+    public long getResumeCount() {
+        return resumes.get();
+    }
+
+    // Resume attempts the server did not accept, followed by a full handshake
+    public long getFailedResumeCount() {
+        return failedResumes.get();
+    }
+
+    // Retransmits and ack latency of button edges over UDP, null for other transports
+    public ReliableLane getReliableLane() {
+        ConnectionProtocol p = protocol;
+        if (p instanceof ConnectionProtocol.UDPProtocol) {
+            return ((ConnectionProtocol.UDPProtocol) p).getReliableLane();
+        }
+        return null;
+    }
+
+    // Forward error correction for UDP (call before connect): every datagram also carries the
+    // previous n input frames, so a lost one is rebuilt from the next that arrives instead of
+    // being retransmitted. 0 turns it off
+    public void setRedundancy(int n) {
+        if (n < 0 || n > ConnectionProtocol.UDPProtocol.RedundancyEncoder.MAX_REDUNDANCY) {
+            throw new IllegalArgumentException("Redundancy must be 0.."
+                    + ConnectionProtocol.UDPProtocol.RedundancyEncoder.MAX_REDUNDANCY + ", got " + n);
+        }
+        redundancy = n;
+    }
+
+    public int getRedundancy() {
+        return redundancy;
+    }
+
+    // What the server selected, null when connected to a server without handshake support
+    public Handshake.Result getHandshakeResult() {
+        return negotiated;
+    }
+
+    // Choose between per-event messages and fixed-tick state snapshots
+    public void setSendMode(int mode) {
+        sender.setSendMode(mode);
+    }
+
+    public int getSendMode() {
+        return sender.getSendMode();
+    }
+
+    // Snapshot tick rate, e.g. 60, 125 or 250 Hz
+    public void setSnapshotRate(int hz) {
+        sender.setSnapshotRate(hz);
+    }
+
+    public int getSnapshotRate() {
+        return sender.getSnapshotRate();
+    }
+
+    // An unchanged state is still re-sent this often so the server knows we are alive
+    public void setKeepaliveInterval(long intervalMs) {
+        sender.setKeepaliveInterval(intervalMs);
+    }
+
+    public long getSnapshotsSent() {
+        return sender.getSnapshotsSent();
+    }
+
+    public long getSnapshotTicksSkipped() {
+        return sender.getSnapshotTicksSkipped();
+    }
+
+    // How long one write batch stays open for more input, 0 = only what is already pending
+    public void setBatchWindowMicros(long micros) {
+        batchWindowMicros = micros;
+        protocol.setBatchWindowMicros(adaptiveRate ? Math.max(micros, rateController.getWindowMicros()) : micros);
+    }
+
+    public long getBatchWindowMicros() {
+        return batchWindowMicros;
+    }
+
+    // Adapt frame rate and batch window to the measured RTT and loss (on by default). The
+    // controller only ever throttles: on a clean link input goes out as fast as it comes
+    public void setAdaptiveRate(boolean enabled) {
+        adaptiveRate = enabled;
+        rateController.reset();
+    }
+
+    public boolean isAdaptiveRate() {
+        return adaptiveRate;
+    }
+
+    // Current rate, window, queueing delay and the recent adjustments with their reasons
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    // Current cap on frames per second, 0 while not throttled
+    public int getSendRateLimit() {
+        return sender.getRateLimit();
+    }
+
+    // Move the session to the other transport when the link degrades (on by default)
+    public void setFailoverEnabled(boolean enabled) {
+        failoverEnabled = enabled;
+    }
+
+    public boolean isFailoverEnabled() {
+        return failoverEnabled;
+    }
+
+    // Minimum time between two switches, so a link that is bad either way does not flap
+    public void setFailoverCooldown(long cooldownMs) {
+        failoverCooldownMs = cooldownMs;
+    }
+
+    // Quality score of the current transport, see LinkQuality
+    public LinkQuality getLinkQuality() {
+        return quality;
+    }
+
+    // From the decision to switch until the sender writes to the new transport
+    public LatencyHistogram getSwitchTime() {
+        return switchTime;
+    }
+
+    public long getFailoverCount() {
+        return failovers.get();
+    }
+
+    // Switches given up because the other transport did not connect or answer
+    public long getFailedFailoverCount() {
+        return failedFailovers.get();
+    }
+
+    // Rate controller output; at the top of its range the rate is not limited at all
+    private void applyRate(int rateHz, long windowMicros) {
+        boolean throttled = adaptiveRate && rateHz < rateController.getMaxRateHz();
+        sender.setRateLimit(throttled ? rateHz : 0);
+        protocol.setBatchWindowMicros(adaptiveRate ? Math.max(batchWindowMicros, windowMicros) : batchWindowMicros);
+    }
+
+    // RTT, jitter and loss of the current connection
+    public LinkStats getLinkStats() {
+        return pingMonitor.getStats();
+    }
+
+    public void setPingInterval(long intervalMs) {
+        pingMonitor.setInterval(intervalMs);
+    }
+
+    // Keepalive pings every intervalMs; once the server answered one, a silence longer than
+    // timeoutMs counts as a dead link
+    public void setLinkKeepalive(long intervalMs, long timeoutMs) {
+        pingMonitor.setInterval(intervalMs);
+        watchdog.setKeepaliveTimeout(timeoutMs);
+    }
+
+    // Longest a single socket write may block the sender before the link is declared dead
+    public void setWriteDeadline(long deadlineMs) {
+        watchdog.setWriteDeadline(deadlineMs);
+    }
+
+    // Silence (or blocked write) at the moment a dead link was detected
+    public LatencyHistogram getDeadLinkDetectionDelay() {
+        return watchdog.getDetectionDelay();
+    }
+
+    // Events waiting for the sender thread right now
+    public int getQueueDepth() {
+        return sender.getQueueDepth();
+    }
+
+    public int getMaxQueueDepth() {
+        return sender.getMaxQueueDepth();
+    }
+
+    // Time from setButton/setStick until the bytes were handed to the socket
+    public LatencyHistogram getPublishToWireLatency() {
+        return sender.getPublishToWireLatency();
+    }
+
+    // Per-stage latency from the MotionEvent to the socket, see InputTracer.STAGE_*
+    public InputTracer getInputTracer() {
+        return sender.getTracer();
+    }
+
+    // Reconnect settings: delays grow from initialDelayMs to maxDelayMs, with jitter
+    public void setReconnectBackoff(long initialDelayMs, long maxDelayMs) {
+        backoff = new Backoff(initialDelayMs, maxDelayMs);
+    }
+
+    public void setMaxReconnectAttempts(int attempts) {
+        maxReconnectAttempts = attempts;
+    }
+
+    public void setAutoReconnect(boolean enabled) {
+        autoReconnect = enabled;
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        connectionListener = listener;
+    }
+
+    // The link is down and being re-established; input is still captured meanwhile
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    // Connected or reconnecting, i.e. input should keep being reported
+    public boolean isSessionActive() {
+        return isConnected || reconnecting;
+    }
+
+    // Time from losing the link until input flowed again, one sample per reconnect
+    public LatencyHistogram getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    public long getReconnectAttempts() {
+        return reconnectAttempts.get();
+    }
+
     // Connect to server with specified protocol
     public void connect(String address, int port, ConnectionCallback callback) {
         executor.execute(() -> {
+            connectionGeneration++;
+            reconnecting = false;
+            lastAddress = address;
+            lastPort = port;
             try {
-                protocol.connect(address, port);
+                openConnection(address, port, false);
                 isConnected = true;
 
-                // Send initial connection message
-                sendCommand("CONNECT:Ponio Android Gamepad [" + protocol.getProtocolName() + "]");
-
                 if (callback != null) {
-                    callback.onSuccess("Connected via " + protocol.getProtocolName() + " to " + address + ":" + port);
+                    callback.onSuccess("Connected via " + protocol.getProtocolName() + " (" + codec.getCodecName()
+                            + ") to " + address + ":" + port);
                 }
 
             } catch (IOException e) {
@@ -78,13 +450,383 @@ public class GamepadManager {
         });
     }
 
+    // Connects the protocol, greets the server and hands the protocol to the sender.
+    // Executor only. With resync the sender first sends the state kept during an outage.
+    private void openConnection(String address, int port, boolean resync) throws IOException {
+        Handshake.Result previous = negotiated;
+        if (resync && sessionResumption && previous != null && previous.session != null
+                && resume(protocol, address, port, previous)) {
+            return;
+        }
+        Handshake.Result result = greet(protocol, address, port, legacyFallback);
+        activate(protocol, result, resync);
+    }
+
+    // Connects p and agrees on codec and features with the server. Everything here is sent
+    // before the sender gets the protocol, so it always arrives first. Returns null for a
+    // legacy server, which is only accepted with allowLegacy
+    private Handshake.Result greet(ConnectionProtocol p, String address, int port, boolean allowLegacy) throws IOException {
+        p.setMessageListener(this::onServerMessage);
+        if (p instanceof ConnectionProtocol.UDPProtocol) {
+            ((ConnectionProtocol.UDPProtocol) p).setRedundancy(0); // until the server agreed
+        }
+        p.connect(address, port);
+
+        Handshake.Result result;
+        try {
+            result = handshake(p, allowLegacy);
+        } catch (IOException e) {
+            p.disconnect();
+            throw e;
+        }
+        if (result != null) {
+            Log.d(TAG, "Handshake: " + result);
+            if (result.tickRate > 0 && result.tickRate < sender.getSnapshotRate()) {
+                sender.setSnapshotRate(result.tickRate);
+            }
+        } else {
+            // Legacy greeting, announcing the codec when it is not plain text
+            InputCodec legacyCodec = codecFor(null);
+            String announcement = "CONNECT:Ponio Android Gamepad [" + p.getProtocolName() + "]";
+            if (!(legacyCodec instanceof InputCodec.TextCodec)) {
+                announcement += " [" + legacyCodec.getCodecName().toUpperCase() + "]";
+            }
+            p.sendData((announcement + "\n").getBytes());
+        }
+        configureDatagrams(p, result);
+        return result;
+    }
+
+    // Acks and redundant datagrams only for servers that said they handle them. Edges
+    // keep using acks even with redundancy: an edge nothing follows is never repeated
+    private void configureDatagrams(ConnectionProtocol p, Handshake.Result result) {
+        if (p instanceof ConnectionProtocol.UDPProtocol) {
+            ConnectionProtocol.UDPProtocol udp = (ConnectionProtocol.UDPProtocol) p;
+            udp.setReliableEnabled(result != null && result.hasFeature(Handshake.FEATURE_RELIABLE));
+            udp.setRedundancy(result != null && result.hasFeature(Handshake.FEATURE_REDUNDANT) ? redundancy : 0);
+        }
+    }
+
+    // Reattaches to the session the server still holds for us. The RESUME goes out first and
+    // the full state right behind it, without waiting for the answer: input flows as soon as
+    // the transport is up, and the server neither renegotiates nor creates a new virtual
+    // gamepad. Returns false when the server does not know the session anymore, the caller
+    // then greets it from scratch and the state is sent again. Without any answer the attempt
+    // fails and the next one tries the same session again.
+    private boolean resume(ConnectionProtocol p, String address, int port, Handshake.Result previous) throws IOException {
+        boolean datagrams = p instanceof ConnectionProtocol.UDPProtocol;
+        p.setMessageListener(this::onServerMessage);
+        if (datagrams) {
+            ((ConnectionProtocol.UDPProtocol) p).setKeepSequence(true);
+        }
+        try {
+            p.connect(address, port);
+        } finally {
+            if (datagrams) {
+                ((ConnectionProtocol.UDPProtocol) p).setKeepSequence(false);
+            }
+        }
+
+        Handshake hs = new Handshake(previous);
+        handshake = hs;
+        Handshake.Result result = null;
+        boolean rejected = false;
+        try {
+            p.sendData(hs.nextResume());
+            configureDatagrams(p, previous);
+            attach(p, previous, true);
+            // A lost RESUME takes the state frame behind it along, so UDP repeats both
+            int attempts = datagrams ? 4 : 1;
+            long slice = handshakeTimeoutMs / attempts;
+            for (int i = 0; i < attempts && result == null && !rejected; i++) {
+                if (i > 0) {
+                    p.sendData(hs.nextResume());
+                    sender.attach(p, codec, true);
+                }
+                try {
+                    result = hs.await(slice);
+                } catch (IOException e) {
+                    Log.w(TAG, "Session not resumed: " + e.getMessage());
+                    rejected = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Resume interrupted");
+        } catch (IOException e) {
+            sender.detach();
+            p.disconnect();
+            throw e;
+        } finally {
+            handshake = null;
+        }
+
+        if (result == null) {
+            sender.detach();
+            p.disconnect();
+            if (!rejected) {
+                throw new IOException("No answer to resume");
+            }
+            failedResumes.getAndIncrement();
+            negotiated = null;
+            return false;
+        }
+        negotiated = result;
+        resumes.getAndIncrement();
+        Log.d(TAG, "Resumed session: " + result);
+        watch(result);
+        return true;
+    }
+
+    private InputCodec codecFor(Handshake.Result result) {
+        if (result != null) {
+            return InputCodec.create(result.codec);
+        }
+        return InputCodec.create(currentCodec.equals("binary") ? "binary" : "text");
+    }
+
+    // Hands a greeted protocol to the sender and starts watching the new link
+    private void activate(ConnectionProtocol p, Handshake.Result result, boolean resync) {
+        attach(p, result, resync);
+        watch(result);
+    }
+
+    private void attach(ConnectionProtocol p, Handshake.Result result, boolean resync) {
+        codec = codecFor(result);
+        if (codec instanceof InputCodec.DeltaCodec) {
+            // A stream delivers every frame in order, so deltas can build on the previous one
+            ((InputCodec.DeltaCodec) codec).setChained(!(p instanceof ConnectionProtocol.UDPProtocol));
+        }
+        negotiated = result;
+        sender.attach(p, codec, resync);
+    }
+
+    // Pings and the watchdog for the link the sender was just attached to
+    private void watch(Handshake.Result result) {
+        linkEpoch++;
+        pingMonitor.reset();
+        rateController.reset();
+        quality.reset();
+        // Only a server that agreed to pings gets them; a legacy link (no handshake) is
+        // watched by the write deadline alone
+        if (result != null && result.hasFeature(Handshake.FEATURE_PING)) {
+            pingMonitor.start();
+        } else if (result == null && protocol instanceof ConnectionProtocol.UDPProtocol) {
+            checkSilentUdp();
+        }
+        watchdog.start();
+    }
+
+    // Executor: nobody answered the HELLO over UDP. Without pings the link quality is never
+    // measured, so ask once over TCP: a server that greets there would have greeted over
+    // UDP too, unless the datagrams are filtered on the way
+    private void checkSilentUdp() {
+        if (!failoverEnabled || failoverPending) {
+            return;
+        }
+        failoverPending = true;
+        int epoch = linkEpoch;
+        executor.execute(() -> {
+            try {
+                failover(epoch, "no answer over udp");
+            } finally {
+                failoverPending = false;
+            }
+        });
+    }
+
+    // Ping thread: schedule a switch once the link has been bad for a while
+    private void checkFailover() {
+        if (!failoverEnabled || !isConnected || reconnecting || failoverPending || !quality.isDegraded()) {
+            return;
+        }
+        if (lastFailoverNanos != 0
+                && System.nanoTime() - lastFailoverNanos < TimeUnit.MILLISECONDS.toNanos(failoverCooldownMs)) {
+            return;
+        }
+        failoverPending = true;
+        int epoch = linkEpoch;
+        String reason = quality.toString();
+        executor.execute(() -> {
+            try {
+                failover(epoch, reason);
+            } finally {
+                failoverPending = false;
+            }
+        });
+    }
+
+    // Make before break: the old transport keeps carrying input until the new one is ready,
+    // then the sender moves over and sends the full state first, so nothing is lost
+    private void failover(int epoch, String reason) {
+        if (!isConnected || reconnecting || epoch != linkEpoch) {
+            return;
+        }
+        long start = System.nanoTime();
+        lastFailoverNanos = start;
+        String from = currentProtocol;
+        String to = from.equals("udp") ? "tcp" : "udp";
+        Log.w(TAG, "Link degraded on " + from + " (" + reason + "), switching to " + to);
+
+        ConnectionProtocol next = ConnectionProtocol.create(to);
+        next.setBatchWindowMicros(protocol.getBatchWindowNanos() / 1000);
+        Handshake.Result result;
+        try {
+            // Only a server that answers over the new transport is worth switching to
+            result = greet(next, lastAddress, lastPort, false);
+        } catch (IOException e) {
+            failedFailovers.getAndIncrement();
+            Log.w(TAG, "Failover to " + to + " failed, staying on " + from, e);
+            return;
+        }
+
+        ConnectionProtocol old = protocol;
+        protocol = next;
+        currentProtocol = to;
+        activate(next, result, true);
+        long switchNanos = System.nanoTime() - start;
+        switchTime.record(switchNanos);
+        failovers.getAndIncrement();
+        Log.d(TAG, "Switched from " + from + " to " + to + " in " + switchNanos / 1_000_000 + "ms");
+
+        try {
+            old.sendData("DISCONNECT\n".getBytes());
+            old.disconnect();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing the old transport failed", e);
+        }
+        ConnectionListener l = connectionListener;
+        if (l != null) {
+            l.onTransportSwitched(from, to, switchNanos);
+        }
+    }
+
+    // Offers our capabilities and waits for the server's selection. Returns null for a
+    // server that never answered when the legacy fallback is on
+    private Handshake.Result handshake(ConnectionProtocol p, boolean allowLegacy) throws IOException {
+        Handshake hs = new Handshake(offeredCodecs(), MAX_TICK_RATE, FEATURES);
+        handshake = hs;
+        try {
+            // A datagram may get lost, so UDP repeats the HELLO within the timeout
+            int attempts = p instanceof ConnectionProtocol.UDPProtocol ? 4 : 1;
+            long slice = handshakeTimeoutMs / attempts;
+            for (int i = 0; i < attempts; i++) {
+                p.sendData(hs.nextHello());
+                Handshake.Result result = hs.await(slice);
+                if (result != null) {
+                    return result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Handshake interrupted");
+        } finally {
+            handshake = null;
+        }
+        if (!allowLegacy) {
+            throw new IOException("No handshake answer from server");
+        }
+        Log.w(TAG, "No handshake answer, assuming a legacy server");
+        return null;
+    }
+
+    // Watchdog thread: the peer stopped answering or a write is stuck. Closing the protocol
+    // fails the blocked write, so the sender thread is free again
+    private void onLinkDead(String reason) {
+        int epoch = linkEpoch;
+        try {
+            protocol.disconnect();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing the dead connection failed", e);
+        }
+        onLinkFailed(reason, epoch);
+    }
+
+    // The connection broke underneath us, any thread
+    private void onLinkFailed(String reason) {
+        onLinkFailed(reason, linkEpoch);
+    }
+
+    private void onLinkFailed(String reason, int epoch) {
+        pingMonitor.stop();
+        watchdog.stop();
+        Log.w(TAG, "Link failed: " + reason);
+        executor.execute(() -> {
+            if (!isConnected || epoch != linkEpoch) {
+                return; // disconnected on purpose, already reconnecting, or about an older link
+            }
+            // Set before isConnected drops, so input keeps being captured without a gap
+            reconnecting = autoReconnect && lastAddress != null;
+            isConnected = false;
+            if (!reconnecting) {
+                notifyConnectionClosed(reason);
+                return;
+            }
+            connectionLostNanos = System.nanoTime();
+            ConnectionListener l = connectionListener;
+            if (l != null) {
+                l.onConnectionLost();
+            }
+            // First attempt right away, a reset connection often comes straight back
+            attemptReconnect(0, connectionGeneration);
+        });
+    }
+
+    private void attemptReconnect(int attempt, int generation) {
+        if (!reconnecting || generation != connectionGeneration) {
+            return;
+        }
+        reconnectAttempts.getAndIncrement();
+        try {
+            protocol.disconnect();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing the failed connection failed", e);
+        }
+        try {
+            openConnection(lastAddress, lastPort, true);
+            reconnecting = false;
+            isConnected = true;
+            long recovery = System.nanoTime() - connectionLostNanos;
+            recoveryTime.record(recovery);
+            reconnects.getAndIncrement();
+            Log.d(TAG, "Reconnected after " + (attempt + 1) + " attempts in " + recovery / 1_000_000 + "ms");
+            ConnectionListener l = connectionListener;
+            if (l != null) {
+                l.onReconnected(recovery);
+            }
+        } catch (IOException e) {
+            if (attempt + 1 >= maxReconnectAttempts) {
+                Log.e(TAG, "Giving up reconnecting after " + (attempt + 1) + " attempts", e);
+                reconnecting = false;
+                notifyConnectionClosed("Connection lost: " + e.getMessage());
+                return;
+            }
+            long delay = backoff.getDelayMs(attempt);
+            Log.d(TAG, "Reconnect attempt " + (attempt + 1) + " failed, next in " + delay + "ms");
+            executor.schedule(() -> attemptReconnect(attempt + 1, generation), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void notifyConnectionClosed(String reason) {
+        ConnectionListener l = connectionListener;
+        if (l != null) {
+            l.onConnectionClosed(reason);
+        }
+    }
+
     // Disconnect from server
     public void disconnect(DisconnectCallback callback) {
         executor.execute(() -> {
+            connectionGeneration++;
+            reconnecting = false;
+            pingMonitor.stop();
+            watchdog.stop();
+            sender.detach();
             try {
                 if (protocol != null && protocol.isConnected()) {
-				    protocol.disconnect();
-                    sendCommand("DISCONNECT");
+                    // Say goodbye before closing, UDP has no connection teardown of its own
+                    protocol.sendData("DISCONNECT\n".getBytes());
+                    protocol.disconnect();
                 }
                 isConnected = false;
 
@@ -102,6 +844,19 @@ public class GamepadManager {
         });
     }
 
+    // Messages from the server, called on the transport's reader thread
+    private void onServerMessage(byte[] data, int offset, int length) {
+        watchdog.onInbound();
+        Handshake hs = handshake;
+        if (hs != null && hs.onMessage(data, offset, length)) {
+            return;
+        }
+        if (pingMonitor.onMessage(data, offset, length)) {
+            return;
+        }
+        Log.d(TAG, "Server: " + new String(data, offset, length));
+    }
+
     // Send command to server
     public void sendCommand(String command) {
         if (!isConnected || protocol == null || !protocol.isConnected()) {
@@ -109,16 +864,33 @@ public class GamepadManager {
             return;
         }
 
-        executor.execute(() -> {
-            try {
-                String message = command + "\n";
-                protocol.sendData(message.getBytes());
-                Log.d(TAG, "Command sent via " + protocol.getProtocolName() + ": " + command);
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to send command: " + command, e);
-                isConnected = false;
-            }
-        });
+        sender.sendCommand((command + "\n").getBytes());
+        Log.d(TAG, "Command queued for " + protocol.getProtocolName() + ": " + command);
+    }
+
+    // Report a button edge. UI thread only, never allocates or blocks
+    public void setButton(int button, boolean pressed) {
+        setButton(button, pressed, 0, 0);
+    }
+
+    // Same, with the MotionEvent and listener dispatch times (System.nanoTime() based) for tracing
+    public void setButton(int button, boolean pressed, long originNanos, long dispatchNanos) {
+        if (!isConnected && !reconnecting) {
+            return;
+        }
+        sender.publishButton(button, pressed, originNanos, dispatchNanos);
+    }
+
+    // Report a stick position, x and y normalized to -1..1. UI thread only, never allocates or blocks
+    public void setStick(int stick, float x, float y) {
+        setStick(stick, x, y, 0, 0);
+    }
+
+    public void setStick(int stick, float x, float y, long originNanos, long dispatchNanos) {
+        if (!isConnected && !reconnecting) {
+            return;
+        }
+        sender.publishStick(stick, x, y, originNanos, dispatchNanos);
     }
 
     // Enable/disable gamepad controls
@@ -177,6 +949,8 @@ public class GamepadManager {
     // Cleanup
     public void cleanup() {
         disconnect(null);
+        pingMonitor.shutdown();
+        watchdog.shutdown();
         if (executor != null && !executor.isShutdown()) {
             executor.shutdown();
         }
@@ -191,4 +965,13 @@ public class GamepadManager {
     public interface DisconnectCallback {
         void onDisconnected();
     }
+
+    // Link events after connect succeeded, called on a background thread
+    public interface ConnectionListener {
+        void onConnectionLost();
+        void onReconnected(long recoveryNanos);
+        void onConnectionClosed(String reason);
+        // The session moved to another transport because the old one degraded
+        void onTransportSwitched(String from, String to, long switchNanos);
+    }
 }
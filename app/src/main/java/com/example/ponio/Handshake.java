@@ -0,0 +1,232 @@
+package com.example.ponio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Capability exchange right after the transport connected. The client offers what it can do:
+//   HELLO:<version>;n=<attempt>;codecs=binary,text;tick=<max Hz>;features=ping,snapshot,resync
+// and the server answers with its selection, echoing the attempt number:
+//   WELCOME:<version>;n=<attempt>;codec=binary;tick=<Hz>;features=ping
+// or refuses with "REJECT:<reason>". Codecs are offered in order of preference.
+// A server with the resume feature adds ";session=<token>" to its WELCOME. After the link
+// broke the client presents that token instead of a HELLO:
+//   RESUME:<version>;n=<attempt>;session=<token>
+// and the server reattaches its existing virtual gamepad, answering
+//   RESUMED:<version>;n=<attempt>;session=<token>
+// or "REJECT:<reason>" when it no longer knows the session.
+public class Handshake {
+    public static final int PROTOCOL_VERSION = 1;
+    public static final String FEATURE_PING = "ping";
+    public static final String FEATURE_SNAPSHOT = "snapshot";
+    public static final String FEATURE_RESYNC = "resync";
+    // Server acknowledges reliable UDP datagrams (button edges)
+    public static final String FEATURE_RELIABLE = "reliable";
+    // Server rebuilds lost input frames from the copies in later UDP datagrams
+    public static final String FEATURE_REDUNDANT = "redundant";
+    // Server hands out a session token and keeps the session across reconnects
+    public static final String FEATURE_RESUME = "resume";
+
+    private static final String WELCOME = "WELCOME:";
+    private static final String REJECT = "REJECT:";
+    private static final String RESUMED = "RESUMED:";
+    private static final int MAX_ATTEMPTS = 16;
+
+    // The server's selection
+    public static class Result {
+        public int version;
+        public String codec;
+        public int tickRate;
+        public final Set<String> features = new HashSet<>();
+        public long rttNanos;
+        // Token for resuming this session, null if the server does not support it
+        public String session;
+        // Reattached to an existing session instead of a new one
+        public boolean resumed;
+        int attempt = -1; // which HELLO this answers, -1 if the server did not say
+
+        public boolean hasFeature(String feature) {
+            return features.contains(feature);
+        }
+
+        @Override
+        public String toString() {
+            return "v" + version + " codec=" + codec + " tick=" + tickRate + "Hz features=" + features
+                    + " rtt=" + String.format(Locale.US, "%.2fms", rttNanos / 1e6) + (resumed ? " resumed" : "");
+        }
+
+        // Same selection, answering another greeting
+        Result copy() {
+            Result copy = new Result();
+            copy.version = version;
+            copy.codec = codec;
+            copy.tickRate = tickRate;
+            copy.features.addAll(features);
+            copy.session = session;
+            return copy;
+        }
+    }
+
+    private final List<String> codecs;
+    private final int maxTickRate;
+    private final List<String> features;
+    private final Result resumeFrom; // the session to resume, null for a HELLO handshake
+    private final long[] sentNanos = new long[MAX_ATTEMPTS];
+    private int attempts = 0;
+    private Result result;
+    private String rejection;
+
+    public Handshake(List<String> codecs, int maxTickRate, List<String> features) {
+        this.codecs = codecs;
+        this.maxTickRate = maxTickRate;
+        this.features = features;
+        this.resumeFrom = null;
+    }
+
+    // Resumes the session of an earlier handshake, keeping everything it selected
+    public Handshake(Result previous) {
+        this.codecs = Collections.singletonList(previous.codec);
+        this.maxTickRate = previous.tickRate;
+        this.features = new ArrayList<>(previous.features);
+        this.resumeFrom = previous;
+    }
+
+    // Next HELLO to send; every call is a new attempt with its own send time
+    public synchronized byte[] nextHello() {
+        int attempt = Math.min(attempts, MAX_ATTEMPTS - 1);
+        attempts = attempt + 1;
+        sentNanos[attempt] = System.nanoTime();
+        return ("HELLO:" + PROTOCOL_VERSION + ";n=" + attempt + ";codecs=" + join(codecs)
+                + ";tick=" + maxTickRate + ";features=" + join(features) + "\n").getBytes();
+    }
+
+    // Next RESUME to send, for a handshake created from an earlier result
+    public synchronized byte[] nextResume() {
+        int attempt = Math.min(attempts, MAX_ATTEMPTS - 1);
+        attempts = attempt + 1;
+        sentNanos[attempt] = System.nanoTime();
+        return ("RESUME:" + PROTOCOL_VERSION + ";n=" + attempt + ";session=" + resumeFrom.session + "\n").getBytes();
+    }
+
+    // Feed server messages here, reader thread; returns true if it belonged to the handshake
+    public boolean onMessage(byte[] data, int offset, int length) {
+        String line = new String(data, offset, length).trim();
+        if (line.startsWith(REJECT)) {
+            synchronized (this) {
+                rejection = line.substring(REJECT.length());
+                notifyAll();
+            }
+            return true;
+        }
+        Result parsed;
+        if (line.startsWith(WELCOME)) {
+            parsed = parseWelcome(line);
+        } else if (line.startsWith(RESUMED) && resumeFrom != null) {
+            parsed = parseResumed(line, resumeFrom);
+        } else {
+            return false;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (result != null || parsed == null) {
+                return true;
+            }
+            int attempt = parsed.attempt >= 0 && parsed.attempt < attempts ? parsed.attempt : 0;
+            parsed.rttNanos = now - sentNanos[attempt];
+            result = parsed;
+            notifyAll();
+        }
+        return true;
+    }
+
+    // Waits for the server's answer: null on timeout, IOException if it refused or the
+    // selection is not something we offered
+    public synchronized Result await(long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        long remaining;
+        while (result == null && rejection == null && (remaining = deadline - System.nanoTime()) > 0) {
+            wait(Math.max(1, remaining / 1_000_000L));
+        }
+        if (rejection != null) {
+            throw new IOException("Server refused the connection: " + rejection);
+        }
+        if (result != null && !codecs.contains(result.codec)) {
+            throw new IOException("Server selected a codec we did not offer: " + result.codec);
+        }
+        return result;
+    }
+
+    static Result parseWelcome(String line) {
+        String[] fields = line.substring(WELCOME.length()).split(";");
+        Result result = new Result();
+        try {
+            result.version = Integer.parseInt(fields[0].trim());
+            for (int i = 1; i < fields.length; i++) {
+                int eq = fields[i].indexOf('=');
+                if (eq < 0) continue;
+                String key = fields[i].substring(0, eq).trim();
+                String value = fields[i].substring(eq + 1).trim();
+                switch (key) {
+                    case "n":
+                        result.attempt = Integer.parseInt(value);
+                        break;
+                    case "codec":
+                        result.codec = value.toLowerCase();
+                        break;
+                    case "tick":
+                        result.tickRate = Integer.parseInt(value);
+                        break;
+                    case "session":
+                        result.session = value.isEmpty() ? null : value;
+                        break;
+                    case "features":
+                        if (!value.isEmpty()) {
+                            result.features.addAll(Arrays.asList(value.split(",")));
+                        }
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (result.codec == null) {
+            result.codec = "text";
+        }
+        return result;
+    }
+
+    // A RESUMED for another session than ours does not count
+    static Result parseResumed(String line, Result previous) {
+        Result result = previous.copy();
+        result.resumed = true;
+        String session = null;
+        try {
+            String[] fields = line.substring(RESUMED.length()).split(";");
+            for (int i = 1; i < fields.length; i++) {
+                String field = fields[i].trim();
+                if (field.startsWith("n=")) {
+                    result.attempt = Integer.parseInt(field.substring(2));
+                } else if (field.startsWith("session=")) {
+                    session = field.substring(8);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return previous.session.equals(session) ? result : null;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,418 @@
+package com.example.ponio;
+
+// Turns controller input into wire bytes. Encoders write into a caller supplied
+// buffer and return the number of bytes written, so the send path never allocates.
+public abstract class InputCodec {
+
+    public abstract int encodeButton(ControllerState state, int button, int sequence, byte[] out);
+    public abstract int encodeStick(ControllerState state, int stick, int sequence, byte[] out);
+    // Complete state in one frame, used by the snapshot send mode
+    public abstract int encodeState(ControllerState state, int sequence, byte[] out);
+    public abstract int getMaxFrameSize();
+    public abstract String getCodecName();
+
+    // Ready-made frame for a button edge, shared and never to be modified, or null when the
+    // codec encodes every edge together with the rest of the state
+    public byte[] getButtonFrame(int button, boolean pressed) {
+        return null;
+    }
+
+    // Forget what earlier frames told the receiver, e.g. on a new connection. Only codecs
+    // whose frames build on each other keep anything
+    public void reset() {
+    }
+
+    // Text implementation - the original newline separated commands ("BTN_A:1", "LJOY:0.250,-1.000")
+    public static class TextCodec extends InputCodec {
+        private static final byte[] LJOY = "LJOY:".getBytes();
+        private static final byte[] RJOY = "RJOY:".getBytes();
+        // "BTN_A:0\n", "BTN_A:1\n", ... for every button, built once and indexed by
+        // button id and state, so an edge is never formatted on the input path
+        private static final byte[][][] BUTTON_FRAMES = buildButtonFrames();
+
+        @Override
+        public int encodeButton(ControllerState state, int button, int sequence, byte[] out) {
+            return writeButton(state, button, out, 0);
+        }
+
+        @Override
+        public byte[] getButtonFrame(int button, boolean pressed) {
+            return BUTTON_FRAMES[button][pressed ? 1 : 0];
+        }
+
+        @Override
+        public int encodeStick(ControllerState state, int stick, int sequence, byte[] out) {
+            return writeStick(state, stick, out, 0);
+        }
+
+        // Both sticks followed by every button, in the regular command format
+        @Override
+        public int encodeState(ControllerState state, int sequence, byte[] out) {
+            int pos = writeStick(state, ControllerState.STICK_LEFT, out, 0);
+            pos = writeStick(state, ControllerState.STICK_RIGHT, out, pos);
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                pos = writeButton(state, i, out, pos);
+            }
+            return pos;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return 256;
+        }
+
+        @Override
+        public String getCodecName() {
+            return "text";
+        }
+
+        private static int writeStick(ControllerState state, int stick, byte[] out, int pos) {
+            byte[] prefix = stick == ControllerState.STICK_LEFT ? LJOY : RJOY;
+            System.arraycopy(prefix, 0, out, pos, prefix.length);
+            pos += prefix.length;
+            pos = writeFixed3(state.getX(stick), out, pos);
+            out[pos++] = ',';
+            pos = writeFixed3(state.getY(stick), out, pos);
+            out[pos++] = '\n';
+            return pos;
+        }
+
+        private static int writeButton(ControllerState state, int button, byte[] out, int pos) {
+            byte[] frame = BUTTON_FRAMES[button][state.isPressed(button) ? 1 : 0];
+            System.arraycopy(frame, 0, out, pos, frame.length);
+            return pos + frame.length;
+        }
+
+        private static byte[][][] buildButtonFrames() {
+            byte[][][] frames = new byte[ControllerState.BUTTON_COUNT][2][];
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                frames[i][0] = (ControllerState.BUTTON_NAMES[i] + ":0\n").getBytes();
+                frames[i][1] = (ControllerState.BUTTON_NAMES[i] + ":1\n").getBytes();
+            }
+            return frames;
+        }
+
+        // Same output as String.format("%.3f") for -1..1, but locale independent and allocation free
+        static int writeFixed3(float value, byte[] out, int pos) {
+            if (value > 1f) value = 1f;
+            if (value < -1f) value = -1f;
+            int thousandths = Math.round(value * 1000f);
+            if (thousandths < 0) {
+                out[pos++] = '-';
+                thousandths = -thousandths;
+            }
+            out[pos++] = (byte) ('0' + thousandths / 1000);
+            out[pos++] = '.';
+            out[pos++] = (byte) ('0' + (thousandths / 100) % 10);
+            out[pos++] = (byte) ('0' + (thousandths / 10) % 10);
+            out[pos++] = (byte) ('0' + thousandths % 10);
+            return pos;
+        }
+    }
+
+    // Binary implementation - every event is sent as one fixed size state frame:
+    //   [0] magic  [1] frame type  [2..5] sequence  [6..7] button mask
+    //   [8..15] left x, left y, right x, right y as int16 (big endian)
+    public static class BinaryCodec extends InputCodec {
+        public static final byte MAGIC = (byte) 0xA5;
+        public static final byte TYPE_STATE = 0x01;
+        public static final int FRAME_SIZE = 16;
+
+        @Override
+        public int encodeButton(ControllerState state, int button, int sequence, byte[] out) {
+            return writeStateFrame(state, sequence, out);
+        }
+
+        @Override
+        public int encodeStick(ControllerState state, int stick, int sequence, byte[] out) {
+            return writeStateFrame(state, sequence, out);
+        }
+
+        @Override
+        public int encodeState(ControllerState state, int sequence, byte[] out) {
+            return writeStateFrame(state, sequence, out);
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return FRAME_SIZE;
+        }
+
+        @Override
+        public String getCodecName() {
+            return "binary";
+        }
+
+        static int writeStateFrame(ControllerState state, int sequence, byte[] out) {
+            out[0] = MAGIC;
+            out[1] = TYPE_STATE;
+            writeInt(out, 2, sequence);
+            writeShort(out, 6, state.getButtons());
+            writeShort(out, 8, ControllerState.quantizeAxis(state.getX(ControllerState.STICK_LEFT)));
+            writeShort(out, 10, ControllerState.quantizeAxis(state.getY(ControllerState.STICK_LEFT)));
+            writeShort(out, 12, ControllerState.quantizeAxis(state.getX(ControllerState.STICK_RIGHT)));
+            writeShort(out, 14, ControllerState.quantizeAxis(state.getY(ControllerState.STICK_RIGHT)));
+            return FRAME_SIZE;
+        }
+
+        // Inverse of writeStateFrame, returns the sequence number or throws if the frame is malformed
+        public static int decodeStateFrame(byte[] frame, int offset, ControllerState into) {
+            if (frame[offset] != MAGIC || frame[offset + 1] != TYPE_STATE) {
+                throw new IllegalArgumentException("Not a state frame");
+            }
+            int buttons = readShort(frame, offset + 6) & 0xFFFF;
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                into.setButton(i, (buttons & (1 << i)) != 0);
+            }
+            into.setStick(ControllerState.STICK_LEFT,
+                    ControllerState.dequantizeAxis(readShort(frame, offset + 8)),
+                    ControllerState.dequantizeAxis(readShort(frame, offset + 10)));
+            into.setStick(ControllerState.STICK_RIGHT,
+                    ControllerState.dequantizeAxis(readShort(frame, offset + 12)),
+                    ControllerState.dequantizeAxis(readShort(frame, offset + 14)));
+            return readInt(frame, offset + 2);
+        }
+    }
+
+    // Delta implementation - binary state frames, but only every keyframeInterval-th one is
+    // complete (a regular TYPE_STATE frame). The ones in between carry only the fields that
+    // differ from a base frame the receiver already has:
+    //   [0] magic  [1] frame type  [2..3] sequence (low 16 bits)  [4] frames since the base
+    //   [5] change mask (bit 0 buttons, bits 1..4 left x, left y, right x, right y)
+    //   [6..] the changed fields as int16 (big endian), in mask order
+    // Chained deltas build on the previous frame, which is the smallest but needs every frame
+    // to arrive in order, as on a stream. Otherwise they build on the last keyframe, so a lost
+    // or late delta costs nothing and only a lost keyframe leaves the receiver waiting.
+    public static class DeltaCodec extends InputCodec {
+        public static final byte TYPE_DELTA = 0x02;
+        public static final int HEADER_SIZE = 6;
+        public static final int DEFAULT_KEYFRAME_INTERVAL = 32;
+        static final int FIELD_COUNT = 5;
+
+        private final int keyframeInterval;
+        private volatile boolean chained = false;
+        private final short[] keyframe = new short[FIELD_COUNT];
+        private final short[] previous = new short[FIELD_COUNT];
+        private final short[] fields = new short[FIELD_COUNT];
+        private boolean haveKeyframe = false;
+        private int keyframeSequence = 0;
+        private int previousSequence = 0;
+        private long keyframes = 0;
+        private long deltas = 0;
+
+        public DeltaCodec() {
+            this(DEFAULT_KEYFRAME_INTERVAL);
+        }
+
+        public DeltaCodec(int keyframeInterval) {
+            if (keyframeInterval < 1 || keyframeInterval > 255) {
+                throw new IllegalArgumentException("Keyframe interval must be 1..255, was " + keyframeInterval);
+            }
+            this.keyframeInterval = keyframeInterval;
+        }
+
+        // Build on the previous frame; only for transports that deliver every frame in order
+        public void setChained(boolean chained) {
+            this.chained = chained;
+        }
+
+        @Override
+        public int encodeButton(ControllerState state, int button, int sequence, byte[] out) {
+            return writeFrame(state, sequence, out);
+        }
+
+        @Override
+        public int encodeStick(ControllerState state, int stick, int sequence, byte[] out) {
+            return writeFrame(state, sequence, out);
+        }
+
+        @Override
+        public int encodeState(ControllerState state, int sequence, byte[] out) {
+            return writeFrame(state, sequence, out);
+        }
+
+        @Override
+        public void reset() {
+            haveKeyframe = false;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return BinaryCodec.FRAME_SIZE;
+        }
+
+        @Override
+        public String getCodecName() {
+            return "delta";
+        }
+
+        public long getKeyframeCount() {
+            return keyframes;
+        }
+
+        public long getDeltaCount() {
+            return deltas;
+        }
+
+        private int writeFrame(ControllerState state, int sequence, byte[] out) {
+            readFields(state, fields);
+            short[] base = chained ? previous : keyframe;
+            int distance = sequence - (chained ? previousSequence : keyframeSequence);
+            int mask = 0;
+            int changed = 0;
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                if (fields[i] != base[i]) {
+                    mask |= 1 << i;
+                    changed++;
+                }
+            }
+            // A delta as large as the full frame is not worth it, and starts a new keyframe
+            boolean key = !haveKeyframe || distance <= 0 || distance > 255
+                    || sequence - keyframeSequence >= keyframeInterval
+                    || HEADER_SIZE + 2 * changed >= BinaryCodec.FRAME_SIZE;
+            System.arraycopy(fields, 0, previous, 0, FIELD_COUNT);
+            previousSequence = sequence;
+            if (key) {
+                System.arraycopy(fields, 0, keyframe, 0, FIELD_COUNT);
+                keyframeSequence = sequence;
+                haveKeyframe = true;
+                keyframes++;
+                return BinaryCodec.writeStateFrame(state, sequence, out);
+            }
+            out[0] = BinaryCodec.MAGIC;
+            out[1] = TYPE_DELTA;
+            writeShort(out, 2, sequence);
+            out[4] = (byte) distance;
+            out[5] = (byte) mask;
+            int pos = HEADER_SIZE;
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    writeShort(out, pos, fields[i]);
+                    pos += 2;
+                }
+            }
+            deltas++;
+            return pos;
+        }
+
+        static void readFields(ControllerState state, short[] into) {
+            into[0] = (short) state.getButtons();
+            into[1] = ControllerState.quantizeAxis(state.getX(ControllerState.STICK_LEFT));
+            into[2] = ControllerState.quantizeAxis(state.getY(ControllerState.STICK_LEFT));
+            into[3] = ControllerState.quantizeAxis(state.getX(ControllerState.STICK_RIGHT));
+            into[4] = ControllerState.quantizeAxis(state.getY(ControllerState.STICK_RIGHT));
+        }
+
+        static void applyFields(short[] fields, ControllerState into) {
+            int buttons = fields[0] & 0xFFFF;
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                into.setButton(i, (buttons & (1 << i)) != 0);
+            }
+            into.setStick(ControllerState.STICK_LEFT,
+                    ControllerState.dequantizeAxis(fields[1]), ControllerState.dequantizeAxis(fields[2]));
+            into.setStick(ControllerState.STICK_RIGHT,
+                    ControllerState.dequantizeAxis(fields[3]), ControllerState.dequantizeAxis(fields[4]));
+        }
+
+        // Receiving side, as the server does it: keeps the last keyframe and the last frame
+        // applied, and rebuilds the full state from every delta that builds on one of them
+        public static class Decoder {
+            private final short[] keyframe = new short[FIELD_COUNT];
+            private final short[] last = new short[FIELD_COUNT];
+            private final short[] fields = new short[FIELD_COUNT];
+            private boolean haveKeyframe = false;
+            private int keyframeSequence = 0;
+            private int lastSequence = 0;
+            private long applied = 0;
+            private long dropped = 0;
+
+            // Applies a keyframe or delta to into. Returns false, leaving into alone, for a
+            // delta older than the last frame applied or one whose base is missing.
+            // Keyframes always apply: after a reconnect the sequence starts over with one
+            public boolean decode(byte[] frame, int offset, int length, ControllerState into) {
+                if (length < HEADER_SIZE || frame[offset] != BinaryCodec.MAGIC) {
+                    throw new IllegalArgumentException("Not a state frame");
+                }
+                byte type = frame[offset + 1];
+                int sequence;
+                if (type == BinaryCodec.TYPE_STATE) {
+                    sequence = readInt(frame, offset + 2);
+                    for (int i = 0; i < FIELD_COUNT; i++) {
+                        keyframe[i] = readShort(frame, offset + 6 + 2 * i);
+                    }
+                    System.arraycopy(keyframe, 0, fields, 0, FIELD_COUNT);
+                    keyframeSequence = sequence;
+                    haveKeyframe = true;
+                } else if (type == TYPE_DELTA) {
+                    // Full sequence number from the 16 bits sent, closest to the last one
+                    sequence = lastSequence + (short) (readShort(frame, offset + 2) - lastSequence);
+                    int base = sequence - (frame[offset + 4] & 0xFF);
+                    short[] from = base == lastSequence ? last : base == keyframeSequence ? keyframe : null;
+                    if (!haveKeyframe || from == null || sequence - lastSequence <= 0) {
+                        dropped++;
+                        return false;
+                    }
+                    System.arraycopy(from, 0, fields, 0, FIELD_COUNT);
+                    int mask = frame[offset + 5] & 0xFF;
+                    int pos = offset + HEADER_SIZE;
+                    for (int i = 0; i < FIELD_COUNT; i++) {
+                        if ((mask & (1 << i)) != 0) {
+                            fields[i] = readShort(frame, pos);
+                            pos += 2;
+                        }
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown frame type " + type);
+                }
+                applyFields(fields, into);
+                System.arraycopy(fields, 0, last, 0, FIELD_COUNT);
+                lastSequence = sequence;
+                applied++;
+                return true;
+            }
+
+            public long getApplied() {
+                return applied;
+            }
+
+            // Late frames and deltas whose base never arrived
+            public long getDropped() {
+                return dropped;
+            }
+        }
+    }
+
+    static void writeShort(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 8);
+        out[pos + 1] = (byte) value;
+    }
+
+    static void writeInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+    }
+
+    static short readShort(byte[] in, int pos) {
+        return (short) (((in[pos] & 0xFF) << 8) | (in[pos + 1] & 0xFF));
+    }
+
+    static int readInt(byte[] in, int pos) {
+        return ((in[pos] & 0xFF) << 24) | ((in[pos + 1] & 0xFF) << 16)
+                | ((in[pos + 2] & 0xFF) << 8) | (in[pos + 3] & 0xFF);
+    }
+
+    // Factory method to create codec instances
+    public static InputCodec create(String codecType) {
+        switch (codecType.toLowerCase()) {
+            case "binary":
+                return new BinaryCodec();
+            case "delta":
+                return new DeltaCodec();
+            case "text":
+            default:
+                return new TextCodec(); // Default to text
+        }
+    }
+}
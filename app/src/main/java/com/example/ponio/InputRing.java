@@ -0,0 +1,115 @@
+package com.example.ponio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded single-producer/single-consumer ring of button edges. Slots are preallocated
+// primitive arrays, so publishing neither allocates nor takes a lock. The producer is
+// the UI thread, the consumer is the sender thread. Analog input uses AnalogLane.
+public class InputRing {
+    private final int mask;
+    private final int[] buttons;
+    private final boolean[] pressed;
+    private final long[] publishNanos;
+    private final long[] originNanos;
+    private final long[] dispatchNanos;
+
+    // head: next slot the producer writes, tail: next slot the consumer reads
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedTail = 0; // producer-local view of tail
+    private final AtomicLong rejected = new AtomicLong();
+
+    public InputRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        buttons = new int[capacity];
+        pressed = new boolean[capacity];
+        publishNanos = new long[capacity];
+        originNanos = new long[capacity];
+        dispatchNanos = new long[capacity];
+    }
+
+    // Producer side
+
+    public boolean publishButton(int button, boolean isPressed) {
+        return publishButton(button, isPressed, 0, 0);
+    }
+
+    // origin/dispatch: MotionEvent and listener times for InputTracer, 0 if unknown
+    public boolean publishButton(int button, boolean isPressed, long origin, long dispatch) {
+        long h = head.get();
+        if (h - cachedTail > mask) {
+            cachedTail = tail.get();
+            if (h - cachedTail > mask) {
+                rejected.getAndIncrement();
+                return false;
+            }
+        }
+        int slot = (int) h & mask;
+        buttons[slot] = button;
+        pressed[slot] = isPressed;
+        publishNanos[slot] = System.nanoTime();
+        originNanos[slot] = origin;
+        dispatchNanos[slot] = dispatch;
+        // Volatile store: slot contents become visible before the new head, and the
+        // consumer's parked flag read afterwards cannot be reordered before it
+        head.set(h + 1);
+        return true;
+    }
+
+    // Consumer side: peek() returns the slot index of the oldest event or -1 when empty,
+    // read it with the accessors below, then release() it
+
+    public int peek() {
+        long t = tail.get();
+        if (t == head.get()) {
+            return -1;
+        }
+        return (int) t & mask;
+    }
+
+    public void release() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    public int getButton(int slot) {
+        return buttons[slot];
+    }
+
+    public boolean isPressed(int slot) {
+        return pressed[slot];
+    }
+
+    public long getPublishNanos(int slot) {
+        return publishNanos[slot];
+    }
+
+    public long getOriginNanos(int slot) {
+        return originNanos[slot];
+    }
+
+    public long getDispatchNanos(int slot) {
+        return dispatchNanos[slot];
+    }
+
+    // Metrics, safe from any thread
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    // Discards everything not yet consumed, consumer thread only
+    public void clear() {
+        tail.lazySet(head.get());
+    }
+}
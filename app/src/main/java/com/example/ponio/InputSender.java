@@ -0,0 +1,593 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Dedicated high priority thread that moves input to the wire. Input arrives in two
+// lanes: button edges are queued in order in the InputRing and never dropped, stick
+// positions are coalesced in the AnalogLane so only the newest one is ever sent.
+// Pending button edges always go out before pending analog data. The UI thread only
+// publishes; encoding, snapshot ticks and socket writes all happen here, away from
+// the executor used for connect/disconnect.
+public class InputSender implements Runnable {
+    private static final String TAG = "InputSender";
+    private static final int RING_CAPACITY = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // How a write reaches the transport: control messages as they are, input frames so the
+    // transport may repeat them, button edges so it makes sure they arrive
+    private static final int SEND_COMMAND = 0;
+    private static final int SEND_INPUT = 1;
+    private static final int SEND_RELIABLE = 2;
+
+    public interface Listener {
+        void onSendFailed(IOException e);
+    }
+
+    private final InputRing ring = new InputRing(RING_CAPACITY);
+    private final AnalogLane analog = new AnalogLane();
+    // Button state as the UI thread sees it, used if the ring ever overflows: the
+    // full mask is handed over instead, so no edge's final state is lost
+    private int producerButtons = 0;
+    private final AtomicInteger overflowButtons = new AtomicInteger();
+    private final AtomicBoolean overflowPending = new AtomicBoolean();
+    private final AtomicLong buttonOverflows = new AtomicLong();
+    // Rare control messages (CONNECT, DISCONNECT, ...), may come from any thread
+    private final ConcurrentLinkedQueue<byte[]> commands = new ConcurrentLinkedQueue<>();
+    // Held by the sender while it works, so attach/detach never race a write
+    private final Object writeLock = new Object();
+
+    private volatile ConnectionProtocol protocol;
+    private InputCodec codec;
+    private byte[] frameBuffer;
+    private Listener listener;
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean parked = false;
+    // When the write in progress started, 0 while not writing; lets a watchdog see a stalled socket
+    private volatile long writeStartedNanos = 0;
+
+    // Configuration, read by the sender thread
+    private volatile int sendMode = GamepadManager.SEND_MODE_EVENT;
+    private volatile int snapshotRateHz = 125;
+    private volatile long keepaliveIntervalMs = 1000;
+    // Upper bound on analog frames (event mode) or snapshot ticks per second, 0 = none
+    private volatile int rateLimitHz = 0;
+
+    // Sender thread state
+    private final ControllerState inputState = new ControllerState();
+    private final ControllerState snapshotState = new ControllerState();
+    private int frameSequence = 0;
+    private int activeMode = -1;
+    private boolean stateDirty = false;
+    private boolean resyncPending = false; // send the full state before anything else
+    private int pressedSinceTick = 0; // keeps taps shorter than one tick visible
+    // Trace times of the oldest input not yet in a snapshot
+    private long oldestPendingNanos = 0;
+    private long oldestOriginNanos = 0;
+    private long oldestDispatchNanos = 0;
+    private long nextTickNanos = 0;
+    private long lastSnapshotNanos = 0;
+    private int lastSnapshotButtons = 0;
+    private long nextAnalogNanos = 0; // stick frames are held back until then by the rate limit
+
+    // Metrics
+    // Stage times of input in the open batch, recorded once the batch is written
+    private final InputTracer tracer = new InputTracer();
+    private volatile int maxQueueDepth = 0;
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong snapshotsSent = new AtomicLong();
+    private final AtomicLong snapshotTicksSkipped = new AtomicLong();
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "PonioSender");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+
+    // Start sending to a freshly connected protocol, from a clean controller state
+    public void attach(ConnectionProtocol protocol, InputCodec codec) {
+        attach(protocol, codec, false);
+    }
+
+    // With resync, the state collected while no protocol was attached is kept and goes
+    // out as one full state frame first, so the server never sees a stale button
+    public void attach(ConnectionProtocol protocol, InputCodec codec, boolean resync) {
+        synchronized (writeLock) {
+            this.codec = codec;
+            codec.reset(); // the first frame on a new connection stands on its own
+            this.frameBuffer = new byte[codec.getMaxFrameSize()];
+            if (!resync) {
+                inputState.reset();
+            }
+            resyncPending = resync;
+            lastSnapshotButtons = -1; // the first snapshot always goes out reliably
+            frameSequence = 0;
+            activeMode = -1;
+            pressedSinceTick = 0;
+            oldestPendingNanos = 0;
+            commands.clear();
+            this.protocol = protocol;
+        }
+        wake();
+    }
+
+    // Stop using the protocol; returns once no write to it is in progress
+    public void detach() {
+        synchronized (writeLock) {
+            protocol = null;
+            commands.clear();
+        }
+    }
+
+    // Producer side, UI thread only: no allocation, no locks
+
+    public void publishButton(int button, boolean pressed) {
+        publishButton(button, pressed, 0, 0);
+    }
+
+    // originNanos/dispatchNanos: MotionEvent and listener dispatch times, 0 if unknown
+    public void publishButton(int button, boolean pressed, long originNanos, long dispatchNanos) {
+        if (pressed) {
+            producerButtons |= 1 << button;
+        } else {
+            producerButtons &= ~(1 << button);
+        }
+        // Once overflowed, keep using the mask until the sender caught up, so edges stay in order
+        if (overflowPending.get() || !ring.publishButton(button, pressed, originNanos, dispatchNanos)) {
+            overflowButtons.set(producerButtons);
+            overflowPending.set(true);
+            buttonOverflows.getAndIncrement();
+        }
+        wake();
+    }
+
+    public void publishStick(int stick, float x, float y) {
+        publishStick(stick, x, y, 0, 0);
+    }
+
+    public void publishStick(int stick, float x, float y, long originNanos, long dispatchNanos) {
+        analog.publish(stick, x, y, originNanos, dispatchNanos);
+        wake();
+    }
+
+    // Control messages, any thread
+    public void sendCommand(byte[] message) {
+        commands.offer(message);
+        wake();
+    }
+
+    private void wake() {
+        if (parked) {
+            Thread t = thread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    public void setSendMode(int mode) {
+        sendMode = mode;
+        wake();
+    }
+
+    public int getSendMode() {
+        return sendMode;
+    }
+
+    public void setSnapshotRate(int hz) {
+        if (hz <= 0) {
+            throw new IllegalArgumentException("Snapshot rate must be positive: " + hz);
+        }
+        snapshotRateHz = hz;
+        wake();
+    }
+
+    public int getSnapshotRate() {
+        return snapshotRateHz;
+    }
+
+    // Caps the analog frame rate in event mode and the tick rate in snapshot mode. Button
+    // edges are never held back; held stick positions coalesce like they do under load
+    public void setRateLimit(int hz) {
+        if (hz < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative: " + hz);
+        }
+        rateLimitHz = hz;
+        wake();
+    }
+
+    public int getRateLimit() {
+        return rateLimitHz;
+    }
+
+    public void setKeepaliveInterval(long intervalMs) {
+        keepaliveIntervalMs = intervalMs;
+    }
+
+    // Metrics
+
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    // Button edges that did not fit in the ring and were folded into a full state frame
+    public long getButtonOverflows() {
+        return buttonOverflows.get();
+    }
+
+    // Stick positions replaced by a newer one before they could be sent
+    public long getCoalescedAnalog() {
+        return analog.getCoalesced();
+    }
+
+    public LatencyHistogram getPublishToWireLatency() {
+        return tracer.getPublishToWire();
+    }
+
+    public InputTracer getTracer() {
+        return tracer;
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    public long getSnapshotsSent() {
+        return snapshotsSent.get();
+    }
+
+    public long getSnapshotTicksSkipped() {
+        return snapshotTicksSkipped.get();
+    }
+
+    // How long the current write has been blocked, 0 when no write is in progress
+    public long getWriteBlockedNanos(long nowNanos) {
+        long started = writeStartedNanos;
+        return started == 0 ? 0 : nowNanos - started;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Sender thread started");
+        while (running) {
+            boolean worked;
+            synchronized (writeLock) {
+                worked = process();
+            }
+            if (!worked) {
+                parked = true;
+                if (!hasPendingInput() && commands.isEmpty()) {
+                    LockSupport.parkNanos(this, idleNanos());
+                }
+                parked = false;
+            }
+        }
+        Log.d(TAG, "Sender thread stopped");
+    }
+
+    private boolean hasPendingInput() {
+        return ring.peek() != -1 || overflowPending.get() || (analog.hasPending() && !analogHeld(System.nanoTime()));
+    }
+
+    private boolean analogHeld(long now) {
+        return rateLimitHz > 0 && sendMode == GamepadManager.SEND_MODE_EVENT && now - nextAnalogNanos < 0;
+    }
+
+    private long idleNanos() {
+        if (protocol != null && sendMode == GamepadManager.SEND_MODE_SNAPSHOT) {
+            return Math.max(0, nextTickNanos - System.nanoTime());
+        }
+        if (protocol != null && analog.hasPending()) {
+            return Math.max(0, Math.min(IDLE_PARK_NANOS, nextAnalogNanos - System.nanoTime()));
+        }
+        return IDLE_PARK_NANOS;
+    }
+
+    // One pass over everything pending, returns false when there was nothing to do
+    private boolean process() {
+        ConnectionProtocol p = protocol;
+        if (p == null) {
+            foldPending();
+            return false;
+        }
+
+        // Everything found in one pass goes out as one batch, the transport decides how to write it
+        p.beginBatch();
+        boolean worked = drain(p);
+
+        // With a batch window, keep the batch open a little longer so input from the same
+        // dispatch cycle (two sticks and a button) shares one write
+        long window = p.getBatchWindowNanos();
+        if (worked && window > 0) {
+            long deadline = System.nanoTime() + window;
+            long remaining;
+            while (protocol == p && (remaining = deadline - System.nanoTime()) > 0) {
+                if (!hasPendingInput()) {
+                    parked = true;
+                    if (!hasPendingInput()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    parked = false;
+                }
+                drain(p);
+            }
+        }
+
+        if (protocol != p) {
+            return true; // a write failed, the protocol is gone
+        }
+        try {
+            writeStartedNanos = System.nanoTime();
+            p.endBatch();
+        } catch (IOException e) {
+            onWriteFailed(p, e);
+            return true;
+        } finally {
+            writeStartedNanos = 0;
+        }
+        tracer.onWritten();
+        return worked;
+    }
+
+    // No protocol: input is folded into the current state instead of being sent, so
+    // nothing piles up and a resumed connection can resync from it
+    private void foldPending() {
+        int slot;
+        while ((slot = ring.peek()) != -1) {
+            inputState.setButton(ring.getButton(slot), ring.isPressed(slot));
+            ring.release();
+        }
+        if (overflowPending.getAndSet(false)) {
+            int mask = overflowButtons.get();
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                inputState.setButton(i, (mask & (1 << i)) != 0);
+            }
+        }
+        for (int stick = 0; stick < ControllerState.STICK_COUNT; stick++) {
+            analog.take(stick, inputState);
+        }
+    }
+
+    private boolean drain(ConnectionProtocol p) {
+        boolean worked = false;
+        byte[] command;
+        while ((command = commands.poll()) != null) {
+            if (!write(p, command, command.length, SEND_COMMAND)) return true;
+            worked = true;
+        }
+
+        if (resyncPending) {
+            resyncPending = false;
+            worked = true;
+            if (!write(p, frameBuffer, codec.encodeState(inputState, frameSequence++, frameBuffer), true)) return true;
+        }
+
+        int mode = sendMode;
+        if (mode != activeMode) {
+            activeMode = mode;
+            stateDirty = true;
+            nextTickNanos = System.nanoTime();
+        }
+        boolean snapshot = mode == GamepadManager.SEND_MODE_SNAPSHOT;
+
+        int depth = ring.size();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+
+        // Button lane first: every edge, in order
+        int slot;
+        while ((slot = ring.peek()) != -1) {
+            int button = ring.getButton(slot);
+            boolean pressed = ring.isPressed(slot);
+            long published = ring.getPublishNanos(slot);
+            long origin = ring.getOriginNanos(slot);
+            long dispatch = ring.getDispatchNanos(slot);
+            ring.release();
+            worked = true;
+
+            inputState.setButton(button, pressed);
+            if (snapshot) {
+                if (pressed) {
+                    pressedSinceTick |= 1 << button;
+                }
+                markDirty(published, origin, dispatch);
+            } else {
+                long encodeStart = System.nanoTime();
+                // Codecs with a ready-made frame per edge skip encoding altogether
+                byte[] edge = codec.getButtonFrame(button, pressed);
+                boolean sent;
+                if (edge != null) {
+                    frameSequence++;
+                    sent = writeTraced(p, edge, edge.length, true, origin, dispatch, published, encodeStart);
+                } else {
+                    int length = codec.encodeButton(inputState, button, frameSequence++, frameBuffer);
+                    sent = writeTraced(p, frameBuffer, length, true, origin, dispatch, published, encodeStart);
+                }
+                if (!sent) return true;
+            }
+        }
+
+        // Ring overflowed: the producer's full button mask replaces the missing edges
+        if (overflowPending.getAndSet(false)) {
+            worked = true;
+            int mask = overflowButtons.get();
+            for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+                boolean pressed = (mask & (1 << i)) != 0;
+                if (snapshot && pressed && !inputState.isPressed(i)) {
+                    pressedSinceTick |= 1 << i;
+                }
+                inputState.setButton(i, pressed);
+            }
+            if (snapshot) {
+                markDirty(System.nanoTime(), 0, 0);
+            } else if (!write(p, frameBuffer, codec.encodeState(inputState, frameSequence++, frameBuffer), true)) {
+                return true;
+            }
+        }
+
+        // Analog lane: only the newest position of each stick
+        boolean analogHeld = analogHeld(System.nanoTime());
+        boolean analogSent = false;
+        for (int stick = 0; stick < ControllerState.STICK_COUNT && !analogHeld; stick++) {
+            if (!analog.take(stick, inputState)) {
+                continue;
+            }
+            analogSent = true;
+            worked = true;
+            long published = analog.getPublishNanos(stick);
+            long origin = analog.getOriginNanos(stick);
+            long dispatch = analog.getDispatchNanos(stick);
+            if (snapshot) {
+                markDirty(published, origin, dispatch);
+            } else {
+                long encodeStart = System.nanoTime();
+                int length = codec.encodeStick(inputState, stick, frameSequence++, frameBuffer);
+                if (!writeTraced(p, frameBuffer, length, false, origin, dispatch, published, encodeStart)) return true;
+            }
+        }
+        int limit = rateLimitHz;
+        if (analogSent && !snapshot && limit > 0) {
+            nextAnalogNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1) / limit;
+        }
+
+        if (snapshot && System.nanoTime() - nextTickNanos >= 0) {
+            sendSnapshot(p);
+            worked = true;
+        }
+        return worked;
+    }
+
+    private void markDirty(long publishedNanos, long originNanos, long dispatchNanos) {
+        stateDirty = true;
+        if (oldestPendingNanos == 0) {
+            oldestPendingNanos = publishedNanos;
+            oldestOriginNanos = originNanos;
+            oldestDispatchNanos = dispatchNanos;
+        }
+    }
+
+    // One tick: send the full state if it changed or a keepalive is due
+    private void sendSnapshot(ConnectionProtocol p) {
+        long now = System.nanoTime();
+        int limit = rateLimitHz;
+        int rate = limit > 0 ? Math.min(snapshotRateHz, limit) : snapshotRateHz;
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        nextTickNanos += period;
+        if (nextTickNanos - now < 0) {
+            // Fell behind, do not burst to catch up
+            nextTickNanos = now + period;
+        }
+
+        boolean keepaliveDue = now - lastSnapshotNanos >= TimeUnit.MILLISECONDS.toNanos(keepaliveIntervalMs);
+        if (!stateDirty && !keepaliveDue) {
+            snapshotTicksSkipped.getAndIncrement();
+            return;
+        }
+
+        // A button pressed and released within the tick is reported as pressed now
+        // and released on the next tick
+        snapshotState.copyFrom(inputState);
+        int tapped = pressedSinceTick & ~inputState.getButtons();
+        for (int i = 0; i < ControllerState.BUTTON_COUNT; i++) {
+            if ((tapped & (1 << i)) != 0) {
+                snapshotState.setButton(i, true);
+            }
+        }
+        pressedSinceTick = 0;
+        stateDirty = tapped != 0;
+
+        lastSnapshotNanos = now;
+        long published = oldestPendingNanos;
+        oldestPendingNanos = 0;
+        long encodeStart = System.nanoTime();
+        int length = codec.encodeState(snapshotState, frameSequence++, frameBuffer);
+        // Snapshots that change a button must arrive, the others are repeated anyway
+        boolean reliable = snapshotState.getButtons() != lastSnapshotButtons;
+        lastSnapshotButtons = snapshotState.getButtons();
+        boolean sent = published != 0
+                ? writeTraced(p, frameBuffer, length, reliable, oldestOriginNanos, oldestDispatchNanos, published, encodeStart)
+                : write(p, frameBuffer, length, reliable);
+        if (sent) {
+            snapshotsSent.getAndIncrement();
+        }
+    }
+
+    // Writes an encoded input frame and hands its stage times to the tracer
+    private boolean writeTraced(ConnectionProtocol p, byte[] data, int length, boolean reliable, long originNanos,
+                                long dispatchNanos, long publishedNanos, long encodeStartNanos) {
+        long encodeEnd = System.nanoTime();
+        if (!write(p, data, length, reliable)) {
+            return false;
+        }
+        tracer.onEncoded(originNanos, dispatchNanos, publishedNanos, encodeStartNanos, encodeEnd);
+        return true;
+    }
+
+    // Reliable for anything carrying button edges, so the transport can make sure it arrives
+    private boolean write(ConnectionProtocol p, byte[] data, int length, boolean reliable) {
+        return write(p, data, length, reliable ? SEND_RELIABLE : SEND_INPUT);
+    }
+
+    private boolean write(ConnectionProtocol p, byte[] data, int length, int kind) {
+        try {
+            writeStartedNanos = System.nanoTime();
+            if (kind == SEND_RELIABLE) {
+                p.sendReliable(data, 0, length);
+            } else if (kind == SEND_INPUT) {
+                p.sendInput(data, 0, length);
+            } else {
+                p.sendData(data, 0, length);
+            }
+            framesSent.getAndIncrement();
+            return true;
+        } catch (IOException e) {
+            onWriteFailed(p, e);
+            return false;
+        } finally {
+            writeStartedNanos = 0;
+        }
+    }
+
+    private void onWriteFailed(ConnectionProtocol p, IOException e) {
+        Log.e(TAG, "Failed to send via " + p.getProtocolName(), e);
+        protocol = null;
+        tracer.discardPending();
+        Listener l = listener;
+        if (l != null) {
+            l.onSendFailed(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.ponio;
+
+// Per-stage latency of input on its way from the touch screen to the socket. Every input
+// carries the time of its MotionEvent and of the listener dispatch; the sender adds the
+// encode and write times. All timestamps are System.nanoTime() based.
+public class InputTracer {
+    public static final int STAGE_INPUT = 0;    // MotionEvent time -> listener dispatch
+    public static final int STAGE_DISPATCH = 1; // listener dispatch -> published to the sender
+    public static final int STAGE_QUEUE = 2;    // published -> picked up by the sender
+    public static final int STAGE_ENCODE = 3;   // codec work
+    public static final int STAGE_WRITE = 4;    // encoded -> handed to the socket
+    public static final int STAGE_TOTAL = 5;    // MotionEvent time -> handed to the socket
+    public static final int STAGE_COUNT = 6;
+
+    public static final String[] STAGE_NAMES = {
+            "input", "dispatch", "queue", "encode", "write", "total"
+    };
+
+    private static final int MAX_PENDING = 256;
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_COUNT];
+    private final LatencyHistogram publishToWire = new LatencyHistogram();
+
+    // Inputs encoded into the open batch, sender thread only
+    private final long[] origin = new long[MAX_PENDING];
+    private final long[] dispatch = new long[MAX_PENDING];
+    private final long[] enqueue = new long[MAX_PENDING];
+    private final long[] encodeStart = new long[MAX_PENDING];
+    private final long[] encodeEnd = new long[MAX_PENDING];
+    private int pending = 0;
+
+    public InputTracer() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    // Sender thread: an input was encoded; 0 for a timestamp that is not known
+    void onEncoded(long originNanos, long dispatchNanos, long enqueueNanos, long encodeStartNanos, long encodeEndNanos) {
+        if (pending == MAX_PENDING) {
+            onWritten();
+        }
+        origin[pending] = originNanos;
+        dispatch[pending] = dispatchNanos;
+        enqueue[pending] = enqueueNanos;
+        encodeStart[pending] = encodeStartNanos;
+        encodeEnd[pending] = encodeEndNanos;
+        pending++;
+    }
+
+    // Sender thread: everything encoded so far has reached the socket
+    void onWritten() {
+        long now = System.nanoTime();
+        for (int i = 0; i < pending; i++) {
+            if (origin[i] != 0 && dispatch[i] != 0) {
+                stages[STAGE_INPUT].record(dispatch[i] - origin[i]);
+            }
+            if (dispatch[i] != 0) {
+                stages[STAGE_DISPATCH].record(enqueue[i] - dispatch[i]);
+            }
+            stages[STAGE_QUEUE].record(encodeStart[i] - enqueue[i]);
+            stages[STAGE_ENCODE].record(encodeEnd[i] - encodeStart[i]);
+            stages[STAGE_WRITE].record(now - encodeEnd[i]);
+            if (origin[i] != 0) {
+                stages[STAGE_TOTAL].record(now - origin[i]);
+            }
+            publishToWire.record(now - enqueue[i]);
+        }
+        pending = 0;
+    }
+
+    // Sender thread: the batch never made it to the socket
+    void discardPending() {
+        pending = 0;
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public LatencyHistogram getPublishToWire() {
+        return publishToWire;
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : stages) {
+            stage.reset();
+        }
+        publishToWire.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (i > 0) sb.append('\n');
+            sb.append(STAGE_NAMES[i]).append(": ").append(stages[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.ponio;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Keeps KnownServers across app starts in SharedPreferences, as one string so a save is a
+// single write
+public class KnownServerStore {
+    private static final String PREFS = "known_servers";
+    private static final String KEY_SERVERS = "servers";
+
+    private final SharedPreferences prefs;
+
+    public KnownServerStore(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    public KnownServers load() {
+        return KnownServers.decode(prefs.getString(KEY_SERVERS, null));
+    }
+
+    // Asynchronous, safe to call from the UI thread
+    public void save(KnownServers servers) {
+        prefs.edit().putString(KEY_SERVERS, servers.encode()).apply();
+    }
+}
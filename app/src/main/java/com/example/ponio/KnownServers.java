@@ -0,0 +1,124 @@
+package com.example.ponio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Servers this device connected to before, with the handshake RTT and time of the last
+// successful connection. Most sessions go back to the same PC, so the most recent success
+// is the best guess for where to connect at startup; hosts that kept failing are skipped
+// until they work again. Kept small and most recent first; KnownServerStore persists it.
+public class KnownServers {
+    public static final int MAX_ENTRIES = 8;
+    // Not worth a speculative connect any more: probably a different network by now
+    public static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    public static final int MAX_FAILURES = 3;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public static class Entry {
+        public final ServerDiscovery.DiscoveredServer server;
+        public long rttNanos; // 0 if the server did not answer a greeting (legacy)
+        public long lastSuccessMillis;
+        public int failures; // in a row, since the last success
+
+        Entry(ServerDiscovery.DiscoveredServer server, long rttNanos, long lastSuccessMillis, int failures) {
+            this.server = server;
+            this.rttNanos = rttNanos;
+            this.lastSuccessMillis = lastSuccessMillis;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return server + String.format(Locale.US, " rtt=%.2fms", rttNanos / 1e6) + " failures=" + failures;
+        }
+    }
+
+    public synchronized void recordSuccess(ServerDiscovery.DiscoveredServer server, long rttNanos, long nowMillis) {
+        Entry entry = remove(server);
+        entries.add(0, new Entry(server, rttNanos > 0 ? rttNanos : entry != null ? entry.rttNanos : 0, nowMillis, 0));
+        while (entries.size() > MAX_ENTRIES) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    public synchronized void recordFailure(ServerDiscovery.DiscoveredServer server) {
+        Entry entry = find(server);
+        if (entry != null) {
+            entry.failures++;
+        }
+    }
+
+    // Most recently used server that is neither too old nor failing, null if there is none
+    public synchronized Entry best(long nowMillis) {
+        for (Entry entry : entries) {
+            if (entry.failures < MAX_FAILURES && nowMillis - entry.lastSuccessMillis <= MAX_AGE_MS) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized Entry find(ServerDiscovery.DiscoveredServer server) {
+        for (Entry entry : entries) {
+            if (entry.server.equals(server)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    private Entry remove(ServerDiscovery.DiscoveredServer server) {
+        Entry entry = find(server);
+        if (entry != null) {
+            entries.remove(entry);
+        }
+        return entry;
+    }
+
+    // One line per server: name, ip, port, protocol, rtt, last success, failures. Tabs and
+    // line breaks in names are replaced, nothing else in there can contain them.
+    public synchronized String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            ServerDiscovery.DiscoveredServer server = entry.server;
+            sb.append(server.name.replace('\t', ' ').replace('\n', ' ')).append('\t')
+                    .append(server.ipAddress).append('\t')
+                    .append(server.port).append('\t')
+                    .append(server.protocol).append('\t')
+                    .append(entry.rttNanos).append('\t')
+                    .append(entry.lastSuccessMillis).append('\t')
+                    .append(entry.failures).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Lines that do not parse, e.g. written by a future version, are skipped
+    public static KnownServers decode(String encoded) {
+        KnownServers known = new KnownServers();
+        if (encoded == null) {
+            return known;
+        }
+        for (String line : encoded.split("\n")) {
+            String[] parts = line.split("\t");
+            if (parts.length < 7 || known.entries.size() >= MAX_ENTRIES) {
+                continue;
+            }
+            try {
+                ServerDiscovery.DiscoveredServer server = new ServerDiscovery.DiscoveredServer(
+                        parts[0], parts[1], Integer.parseInt(parts[2]), parts[3]);
+                known.entries.add(new Entry(server, Long.parseLong(parts[4]), Long.parseLong(parts[5]),
+                        Integer.parseInt(parts[6])));
+            } catch (NumberFormatException e) {
+                // skip
+            }
+        }
+        return known;
+    }
+}
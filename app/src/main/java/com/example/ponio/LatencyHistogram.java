@@ -0,0 +1,95 @@
+package com.example.ponio;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed memory log-bucketed histogram of nanosecond durations. Each power of two is
+// split into 8 linear sub-buckets, so any percentile is within ~12% of the true value.
+// Recording is lock-free and never allocates; reads may run on any thread.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^40 ns (about 18 minutes), anything larger lands in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray totals = new AtomicLongArray(3); // count, sum, max
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.getAndIncrement(bucketFor(nanos));
+        totals.getAndIncrement(0);
+        totals.getAndAdd(1, nanos);
+        long max;
+        while (nanos > (max = totals.get(2))) {
+            if (totals.compareAndSet(2, max, nanos)) break;
+        }
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    public long getMaxNanos() {
+        return totals.get(2);
+    }
+
+    public long getMeanNanos() {
+        long count = totals.get(0);
+        return count == 0 ? 0 : totals.get(1) / count;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0..100)
+    public long getPercentileNanos(double percentile) {
+        long count = totals.get(0);
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), totals.get(2));
+            }
+        }
+        return totals.get(2);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            totals.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d p50=%.2fms p99=%.2fms max=%.2fms", getCount(),
+                getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+    }
+
+    static int bucketFor(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
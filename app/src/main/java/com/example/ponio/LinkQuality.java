@@ -0,0 +1,84 @@
+package com.example.ponio;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// One number for how well the current transport carries input, 0 (useless) to 100 (clean),
+// from the smoothed RTT and ping loss. The link counts as degraded once the score stayed
+// below the threshold for several samples in a row, so a single spike never triggers anything.
+public class LinkQuality {
+    private long goodRttNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long badRttNanos = TimeUnit.MILLISECONDS.toNanos(300);
+    private int threshold = 40;
+    private int degradedSamples = 5;
+
+    private long smoothedRttNanos = 0;
+    private double lossRate = 0;
+    private int score = 100;
+    private int samplesBelow = 0;
+
+    // RTT at or below good costs nothing, at bad and above the score drops to 0
+    public synchronized void setRttRange(long goodMs, long badMs) {
+        if (badMs <= goodMs) {
+            throw new IllegalArgumentException("Invalid RTT range " + goodMs + ".." + badMs + "ms");
+        }
+        goodRttNanos = TimeUnit.MILLISECONDS.toNanos(goodMs);
+        badRttNanos = TimeUnit.MILLISECONDS.toNanos(badMs);
+    }
+
+    // Degraded after this many samples in a row scored below the threshold
+    public synchronized void setThreshold(int threshold, int samples) {
+        this.threshold = threshold;
+        this.degradedSamples = samples;
+    }
+
+    public synchronized void reset() {
+        smoothedRttNanos = 0;
+        lossRate = 0;
+        score = 100;
+        samplesBelow = 0;
+    }
+
+    public synchronized void onRttSample(long rttNanos) {
+        smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + (rttNanos - smoothedRttNanos) / 8;
+        lossRate += (0 - lossRate) / 8;
+        update();
+    }
+
+    public synchronized void onLoss() {
+        lossRate += (1 - lossRate) / 8;
+        update();
+    }
+
+    private void update() {
+        double rttFactor = 1;
+        if (smoothedRttNanos > goodRttNanos) {
+            rttFactor = Math.max(0, (double) (badRttNanos - smoothedRttNanos) / (badRttNanos - goodRttNanos));
+        }
+        score = (int) Math.round(100 * rttFactor * (1 - lossRate));
+        samplesBelow = score < threshold ? samplesBelow + 1 : 0;
+    }
+
+    public synchronized int getScore() {
+        return score;
+    }
+
+    public synchronized boolean isDegraded() {
+        return samplesBelow >= degradedSamples;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    // Smoothed share of lost pings, 0..1
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "score=" + score + " rtt=" + String.format(Locale.US, "%.1fms", smoothedRttNanos / 1e6)
+                + " loss=" + String.format(Locale.US, "%.1f%%", lossRate * 100);
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.ponio;
+
+import java.util.Locale;
+
+// Snapshot of the link quality measured by PingMonitor
+public class LinkStats {
+    public long pingsSent;
+    public long pongsReceived;
+    public long pingsLost;
+    public double lossPercent;
+
+    public long rttMinNanos;
+    public long rttP50Nanos;
+    public long rttP99Nanos;
+    public long rttMaxNanos;
+    public long smoothedRttNanos;
+
+    public long jitterP50Nanos;
+    public long jitterP99Nanos;
+    public long smoothedJitterNanos;
+
+    // lossBursts[n] = how often exactly n pings in a row were lost (last bucket: n or more)
+    public long[] lossBursts;
+    public long lastPongNanos;
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "rtt p50=%.1fms p99=%.1fms, jitter p50=%.1fms, loss=%.1f%% (%d/%d)",
+                rttP50Nanos / 1e6, rttP99Nanos / 1e6, jitterP50Nanos / 1e6,
+                lossPercent, pingsLost, pingsSent);
+    }
+}
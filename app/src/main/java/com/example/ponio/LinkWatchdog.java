@@ -0,0 +1,129 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Declares the link dead long before the OS would. Two checks run on a timer of their own:
+// - keepalive: the server answers our pings, so once it answered at all, silence longer
+//   than the keepalive timeout means the peer is gone (asleep, out of Wi-Fi range, ...)
+// - write deadline: a single write blocked longer than the deadline means the socket is
+//   stalled; closing it is the only way to get the sender thread back
+// Servers that never answer a ping are not subject to the keepalive check.
+public class LinkWatchdog {
+    private static final String TAG = "LinkWatchdog";
+
+    public interface Listener {
+        void onLinkDead(String reason);
+    }
+
+    private final InputSender sender;
+    private final Listener listener;
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> task;
+
+    // Phones in Wi-Fi power save park the radio between beacons and routinely hold frames
+    // back for several hundred ms, longer on a congested channel. A few missed pings or a
+    // write that waits out such a stall is not a dead link, so the defaults sit well above
+    // it: 2 s of silence is still ~20 unanswered pings, and a healthy socket never blocks a
+    // single write for 1.5 s. Callers that want faster detection can tighten them.
+    public static final long DEFAULT_KEEPALIVE_TIMEOUT_MS = 2000;
+    public static final long DEFAULT_WRITE_DEADLINE_MS = 1500;
+
+    private volatile long keepaliveTimeoutMs = DEFAULT_KEEPALIVE_TIMEOUT_MS;
+    private volatile long writeDeadlineMs = DEFAULT_WRITE_DEADLINE_MS;
+
+    private volatile boolean armed = false;
+    private volatile long lastInboundNanos = 0;
+    private volatile boolean fired = false;
+    // How long the link had been silent or blocked when it was declared dead
+    private final LatencyHistogram detectionDelay = new LatencyHistogram();
+
+    public LinkWatchdog(InputSender sender, Listener listener) {
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    public void setKeepaliveTimeout(long timeoutMs) {
+        keepaliveTimeoutMs = timeoutMs;
+    }
+
+    public long getKeepaliveTimeout() {
+        return keepaliveTimeoutMs;
+    }
+
+    public void setWriteDeadline(long deadlineMs) {
+        writeDeadlineMs = deadlineMs;
+    }
+
+    public long getWriteDeadline() {
+        return writeDeadlineMs;
+    }
+
+    // Watch a fresh connection; the keepalive check arms with its first inbound message
+    public synchronized void start() {
+        stop();
+        armed = false;
+        fired = false;
+        lastInboundNanos = System.nanoTime();
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PonioWatchdog");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        long period = Math.max(5, Math.min(keepaliveTimeoutMs, writeDeadlineMs) / 5);
+        task = timer.scheduleAtFixedRate(() -> check(System.nanoTime()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    public synchronized void shutdown() {
+        stop();
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    // Any message from the server proves it is alive, reader thread
+    public void onInbound() {
+        lastInboundNanos = System.nanoTime();
+        armed = true;
+    }
+
+    void check(long nowNanos) {
+        if (fired) {
+            return;
+        }
+        long blocked = sender.getWriteBlockedNanos(nowNanos);
+        if (blocked > TimeUnit.MILLISECONDS.toNanos(writeDeadlineMs)) {
+            declareDead(blocked, "Write blocked for " + blocked / 1_000_000 + "ms");
+            return;
+        }
+        long silence = nowNanos - lastInboundNanos;
+        if (armed && silence > TimeUnit.MILLISECONDS.toNanos(keepaliveTimeoutMs)) {
+            declareDead(silence, "No answer from server for " + silence / 1_000_000 + "ms");
+        }
+    }
+
+    private void declareDead(long delayNanos, String reason) {
+        fired = true;
+        detectionDelay.record(delayNanos);
+        Log.w(TAG, reason);
+        listener.onLinkDead(reason);
+    }
+
+    public LatencyHistogram getDetectionDelay() {
+        return detectionDelay;
+    }
+}
@@ -1,10 +1,13 @@
 package com.example.ponio;
 
 import android.Manifest;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.RadioGroup;
@@ -21,9 +24,11 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.textfield.TextInputEditText;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_CODE = 100;
 	
 	// android inbuilt UIs veriabls dicleration
@@ -36,25 +41,118 @@ public class MainActivity extends AppCompatActivity {
     private ProgressBar scanProgress;
     private TextView scanStatus;
     private RadioGroup protocolGroup;
+    // Set while the radio follows a server's protocol, so the listener does not switch again
+    private boolean restoringProtocol = false;
 
 	// custom writen classes veriabls dicleration
 	private ServerListAdapter adapter;
 	private ServerDiscovery serverDiscovery;
+    private ServerCache serverCache;
+    private ServerAnnouncementListener announcementListener;
+    private ServerProber serverProber;
     private GamepadManager gamepadManager;
+    private KnownServerStore knownServerStore;
+    private KnownServers knownServers;
+    private SpeculativeConnect speculativeConnect;
+    private long coldStartNanos;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        coldStartNanos = System.nanoTime();
 		checkPermissions();
 
+        // Reconnect to the last used PC while the layout is still being inflated
+        gamepadManager = GamepadManager.getInstance();
+        knownServerStore = new KnownServerStore(this);
+        knownServers = knownServerStore.load();
+        speculativeConnect = new SpeculativeConnect(gamepadManager, knownServers);
+        ServerDiscovery.DiscoveredServer speculative = null;
+        if (savedInstanceState == null) {
+            speculative = speculativeConnect.start(speculativeListener);
+        }
+
         setContentView(R.layout.activity_main);
 
-        gamepadManager = GamepadManager.getInstance();
         serverDiscovery = new ServerDiscovery();
+        serverCache = ServerCache.getInstance();
+        announcementListener = new ServerAnnouncementListener(serverCache,
+                (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE));
+        serverProber = new ServerProber((server, result) ->
+                runOnUiThread(() -> adapter.updateLatency(server, result)));
 
         initializeViews();
         setupConnectionControls();
         setupAutoDiscovery();
+
+        if (speculative != null) {
+            serverIpInput.setText(speculative.ipAddress);
+            serverPortInput.setText(String.valueOf(speculative.port));
+            updateProtocolSelection(speculative.protocol);
+        }
+    }
+
+    private final SpeculativeConnect.Listener speculativeListener = new SpeculativeConnect.Listener() {
+        @Override
+        public void onReady(ServerDiscovery.DiscoveredServer server, long elapsedNanos) {
+            knownServerStore.save(knownServers);
+            runOnUiThread(() -> {
+                if (isFinishing()) {
+                    return;
+                }
+                statusText.setText("Connected to " + server.name);
+                statusText.setTextColor(getColor(android.R.color.holo_green_dark));
+                connectButton.setText("Disconnect");
+                openController("reconnected to last server");
+            });
+        }
+
+        @Override
+        public void onFailed(ServerDiscovery.DiscoveredServer server, String reason) {
+            knownServerStore.save(knownServers);
+            runOnUiThread(() -> {
+                if (isFinishing()) {
+                    return;
+                }
+                connectButton.setText("Connect");
+                statusText.setText("Not Connected");
+                statusText.setTextColor(getColor(android.R.color.darker_gray));
+                if (adapter.getItemCount() == 0) {
+                    scanForServers();
+                }
+            });
+        }
+    };
+
+    // The user chose a server themselves, the speculative attempt must not win the race
+    private void abandonSpeculation() {
+        if (speculativeConnect.isPending()) {
+            speculativeConnect.cancel();
+        }
+    }
+
+    private void openController(String how) {
+        if (coldStartNanos != 0) {
+            Log.d(TAG, "Controller ready " + (System.nanoTime() - coldStartNanos) / 1_000_000
+                    + "ms after start, " + how);
+            coldStartNanos = 0;
+        }
+        startActivity(new Intent(this, ControllerActivity.class));
+    }
+
+    // Remembers a server connected to by hand, under its announced name when there is one
+    private void rememberServer(String ip, int port) {
+        String name = ip;
+        for (ServerDiscovery.DiscoveredServer cached : serverCache.getServers()) {
+            if (cached.ipAddress.equals(ip) && cached.port == port) {
+                name = cached.name;
+            }
+        }
+        ServerDiscovery.DiscoveredServer server = new ServerDiscovery.DiscoveredServer(
+                name, ip, port, gamepadManager.getCurrentProtocol());
+        Handshake.Result result = gamepadManager.getHandshakeResult();
+        knownServers.recordSuccess(server, result != null ? result.rttNanos : 0, System.currentTimeMillis());
+        knownServerStore.save(knownServers);
     }
 
     private void initializeViews() {
@@ -75,6 +173,7 @@ public class MainActivity extends AppCompatActivity {
 
         serverListView.setLayoutManager(new LinearLayoutManager(this));
         adapter = new ServerListAdapter(server -> {
+            abandonSpeculation();
             serverIpInput.setText(server.ipAddress);
             serverPortInput.setText(String.valueOf(server.port));
 
@@ -90,13 +189,16 @@ public class MainActivity extends AppCompatActivity {
 
     private void setupConnectionControls() {
         protocolGroup.setOnCheckedChangeListener((group, checkedId) -> {
+            if (restoringProtocol) {
+                return;
+            }
             String protocol = "tcp";
             if (checkedId == R.id.radioTcp) {
                 protocol = "tcp";
+            } else if (checkedId == R.id.radioUdp) {
+                protocol = "udp";
             }
-	  // else if (checkedId == R.id.radioUdp) {
-	  //              protocol = "udp";
-	  //          } else if (checkedId == R.id.radioBluetooth) {
+	  // else if (checkedId == R.id.radioBluetooth) {
 	  //              protocol = "bluetooth";
 	  //          }
 
@@ -110,10 +212,28 @@ public class MainActivity extends AppCompatActivity {
 
 		// connecting to server event
         connectButton.setOnClickListener(v -> {
-            if (!gamepadManager.isConnected) {
+            if (speculativeConnect.isPending()) {
+                abandonSpeculation();
+                connectButton.setText("Connect");
+                statusText.setText("Not Connected");
+                statusText.setTextColor(getColor(android.R.color.darker_gray));
+                return;
+            }
+            if (!gamepadManager.isSessionActive()) {
                 String ip = serverIpInput.getText().toString().trim();
                 String portStr = serverPortInput.getText().toString().trim();
 
+                // Nothing typed: take the server that answered probes best
+                ServerDiscovery.DiscoveredServer best = adapter.getBest();
+                if (ip.isEmpty() && best != null) {
+                    serverIpInput.setText(best.ipAddress);
+                    serverPortInput.setText(String.valueOf(best.port));
+                    gamepadManager.setProtocol(best.protocol);
+                    updateProtocolSelection(best.protocol);
+                    connectToServer(best.ipAddress, best.port);
+                    return;
+                }
+
                 if (ip.isEmpty() || portStr.isEmpty()) {
                     Toast.makeText(
 						this,
@@ -145,6 +265,44 @@ public class MainActivity extends AppCompatActivity {
         scanButton.setOnClickListener(v -> {
             scanForServers();
         });
+
+        // Announcements and scans both land in the cache, the list follows the cache
+        serverCache.setListener(new ServerCache.Listener() {
+            @Override
+            public void onServerAdded(ServerDiscovery.DiscoveredServer server) {
+                runOnUiThread(() -> adapter.addServer(server));
+                serverProber.add(server);
+            }
+
+            @Override
+            public void onServerExpired(ServerDiscovery.DiscoveredServer server) {
+                serverProber.remove(server);
+                runOnUiThread(() -> adapter.removeServer(server));
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Whatever announced itself recently is shown right away, no scan needed
+        adapter.setServers(new ArrayList<>(serverCache.getServers()));
+        for (ServerDiscovery.DiscoveredServer server : serverCache.getServers()) {
+            serverProber.add(server);
+        }
+        serverProber.start();
+        announcementListener.start();
+        if (adapter.getItemCount() == 0 && !speculativeConnect.isPending()) {
+            scanForServers();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        announcementListener.stop();
+        serverProber.stop();
+        serverDiscovery.stopScan();
     }
 
     private void scanForServers() {
@@ -152,15 +310,12 @@ public class MainActivity extends AppCompatActivity {
         scanProgress.setVisibility(View.VISIBLE);
         scanStatus.setText("Scanning for Ponio servers...");
         scanStatus.setVisibility(View.VISIBLE);
-        adapter.clear();
 
         serverDiscovery.scanForServers(new ServerDiscovery.ScanCallback() {
             @Override
             public void onServerFound(ServerDiscovery.DiscoveredServer server) {
-                runOnUiThread(() -> {
-                    adapter.addServer(server);
-                    scanStatus.setText("Found: " + server.name);
-                });
+                serverCache.put(server);
+                runOnUiThread(() -> scanStatus.setText("Found: " + server.name));
             }
 
             @Override
@@ -169,10 +324,11 @@ public class MainActivity extends AppCompatActivity {
                     scanButton.setEnabled(true);
                     scanProgress.setVisibility(View.GONE);
 
-                    if (servers.isEmpty()) {
+                    // Servers that only announced themselves count too
+                    if (adapter.getItemCount() == 0) {
                         scanStatus.setText("No servers found. Make sure Ponio server is running.");
                     } else {
-                        scanStatus.setText("Found " + servers.size() + " server(s). Tap to connect.");
+                        scanStatus.setText("Found " + adapter.getItemCount() + " server(s). Tap to connect.");
                     }
                 });
             }
@@ -204,10 +360,10 @@ public class MainActivity extends AppCompatActivity {
                     connectButton.setText("Disconnect");
                     connectButton.setEnabled(true);
                     Toast.makeText(MainActivity.this, "Connected successfully", Toast.LENGTH_SHORT).show();
-                    
+                    rememberServer(ip, port);
+
                     // Navigate to controller screen
-                    Intent intent = new Intent(MainActivity.this, ControllerActivity.class);
-                    startActivity(intent);
+                    openController("connected by hand");
                 });
             }
 
@@ -238,17 +394,19 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateProtocolSelection(String protocol) {
+        restoringProtocol = true;
         switch (protocol.toLowerCase()) {
             case "tcp":
                 protocolGroup.check(R.id.radioTcp);
                 break;
-            // case "udp":
-            //     protocolGroup.check(R.id.radioUdp);
-            //     break;
+            case "udp":
+                protocolGroup.check(R.id.radioUdp);
+                break;
             // case "bluetooth":
             //     protocolGroup.check(R.id.radioBluetooth);
             //     break;
         }
+        restoringProtocol = false;
     }
 
     private void checkPermissions() {
@@ -310,6 +468,10 @@ public class MainActivity extends AppCompatActivity {
             connectButton.setText("Disconnect");
             statusText.setText("Connected via " + gamepadManager.getCurrentProtocol().toUpperCase());
             statusText.setTextColor(getColor(android.R.color.holo_green_dark));
+        } else if (speculativeConnect.isPending()) {
+            connectButton.setText("Cancel");
+            statusText.setText("Reconnecting to " + serverIpInput.getText() + "...");
+            statusText.setTextColor(getColor(android.R.color.holo_orange_dark));
         } else {
             connectButton.setText("Connect");
             statusText.setText("Not Connected");
@@ -323,7 +485,8 @@ public class MainActivity extends AppCompatActivity {
         if (serverDiscovery != null) {
             serverDiscovery.cleanup();
         }
-        if (isFinishing() && gamepadManager.isConnected) {
+        serverCache.setListener(null);
+        if (isFinishing() && gamepadManager.isSessionActive()) {
             gamepadManager.cleanup();
         }
     }
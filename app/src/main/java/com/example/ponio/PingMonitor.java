@@ -0,0 +1,248 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Periodic ping/pong over the active connection. Sends "PING:<id>:<nanos>", the server
+// echoes it back as "PONG:<id>:<nanos>". RTT and jitter go into fixed memory histograms,
+// pings without a pong inside the timeout count as lost.
+public class PingMonitor {
+    private static final String TAG = "PingMonitor";
+    private static final byte[] PONG_PREFIX = "PONG:".getBytes();
+    // Pings tracked at once, older ones are lost by the time their slot is reused
+    private static final int WINDOW = 64;
+    private static final int MAX_BURST = 16;
+
+    // How ping messages reach the server
+    public interface Transport {
+        void send(byte[] message);
+    }
+
+    // Every RTT sample and every lost ping as it happens, e.g. for rate control
+    public interface SampleListener {
+        void onRttSample(long rttNanos);
+        void onPingLost();
+    }
+
+    private final Transport transport;
+    private volatile SampleListener sampleListener;
+    private ScheduledExecutorService timer;
+    private ScheduledFuture<?> task;
+    private long intervalMs = 500;
+    private long timeoutMs = 1000;
+
+    // In flight pings, indexed by id % WINDOW
+    private final long[] sentIds = new long[WINDOW];
+    private final long[] sentNanos = new long[WINDOW];
+    private final boolean[] outstanding = new boolean[WINDOW];
+    private long nextId = 1;
+
+    private final LatencyHistogram rtt = new LatencyHistogram();
+    private final LatencyHistogram jitter = new LatencyHistogram();
+    // Lengths of runs of consecutive lost pings, the last bucket is MAX_BURST or more
+    private final long[] lossBursts = new long[MAX_BURST + 1];
+    private int currentBurst = 0;
+    private long sent = 0;
+    private long received = 0;
+    private long lost = 0;
+    private long lastRttNanos = -1;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long smoothedRttNanos = 0;
+    private long smoothedJitterNanos = 0;
+    private long lastPongNanos = 0;
+
+    public PingMonitor(Transport transport) {
+        this.transport = transport;
+    }
+
+    public synchronized void setInterval(long intervalMs) {
+        this.intervalMs = intervalMs;
+        if (task != null) {
+            start();
+        }
+    }
+
+    public void setSampleListener(SampleListener listener) {
+        sampleListener = listener;
+    }
+
+    public synchronized void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public synchronized void start() {
+        stop();
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PonioPing");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        task = timer.scheduleAtFixedRate(this::tick, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        for (int i = 0; i < WINDOW; i++) {
+            outstanding[i] = false;
+        }
+    }
+
+    public synchronized void shutdown() {
+        stop();
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
+
+    public synchronized void reset() {
+        rtt.reset();
+        jitter.reset();
+        for (int i = 0; i < lossBursts.length; i++) {
+            lossBursts[i] = 0;
+        }
+        currentBurst = 0;
+        sent = 0;
+        received = 0;
+        lost = 0;
+        lastRttNanos = -1;
+        minRttNanos = Long.MAX_VALUE;
+        smoothedRttNanos = 0;
+        smoothedJitterNanos = 0;
+    }
+
+    private void tick() {
+        byte[] message;
+        synchronized (this) {
+            long now = System.nanoTime();
+            expireLost(now);
+
+            long id = nextId++;
+            int slot = (int) (id % WINDOW);
+            if (outstanding[slot]) {
+                markLost(slot);
+            }
+            sentIds[slot] = id;
+            sentNanos[slot] = now;
+            outstanding[slot] = true;
+            sent++;
+            message = ("PING:" + id + ":" + now + "\n").getBytes();
+        }
+        transport.send(message);
+    }
+
+    // Feed every server message here; returns true if it was a pong
+    public boolean onMessage(byte[] data, int offset, int length) {
+        if (!startsWith(data, offset, length, PONG_PREFIX)) {
+            return false;
+        }
+        long now = System.nanoTime();
+        int pos = offset + PONG_PREFIX.length;
+        int end = offset + length;
+        long id = 0;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            id = id * 10 + (data[pos++] - '0');
+        }
+        onPong(id, now);
+        return true;
+    }
+
+    synchronized void onPong(long id, long nowNanos) {
+        lastPongNanos = nowNanos;
+        int slot = (int) (id % WINDOW);
+        if (!outstanding[slot] || sentIds[slot] != id) {
+            Log.d(TAG, "Ignoring late or unknown pong " + id);
+            return;
+        }
+        outstanding[slot] = false;
+        received++;
+        if (currentBurst > 0) {
+            lossBursts[Math.min(currentBurst, MAX_BURST)]++;
+            currentBurst = 0;
+        }
+
+        long sample = nowNanos - sentNanos[slot];
+        rtt.record(sample);
+        if (sample < minRttNanos) {
+            minRttNanos = sample;
+        }
+        if (lastRttNanos >= 0) {
+            // Jitter as in RFC 3550: difference between consecutive transit times
+            long delta = Math.abs(sample - lastRttNanos);
+            jitter.record(delta);
+            smoothedJitterNanos += (delta - smoothedJitterNanos) / 16;
+        }
+        // Smoothed RTT as in RFC 6298
+        smoothedRttNanos = smoothedRttNanos == 0 ? sample : smoothedRttNanos + (sample - smoothedRttNanos) / 8;
+        lastRttNanos = sample;
+        SampleListener l = sampleListener;
+        if (l != null) {
+            l.onRttSample(sample);
+        }
+    }
+
+    private void expireLost(long now) {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (int i = 0; i < WINDOW; i++) {
+            if (outstanding[i] && now - sentNanos[i] > timeoutNanos) {
+                markLost(i);
+            }
+        }
+    }
+
+    private void markLost(int slot) {
+        outstanding[slot] = false;
+        lost++;
+        currentBurst++;
+        SampleListener l = sampleListener;
+        if (l != null) {
+            l.onPingLost();
+        }
+    }
+
+    public synchronized LinkStats getStats() {
+        expireLost(System.nanoTime());
+        LinkStats stats = new LinkStats();
+        stats.pingsSent = sent;
+        stats.pongsReceived = received;
+        stats.pingsLost = lost;
+        long settled = received + lost;
+        stats.lossPercent = settled == 0 ? 0 : 100.0 * lost / settled;
+        stats.rttMinNanos = minRttNanos == Long.MAX_VALUE ? 0 : minRttNanos;
+        stats.rttP50Nanos = rtt.getPercentileNanos(50);
+        stats.rttP99Nanos = rtt.getPercentileNanos(99);
+        stats.rttMaxNanos = rtt.getMaxNanos();
+        stats.smoothedRttNanos = smoothedRttNanos;
+        stats.jitterP50Nanos = jitter.getPercentileNanos(50);
+        stats.jitterP99Nanos = jitter.getPercentileNanos(99);
+        stats.smoothedJitterNanos = smoothedJitterNanos;
+        stats.lossBursts = lossBursts.clone();
+        stats.lastPongNanos = lastPongNanos;
+        return stats;
+    }
+
+    public LatencyHistogram getRttHistogram() {
+        return rtt;
+    }
+
+    public LatencyHistogram getJitterHistogram() {
+        return jitter;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Adapts the outgoing frame rate and the coalescing window to the link, from the RTT and
+// loss the pings measure. Queueing delay is how far the last few RTTs all stay above the
+// lowest RTT seen recently (a single late pong is jitter, not a queue). When it passes the
+// target, or pings get lost, the rate is cut multiplicatively and the window widened, so
+// fewer and fuller writes let the queue drain. Once the link is clean again the rate
+// grows back in steps and the window narrows (AIMD, like TCP).
+public class RateController {
+    private static final String TAG = "RateController";
+    private static final int BASE_RTT_SAMPLES = 64; // about 6s of pings at 100ms
+    private static final int CURRENT_RTT_SAMPLES = 4;
+    private static final int MAX_DECISIONS = 32;
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final long MIN_WINDOW_MICROS = 1000;
+    private static final long MAX_WINDOW_MICROS = 8000;
+
+    public static final String ACTION_DECREASE = "decrease";
+    public static final String ACTION_INCREASE = "increase";
+
+    public interface Listener {
+        void onRateChanged(int rateHz, long windowMicros);
+    }
+
+    // One adjustment, with the measurements that led to it
+    public static class Decision {
+        public final long timeNanos;
+        public final String action;
+        public final int rateHz;
+        public final long windowMicros;
+        public final long queueDelayNanos;
+        public final double lossRate;
+        public final String reason;
+
+        Decision(long timeNanos, String action, int rateHz, long windowMicros, long queueDelayNanos,
+                 double lossRate, String reason) {
+            this.timeNanos = timeNanos;
+            this.action = action;
+            this.rateHz = rateHz;
+            this.windowMicros = windowMicros;
+            this.queueDelayNanos = queueDelayNanos;
+            this.lossRate = lossRate;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return action + " to " + rateHz + "Hz window=" + windowMicros + "us (" + reason + ")";
+        }
+    }
+
+    private final Listener listener;
+
+    // Tuning
+    private int minRateHz = 20;
+    private int maxRateHz = 250;
+    private long targetQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(15);
+    private double lossThreshold = 0.05;
+    private long decreaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(200);
+    private long increaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(500);
+
+    // Measurements
+    private final long[] rttSamples = new long[BASE_RTT_SAMPLES];
+    private int rttCount = 0;
+    private int rttNext = 0;
+    private double lossRate = 0;
+
+    // Output
+    private int rateHz = maxRateHz;
+    private long windowMicros = 0;
+    private long lastChangeNanos = 0;
+    private boolean changed = false;
+    private long decreases = 0;
+    private long increases = 0;
+    private final Decision[] decisions = new Decision[MAX_DECISIONS];
+    private int decisionCount = 0;
+
+    public RateController(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void setRateRange(int minHz, int maxHz) {
+        if (minHz <= 0 || maxHz < minHz) {
+            throw new IllegalArgumentException("Invalid rate range " + minHz + ".." + maxHz + "Hz");
+        }
+        minRateHz = minHz;
+        maxRateHz = maxHz;
+        rateHz = Math.max(minHz, Math.min(maxHz, rateHz));
+    }
+
+    public synchronized void setTargetQueueDelay(long delayMs) {
+        targetQueueDelayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+    }
+
+    // Share of lost pings above which the rate is cut, 0..1
+    public synchronized void setLossThreshold(double threshold) {
+        lossThreshold = threshold;
+    }
+
+    // Minimum time between two decreases and between two increases
+    public synchronized void setHoldTimes(long decreaseMs, long increaseMs) {
+        decreaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(decreaseMs);
+        increaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(increaseMs);
+    }
+
+    // A new link: full rate, no window, forget the old measurements
+    public synchronized void reset() {
+        rttCount = 0;
+        rttNext = 0;
+        lossRate = 0;
+        rateHz = maxRateHz;
+        windowMicros = 0;
+        changed = false;
+        listener.onRateChanged(maxRateHz, 0);
+    }
+
+    public void onRttSample(long rttNanos) {
+        onRttSample(rttNanos, System.nanoTime());
+    }
+
+    public void onLoss() {
+        onLoss(System.nanoTime());
+    }
+
+    void onRttSample(long rttNanos, long nowNanos) {
+        synchronized (this) {
+            rttSamples[rttNext] = rttNanos;
+            rttNext = (rttNext + 1) % BASE_RTT_SAMPLES;
+            rttCount = Math.min(rttCount + 1, BASE_RTT_SAMPLES);
+            lossRate += (0 - lossRate) / 8;
+        }
+        evaluate(nowNanos);
+    }
+
+    void onLoss(long nowNanos) {
+        synchronized (this) {
+            lossRate += (1 - lossRate) / 8;
+        }
+        evaluate(nowNanos);
+    }
+
+    // The listener is called with the lock held, so adjustments from the ping timer and the
+    // reader thread reach it in order
+    private void evaluate(long nowNanos) {
+        int newRate;
+        long newWindow;
+        synchronized (this) {
+            long queueDelay = getQueueDelayNanos();
+            long sinceChange = changed ? nowNanos - lastChangeNanos : Long.MAX_VALUE;
+            String action;
+            String reason;
+            if (queueDelay > targetQueueDelayNanos || lossRate > lossThreshold) {
+                if (sinceChange < decreaseHoldNanos || (rateHz == minRateHz && windowMicros == MAX_WINDOW_MICROS)) {
+                    return;
+                }
+                action = ACTION_DECREASE;
+                reason = queueDelay > targetQueueDelayNanos
+                        ? String.format(Locale.US, "queue delay %.1fms > %.1fms",
+                                queueDelay / 1e6, targetQueueDelayNanos / 1e6)
+                        : String.format(Locale.US, "loss %.1f%% > %.1f%%", lossRate * 100, lossThreshold * 100);
+                newRate = Math.max(minRateHz, (int) (rateHz * DECREASE_FACTOR));
+                newWindow = Math.min(MAX_WINDOW_MICROS, Math.max(MIN_WINDOW_MICROS, windowMicros * 2));
+                decreases++;
+            } else if (queueDelay < targetQueueDelayNanos / 2 && lossRate < lossThreshold / 2) {
+                if (sinceChange < increaseHoldNanos || (rateHz == maxRateHz && windowMicros == 0)) {
+                    return;
+                }
+                action = ACTION_INCREASE;
+                reason = String.format(Locale.US, "link clean, queue delay %.1fms", queueDelay / 1e6);
+                newRate = Math.min(maxRateHz, rateHz + Math.max(1, maxRateHz / 10));
+                newWindow = windowMicros / 2 < MIN_WINDOW_MICROS ? 0 : windowMicros / 2;
+                increases++;
+            } else {
+                return; // in between: hold
+            }
+            rateHz = newRate;
+            windowMicros = newWindow;
+            lastChangeNanos = nowNanos;
+            changed = true;
+            Decision decision = new Decision(nowNanos, action, newRate, newWindow, queueDelay, lossRate, reason);
+            decisions[decisionCount % MAX_DECISIONS] = decision;
+            decisionCount++;
+            Log.d(TAG, decision.toString());
+            listener.onRateChanged(newRate, newWindow);
+        }
+    }
+
+    // Lowest of the last few RTTs above the lowest of all recent ones
+    public synchronized long getQueueDelayNanos() {
+        if (rttCount == 0) {
+            return 0;
+        }
+        long base = Long.MAX_VALUE;
+        long current = Long.MAX_VALUE;
+        for (int i = 0; i < rttCount; i++) {
+            long sample = rttSamples[(rttNext - 1 - i + BASE_RTT_SAMPLES) % BASE_RTT_SAMPLES];
+            base = Math.min(base, sample);
+            if (i < CURRENT_RTT_SAMPLES) {
+                current = Math.min(current, sample);
+            }
+        }
+        return current - base;
+    }
+
+    public synchronized int getRateHz() {
+        return rateHz;
+    }
+
+    public synchronized int getMaxRateHz() {
+        return maxRateHz;
+    }
+
+    public synchronized long getWindowMicros() {
+        return windowMicros;
+    }
+
+    // Smoothed share of lost pings, 0..1
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    // The most recent adjustments, oldest first
+    public synchronized List<Decision> getDecisions() {
+        List<Decision> list = new ArrayList<>();
+        int start = Math.max(0, decisionCount - MAX_DECISIONS);
+        for (int i = start; i < decisionCount; i++) {
+            list.add(decisions[i % MAX_DECISIONS]);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,240 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Acknowledged delivery for the few datagrams that must arrive, i.e. button edges. Every
+// message gets an id; the receiver delivers them in id order and acknowledges the highest
+// id it has delivered (a cumulative ack). Whatever is not acknowledged within the RTO is
+// sent again, oldest first. The RTO follows the RTT measured from the acks (RFC 6298,
+// Karn's rule), so on a LAN a lost edge is repeated within a few milliseconds. An ack that
+// confirms nothing new while messages are outstanding means the oldest one went missing,
+// so it is repeated right away instead of waiting for the RTO (fast retransmit).
+public class ReliableLane {
+    private static final String TAG = "ReliableLane";
+    public static final int WINDOW = 64;
+    public static final int MAX_PAYLOAD = 256;
+    private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // How messages reach the wire; retransmits reuse the id and the datagram sequence of the
+    // first transmission, so a repeated frame never looks newer than input sent after it.
+    // Returns the sequence used, which a first transmission (retransmit false) picks itself
+    interface Output {
+        int sendReliable(int id, boolean retransmit, int sequence, byte[] data, int offset, int length)
+                throws IOException;
+    }
+
+    private final Output output;
+    private final byte[][] payloads = new byte[WINDOW][MAX_PAYLOAD];
+    private final int[] lengths = new int[WINDOW];
+    private final long[] firstSentNanos = new long[WINDOW];
+    private final long[] lastSentNanos = new long[WINDOW];
+    private final int[] transmissions = new int[WINDOW];
+    private final int[] sequences = new int[WINDOW];
+    private int nextId = 0;
+    private int oldestUnacked = 0;
+
+    private long srttNanos = 0;
+    private long rttvarNanos = 0;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+
+    private Thread timer;
+    private boolean running = false;
+
+    // Metrics
+    private long sent = 0;
+    private long retransmits = 0;
+    private long fastRetransmits = 0;
+    private long acked = 0;
+    private long duplicateAcks = 0;
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    public ReliableLane(Output output) {
+        this.output = output;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        timer = new Thread(this::retransmitLoop, "PonioRetransmit");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    // Forget everything in flight, for a new connection
+    public synchronized void reset() {
+        nextId = 0;
+        oldestUnacked = 0;
+        srttNanos = 0;
+        rttvarNanos = 0;
+        rtoNanos = INITIAL_RTO_NANOS;
+    }
+
+    public synchronized void send(byte[] data, int offset, int length) throws IOException {
+        if (nextId - oldestUnacked >= WINDOW) {
+            throw new IOException("Reliable window full, peer is not acknowledging");
+        }
+        if (length > MAX_PAYLOAD) {
+            throw new IOException("Reliable message too large: " + length + " bytes");
+        }
+        int slot = nextId & (WINDOW - 1);
+        System.arraycopy(data, offset, payloads[slot], 0, length);
+        lengths[slot] = length;
+        long now = System.nanoTime();
+        firstSentNanos[slot] = now;
+        lastSentNanos[slot] = now;
+        transmissions[slot] = 1;
+        boolean wasIdle = nextId == oldestUnacked;
+        sequences[slot] = output.sendReliable(nextId, false, 0, data, offset, length);
+        nextId++;
+        sent++;
+        if (wasIdle) {
+            notifyAll();
+        }
+    }
+
+    // Receive thread: the peer has everything up to and including id
+    public synchronized void onAck(int id) {
+        if (id - oldestUnacked < 0) {
+            duplicateAcks++;
+            if (id == oldestUnacked - 1 && nextId != oldestUnacked) {
+                fastRetransmit();
+            }
+            return;
+        }
+        if (id - nextId >= 0) {
+            Log.w(TAG, "Ack for a message never sent: " + id);
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = oldestUnacked; i - id <= 0; i++) {
+            int slot = i & (WINDOW - 1);
+            ackLatency.record(now - firstSentNanos[slot]);
+            if (transmissions[slot] == 1) {
+                // Karn: only unambiguous samples feed the RTT estimate
+                updateRto(now - lastSentNanos[slot]);
+            }
+            acked++;
+        }
+        oldestUnacked = id + 1;
+        if (srttNanos != 0) {
+            // Progress again: drop any timeout backoff
+            rtoNanos = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srttNanos + 4 * rttvarNanos));
+        }
+        notifyAll();
+    }
+
+    private void fastRetransmit() {
+        int slot = oldestUnacked & (WINDOW - 1);
+        long now = System.nanoTime();
+        // At most once per RTT, later duplicates may still be answers to the same gap
+        if (now - lastSentNanos[slot] < Math.max(srttNanos, MIN_RTO_NANOS / 2)) {
+            return;
+        }
+        try {
+            output.sendReliable(oldestUnacked, true, sequences[slot], payloads[slot], 0, lengths[slot]);
+            lastSentNanos[slot] = now;
+            transmissions[slot]++;
+            retransmits++;
+            fastRetransmits++;
+        } catch (IOException e) {
+            Log.w(TAG, "Fast retransmit failed", e);
+        }
+    }
+
+    private void updateRto(long sample) {
+        if (srttNanos == 0) {
+            srttNanos = sample;
+            rttvarNanos = sample / 2;
+        } else {
+            rttvarNanos += (Math.abs(srttNanos - sample) - rttvarNanos) / 4;
+            srttNanos += (sample - srttNanos) / 8;
+        }
+        rtoNanos = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srttNanos + 4 * rttvarNanos));
+    }
+
+    private synchronized void retransmitLoop() {
+        while (running && timer == Thread.currentThread()) {
+            try {
+                if (nextId == oldestUnacked) {
+                    wait();
+                    continue;
+                }
+                long now = System.nanoTime();
+                long due = lastSentNanos[oldestUnacked & (WINDOW - 1)] + rtoNanos;
+                if (due - now > 0) {
+                    long waitNanos = due - now;
+                    wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                    continue;
+                }
+                // Timed out: go back and resend everything outstanding, then back the RTO off
+                for (int i = oldestUnacked; i != nextId; i++) {
+                    int slot = i & (WINDOW - 1);
+                    output.sendReliable(i, true, sequences[slot], payloads[slot], 0, lengths[slot]);
+                    lastSentNanos[slot] = now;
+                    transmissions[slot]++;
+                    retransmits++;
+                }
+                rtoNanos = Math.min(MAX_RTO_NANOS, rtoNanos * 2);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // The sender thread hits the same failure on its next write and reports it
+                Log.w(TAG, "Retransmit failed", e);
+                try {
+                    wait(TimeUnit.NANOSECONDS.toMillis(rtoNanos) + 1);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Metrics
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getRetransmits() {
+        return retransmits;
+    }
+
+    // Retransmits triggered by a duplicate ack rather than the RTO
+    public synchronized long getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    public synchronized long getAcked() {
+        return acked;
+    }
+
+    // Acks that confirmed nothing new, e.g. answers to a retransmit that was not needed
+    public synchronized long getDuplicateAcks() {
+        return duplicateAcks;
+    }
+
+    public synchronized int getInFlight() {
+        return nextId - oldestUnacked;
+    }
+
+    public synchronized long getRtoNanos() {
+        return rtoNanos;
+    }
+
+    // Time from the first transmission of a message until it was acknowledged
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.ponio;
+
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+// Listens for the PONIO_SERVER:name:port:protocol datagrams servers broadcast every few
+// seconds on ANNOUNCE_PORT and keeps the ServerCache up to date with them, evicting servers
+// that went quiet. Nothing is sent, so it can run the whole time the server list is on
+// screen; an active scan is only needed when nothing announced itself yet.
+public class ServerAnnouncementListener {
+    private static final String TAG = "AnnouncementListener";
+    public static final int ANNOUNCE_PORT = 8890;
+    // How often expired entries are looked for while no announcements arrive
+    private static final int EVICT_INTERVAL_MS = 1000;
+
+    private final ServerCache cache;
+    private final int port;
+    // Many Wi-Fi drivers drop broadcast frames in power save unless someone holds this lock,
+    // so announcements would only trickle in while the screen is busy elsewhere
+    private final WifiManager.MulticastLock multicastLock;
+    private volatile DatagramSocket socket;
+    private Thread thread;
+    private volatile long announcements = 0;
+
+    public ServerAnnouncementListener(ServerCache cache, WifiManager wifiManager) {
+        this(cache, ANNOUNCE_PORT, wifiManager);
+    }
+
+    // Package-private for tests, 0 picks a free port and no lock is taken
+    ServerAnnouncementListener(ServerCache cache, int port) {
+        this(cache, port, null);
+    }
+
+    private ServerAnnouncementListener(ServerCache cache, int port, WifiManager wifiManager) {
+        this.cache = cache;
+        this.port = port;
+        if (wifiManager != null) {
+            multicastLock = wifiManager.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+        } else {
+            multicastLock = null;
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            DatagramSocket s = new DatagramSocket(null);
+            // Another app instance or a stale socket of ours may still hold the port
+            s.setReuseAddress(true);
+            s.setBroadcast(true);
+            s.bind(new InetSocketAddress(port));
+            s.setSoTimeout(EVICT_INTERVAL_MS);
+            socket = s;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot listen for announcements on port " + port, e);
+            return;
+        }
+        if (multicastLock != null) {
+            multicastLock.acquire();
+        }
+        thread = new Thread(this::listen, "PonioAnnouncements");
+        thread.setDaemon(true);
+        thread.start();
+        Log.d(TAG, "Listening for announcements on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        // Closing the socket ends the blocking receive
+        socket.close();
+        thread = null;
+        if (multicastLock != null && multicastLock.isHeld()) {
+            multicastLock.release();
+        }
+    }
+
+    public boolean isListening() {
+        DatagramSocket s = socket;
+        return s != null && !s.isClosed();
+    }
+
+    public int getPort() {
+        DatagramSocket s = socket;
+        return s == null ? port : s.getLocalPort();
+    }
+
+    public long getAnnouncementCount() {
+        return announcements;
+    }
+
+    private void listen() {
+        DatagramSocket s = socket;
+        byte[] buffer = new byte[1024];
+        long lastEviction = System.currentTimeMillis();
+
+        while (!s.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                s.receive(packet);
+                String message = new String(packet.getData(), 0, packet.getLength());
+                if (message.startsWith("PONIO_SERVER:")) {
+                    ServerDiscovery.DiscoveredServer server = ServerDiscovery.parseServerResponse(
+                            message, packet.getAddress().getHostAddress());
+                    if (server != null) {
+                        announcements++;
+                        cache.put(server);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Quiet network, still time to evict
+            } catch (SocketException e) {
+                break; // stop() closed the socket
+            } catch (IOException e) {
+                Log.w(TAG, "Announcement receive failed: " + e.getMessage());
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastEviction >= EVICT_INTERVAL_MS) {
+                lastEviction = now;
+                cache.evictExpired();
+            }
+        }
+        Log.d(TAG, "Stopped listening, " + announcements + " announcements received");
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Servers seen recently, from announcements or scans, keyed by ip:port. An entry lives for
+// the TTL after it was last seen; servers announce every few seconds, so one that missed
+// several announcements in a row is gone and drops out. Process-wide, so the server list is
+// already filled when the main screen is opened again.
+public class ServerCache {
+    private static final String TAG = "ServerCache";
+    private static ServerCache instance;
+    // Three missed announcements at the server's 5 second interval
+    public static final long DEFAULT_TTL_MS = 15_000;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long ttlMs = DEFAULT_TTL_MS;
+    private volatile Listener listener;
+
+    // Package-private for tests, the app shares getInstance()
+    ServerCache() {
+    }
+
+    public static synchronized ServerCache getInstance() {
+        if (instance == null) {
+            instance = new ServerCache();
+        }
+        return instance;
+    }
+
+    public synchronized void setTtl(long ttlMs) {
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("TTL must be positive, was " + ttlMs);
+        }
+        this.ttlMs = ttlMs;
+    }
+
+    // Called on the thread that saw the change, not necessarily the UI thread
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Records that the server is alive; returns true when it was not known before
+    public boolean put(ServerDiscovery.DiscoveredServer server) {
+        return put(server, System.currentTimeMillis());
+    }
+
+    boolean put(ServerDiscovery.DiscoveredServer server, long now) {
+        boolean added;
+        synchronized (this) {
+            Entry entry = entries.get(key(server));
+            added = entry == null || expired(entry, now);
+            if (added) {
+                entries.put(key(server), new Entry(server, now));
+            } else {
+                // Renamed or switched protocol on the PC: keep the newest description
+                entry.server = server;
+                entry.lastSeen = now;
+            }
+        }
+        Listener current = listener;
+        if (added) {
+            Log.d(TAG, "Cached " + server);
+            if (current != null) {
+                current.onServerAdded(server);
+            }
+        }
+        return added;
+    }
+
+    // Servers still within their TTL, in the order they were first seen
+    public List<ServerDiscovery.DiscoveredServer> getServers() {
+        return getServers(System.currentTimeMillis());
+    }
+
+    synchronized List<ServerDiscovery.DiscoveredServer> getServers(long now) {
+        List<ServerDiscovery.DiscoveredServer> servers = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!expired(entry, now)) {
+                servers.add(entry.server);
+            }
+        }
+        return servers;
+    }
+
+    // When the server was last seen, 0 if it is not cached
+    public synchronized long getLastSeen(ServerDiscovery.DiscoveredServer server) {
+        Entry entry = entries.get(key(server));
+        return entry == null ? 0 : entry.lastSeen;
+    }
+
+    // Drops servers past their TTL and tells the listener; returns what was dropped
+    public List<ServerDiscovery.DiscoveredServer> evictExpired() {
+        return evictExpired(System.currentTimeMillis());
+    }
+
+    List<ServerDiscovery.DiscoveredServer> evictExpired(long now) {
+        List<ServerDiscovery.DiscoveredServer> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (expired(entry, now)) {
+                    it.remove();
+                    evicted.add(entry.server);
+                }
+            }
+        }
+        Listener current = listener;
+        for (ServerDiscovery.DiscoveredServer server : evicted) {
+            Log.d(TAG, "Expired " + server);
+            if (current != null) {
+                current.onServerExpired(server);
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private boolean expired(Entry entry, long now) {
+        return now - entry.lastSeen > ttlMs;
+    }
+
+    static String key(ServerDiscovery.DiscoveredServer server) {
+        return server.ipAddress + ":" + server.port;
+    }
+
+    private static class Entry {
+        ServerDiscovery.DiscoveredServer server;
+        long lastSeen;
+
+        Entry(ServerDiscovery.DiscoveredServer server, long now) {
+            this.server = server;
+            this.lastSeen = now;
+        }
+    }
+
+    public interface Listener {
+        void onServerAdded(ServerDiscovery.DiscoveredServer server);
+        void onServerExpired(ServerDiscovery.DiscoveredServer server);
+    }
+}
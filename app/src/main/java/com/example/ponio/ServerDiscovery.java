@@ -3,117 +3,235 @@ package com.example.ponio;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Finds Ponio servers on the local network: a PONIO_DISCOVER probe goes to the broadcast
+// address of every local subnet at once and each PONIO_SERVER reply is reported the moment
+// it arrives. Non-blocking channels, one per local address, and a Selector do all the
+// waiting, so the scan ends as soon as enough servers answered, the timeout ran out or
+// stopScan() was called, whichever is first. Probes are repeated a few times early in the
+// scan, a single lost broadcast on Wi-Fi should not hide a server until the next manual scan.
 public class ServerDiscovery {
     private static final String TAG = "ServerDiscovery";
-    private static final int DISCOVERY_PORT = 8889;
-    private static final String DISCOVERY_MESSAGE = "PONIO_DISCOVER";
+    static final int DISCOVERY_PORT = 8889;
+    static final String DISCOVERY_MESSAGE = "PONIO_DISCOVER";
     private static final int BROADCAST_TIMEOUT = 3000; // 3 seconds
+    // When probes go out, relative to the start of the scan
+    private static final long[] PROBE_SCHEDULE_MS = {0, 250, 1000};
 
     private ExecutorService executor;
-    private boolean isScanning = false;
+    private final AtomicBoolean isScanning = new AtomicBoolean(false);
+    private volatile boolean cancelled = false;
+    private volatile Selector selector;
+
+    private int timeoutMs = BROADCAST_TIMEOUT;
+    private int maxServers = 0;
+    private int discoveryPort = DISCOVERY_PORT;
+    // Probe targets for tests, null = the broadcast addresses of the local interfaces
+    private List<ProbeTarget> targets;
 
     public ServerDiscovery() {
         executor = Executors.newSingleThreadExecutor();
     }
 
+    // Package-private for tests: probe these hosts on this port instead of broadcasting
+    ServerDiscovery(int discoveryPort, List<ProbeTarget> targets) {
+        this();
+        this.discoveryPort = discoveryPort;
+        this.targets = targets;
+    }
+
+    // Upper bound for a scan, it usually ends earlier
+    public void setTimeout(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive, was " + timeoutMs);
+        }
+        this.timeoutMs = timeoutMs;
+    }
+
+    // Stop once this many servers answered, 0 = listen for the whole timeout
+    public void setMaxServers(int maxServers) {
+        if (maxServers < 0) {
+            throw new IllegalArgumentException("Server count must not be negative, was " + maxServers);
+        }
+        this.maxServers = maxServers;
+    }
+
+    public boolean isScanning() {
+        return isScanning.get();
+    }
+
     public void scanForServers(ScanCallback callback) {
-        if (isScanning) {
+        if (!isScanning.compareAndSet(false, true)) {
             Log.w(TAG, "Scan already in progress");
             return;
         }
-
-        isScanning = true;
-        List<DiscoveredServer> servers = new ArrayList<>();
+        cancelled = false;
+        int timeout = timeoutMs;
+        int limit = maxServers;
 
         executor.execute(() -> {
-            DatagramSocket socket = null;
+            List<DiscoveredServer> servers;
             try {
-                socket = new DatagramSocket();
-                socket.setBroadcast(true);
-                socket.setSoTimeout(BROADCAST_TIMEOUT);
-
-                // Send broadcast message
-                byte[] sendData = DISCOVERY_MESSAGE.getBytes();
-
-                // Try multiple broadcast addresses
-                List<InetAddress> broadcastAddresses = getBroadcastAddresses();
-                for (InetAddress broadcastAddress : broadcastAddresses) {
-                    try {
-                        DatagramPacket sendPacket = new DatagramPacket(
-                                sendData,
-                                sendData.length,
-                                broadcastAddress,
-                                DISCOVERY_PORT
-                        );
-                        socket.send(sendPacket);
-                        Log.d(TAG, "Sent broadcast to: " + broadcastAddress.getHostAddress());
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to send to " + broadcastAddress, e);
-                    }
-                }
+                servers = scan(callback, timeout, limit);
+            } catch (Exception e) {
+                Log.e(TAG, "Scan error", e);
+                isScanning.set(false);
+                callback.onScanError(e.getMessage());
+                return;
+            }
+            // Done before the callback, so it can start the next scan right away. A cancelled
+            // scan still reports what it found so far.
+            isScanning.set(false);
+            callback.onScanComplete(servers);
+        });
+    }
 
-                // Listen for responses
-                byte[] receiveData = new byte[1024];
-                long startTime = System.currentTimeMillis();
+    private List<DiscoveredServer> scan(ScanCallback callback, int timeout, int limit) throws IOException {
+        List<DiscoveredServer> servers = new ArrayList<>();
+        List<ProbeTarget> probeTargets = targets != null ? targets : getProbeTargets();
+        ByteBuffer probe = ByteBuffer.wrap(DISCOVERY_MESSAGE.getBytes());
+        ByteBuffer reply = ByteBuffer.allocate(1024);
 
-                while (System.currentTimeMillis() - startTime < BROADCAST_TIMEOUT) {
-                    try {
-						 DatagramPacket receivePacket = new DatagramPacket(
-								 receiveData, 
-								 receiveData.length
-						 );
+        // One channel per local address, replies come back on the one that sent the probe
+        Map<InetAddress, DatagramChannel> channels = new HashMap<>();
+        Selector selector = Selector.open();
+        try {
+            for (ProbeTarget target : probeTargets) {
+                if (!channels.containsKey(target.local)) {
+                    DatagramChannel channel = open(target.local);
+                    if (channel == null) {
+                        continue;
+                    }
+                    channel.register(selector, SelectionKey.OP_READ);
+                    channels.put(target.local, channel);
+                }
+            }
+            this.selector = selector;
 
-                        socket.receive(receivePacket);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            int probes = 0;
+            long nextProbe = start;
 
-                        String response = new String(
-							  receivePacket.getData(),
-							  0,
-							  receivePacket.getLength()
-						);
+            while (!cancelled) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    break;
+                }
+                if (probes < PROBE_SCHEDULE_MS.length && now >= nextProbe) {
+                    probe(channels, probeTargets, probe);
+                    probes++;
+                    nextProbe = probes < PROBE_SCHEDULE_MS.length
+                            ? start + TimeUnit.MILLISECONDS.toNanos(PROBE_SCHEDULE_MS[probes])
+                            : deadline;
+                }
 
-                        String serverIp = receivePacket.getAddress().getHostAddress();
+                // select(0) would block for good, never wait less than a millisecond
+                long waitMs = TimeUnit.NANOSECONDS.toMillis(Math.min(deadline, nextProbe) - now);
+                selector.select(Math.max(1, waitMs));
 
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    SocketAddress from;
+                    while ((from = channel.receive(reply)) != null) {
+                        String response = new String(reply.array(), 0, reply.position());
+                        reply.clear();
                         // Parse server response (format: "PONIO_SERVER:name:port:tcp/udp")
-                        if (response.startsWith("PONIO_SERVER:")) {
-                            DiscoveredServer server = parseServerResponse(response, serverIp);
-                            if (server != null && !servers.contains(server)) {
-                                servers.add(server);
-                                Log.d(TAG, "Found server: " + server.name + " at " + serverIp);
-
-                                // Notify callback for each found server
-                                callback.onServerFound(server);
+                        if (!response.startsWith("PONIO_SERVER:")) {
+                            continue;
+                        }
+                        String serverIp = ((InetSocketAddress) from).getAddress().getHostAddress();
+                        DiscoveredServer server = parseServerResponse(response, serverIp);
+                        if (server != null && !servers.contains(server)) {
+                            servers.add(server);
+                            Log.d(TAG, "Found server: " + server.name + " at " + serverIp + " after "
+                                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+                            // Notify callback for each found server
+                            callback.onServerFound(server);
+                            if (limit > 0 && servers.size() >= limit) {
+                                return servers;
                             }
                         }
-                    } catch (IOException e) {
-                        // Timeout or error - continue scanning
                     }
                 }
+                selector.selectedKeys().clear();
+            }
+            if (cancelled) {
+                Log.d(TAG, "Scan cancelled with " + servers.size() + " server(s)");
+            }
+            return servers;
+        } finally {
+            this.selector = null;
+            for (DatagramChannel channel : channels.values()) {
+                channel.close();
+            }
+            selector.close();
+        }
+    }
 
-                callback.onScanComplete(servers);
-
-            } catch (Exception e) {
-                Log.e(TAG, "Scan error", e);
-                callback.onScanError(e.getMessage());
-            } finally {
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+    // Non-blocking broadcast channel bound to a local address, null local = any interface.
+    // Returns null when the address went away since the interfaces were listed.
+    private DatagramChannel open(InetAddress local) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().setBroadcast(true);
+            channel.socket().bind(new InetSocketAddress(local, 0));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot send from " + local + ": " + e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing to clean up
                 }
-                isScanning = false;
             }
-        });
+            return null;
+        }
+    }
+
+    // Sends one probe to every target; a target that cannot be reached does not hold up the rest
+    private void probe(Map<InetAddress, DatagramChannel> channels, List<ProbeTarget> probeTargets, ByteBuffer probe) {
+        for (ProbeTarget target : probeTargets) {
+            DatagramChannel channel = channels.get(target.local);
+            if (channel == null) {
+                continue;
+            }
+            try {
+                probe.rewind();
+                channel.send(probe, new InetSocketAddress(target.broadcast, discoveryPort));
+                Log.d(TAG, "Sent broadcast to: " + target);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to send to " + target, e);
+            }
+        }
     }
 
-    private DiscoveredServer parseServerResponse(String response, String ip) {
+    // Package-private, announcements use the same format
+    static DiscoveredServer parseServerResponse(String response, String ip) {
         try {
             // Format: "PONIO_SERVER:name:port:protocol"
             String[] parts = response.split(":");
@@ -130,8 +248,11 @@ public class ServerDiscovery {
         return null;
     }
 
-    private List<InetAddress> getBroadcastAddresses() {
-        List<InetAddress> broadcastList = new ArrayList<>();
+    // One target per IPv4 subnet of every interface that is up, sent from that interface's
+    // own address so the probe leaves through the right network even when several are up
+    // (Wi-Fi plus a hotspot, or a VPN that owns the default route)
+    private List<ProbeTarget> getProbeTargets() {
+        List<ProbeTarget> candidates = new ArrayList<>();
 
         try {
             List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
@@ -141,21 +262,18 @@ public class ServerDiscovery {
                     continue;
                 }
 
-                List<InetAddress> addresses = Collections.list(networkInterface.getInetAddresses());
-                for (InetAddress address : addresses) {
-                    if (address.isSiteLocalAddress()) {
-                        // Calculate broadcast address
-                        byte[] ip = address.getAddress();
-
-                        // Simple broadcast calculation (works for /24 networks)
-                        ip[3] = (byte) 255;
-
-                        try {
-                            InetAddress broadcast = InetAddress.getByAddress(ip);
-                            broadcastList.add(broadcast);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Failed to create broadcast address", e);
-                        }
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    InetAddress address = interfaceAddress.getAddress();
+                    if (!(address instanceof Inet4Address)) {
+                        continue;
+                    }
+                    // Some devices report no broadcast address, derive it from the prefix then
+                    InetAddress broadcast = interfaceAddress.getBroadcast();
+                    if (broadcast == null) {
+                        broadcast = broadcastAddress(address, interfaceAddress.getNetworkPrefixLength());
+                    }
+                    if (broadcast != null) {
+                        candidates.add(new ProbeTarget(address, broadcast, networkInterface.getName()));
                     }
                 }
             }
@@ -165,16 +283,50 @@ public class ServerDiscovery {
 
         // Always add generic broadcast as fallback
         try {
-            broadcastList.add(InetAddress.getByName("255.255.255.255"));
+            candidates.add(new ProbeTarget(null, InetAddress.getByName("255.255.255.255"), null));
         } catch (Exception e) {
             Log.e(TAG, "Failed to add generic broadcast", e);
         }
 
-        return broadcastList;
+        return dedupe(candidates);
     }
 
+    // Directed broadcast address of the IPv4 subnet, null where there is none: IPv6,
+    // point-to-point /31 links and single-host /32 routes
+    static InetAddress broadcastAddress(InetAddress address, int prefixLength) {
+        if (!(address instanceof Inet4Address) || prefixLength < 0 || prefixLength > 30) {
+            return null;
+        }
+        byte[] ip = address.getAddress();
+        int host = prefixLength == 0 ? -1 : (1 << (32 - prefixLength)) - 1;
+        int bits = ((ip[0] & 0xff) << 24) | ((ip[1] & 0xff) << 16) | ((ip[2] & 0xff) << 8) | (ip[3] & 0xff);
+        bits |= host;
+        try {
+            return InetAddress.getByAddress(new byte[]{
+                    (byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits});
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Each broadcast address is probed once, from the first local address that reaches it
+    static List<ProbeTarget> dedupe(List<ProbeTarget> candidates) {
+        Map<InetAddress, ProbeTarget> unique = new LinkedHashMap<>();
+        for (ProbeTarget target : candidates) {
+            if (!unique.containsKey(target.broadcast)) {
+                unique.put(target.broadcast, target);
+            }
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    // Ends a running scan right away, its callback gets onScanComplete with the servers so far
     public void stopScan() {
-        isScanning = false;
+        cancelled = true;
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
     }
 
     public void cleanup() {
@@ -218,6 +370,25 @@ public class ServerDiscovery {
         }
     }
 
+    // Where a probe goes and the local address it is sent from, null = any interface
+    static class ProbeTarget {
+        final InetAddress local;
+        final InetAddress broadcast;
+        final String interfaceName;
+
+        ProbeTarget(InetAddress local, InetAddress broadcast, String interfaceName) {
+            this.local = local;
+            this.broadcast = broadcast;
+            this.interfaceName = interfaceName;
+        }
+
+        @Override
+        public String toString() {
+            return broadcast.getHostAddress()
+                    + (local == null ? "" : " from " + local.getHostAddress() + " (" + interfaceName + ")");
+        }
+    }
+
     // Callback interface
     public interface ScanCallback {
         void onServerFound(DiscoveredServer server);
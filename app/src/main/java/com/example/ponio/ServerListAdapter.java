@@ -11,11 +11,15 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.card.MaterialCardView;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.ServerViewHolder> {
 
     private List<ServerDiscovery.DiscoveredServer> servers = new ArrayList<>();
+    private final Map<ServerDiscovery.DiscoveredServer, ServerProber.Result> results = new HashMap<>();
     private OnServerClickListener listener;
 
     public interface OnServerClickListener {
@@ -28,6 +32,7 @@ public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.Se
 
     public void setServers(List<ServerDiscovery.DiscoveredServer> servers) {
         this.servers = servers;
+        sort();
         notifyDataSetChanged();
     }
 
@@ -38,8 +43,47 @@ public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.Se
         }
     }
 
+    // New probe numbers for a server: show them and move it to its place in the ranking
+    public void updateLatency(ServerDiscovery.DiscoveredServer server, ServerProber.Result result) {
+        int from = servers.indexOf(server);
+        if (from < 0) {
+            return;
+        }
+        results.put(server, result);
+        sort();
+        int to = servers.indexOf(server);
+        if (from != to) {
+            notifyItemMoved(from, to);
+        }
+        notifyItemChanged(to);
+    }
+
+    // The server expected to feel best, null while none answered a probe
+    public ServerDiscovery.DiscoveredServer getBest() {
+        if (servers.isEmpty()) {
+            return null;
+        }
+        ServerProber.Result result = results.get(servers.get(0));
+        return result != null && result.isMeasured() ? servers.get(0) : null;
+    }
+
+    // Stable, so servers that were not measured yet stay in arrival order
+    private void sort() {
+        Collections.sort(servers, (a, b) -> ServerProber.BEST_FIRST.compare(results.get(a), results.get(b)));
+    }
+
+    public void removeServer(ServerDiscovery.DiscoveredServer server) {
+        int position = servers.indexOf(server);
+        if (position >= 0) {
+            servers.remove(position);
+            results.remove(server);
+            notifyItemRemoved(position);
+        }
+    }
+
     public void clear() {
         servers.clear();
+        results.clear();
         notifyDataSetChanged();
     }
 
@@ -54,7 +98,7 @@ public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.Se
     @Override
     public void onBindViewHolder(@NonNull ServerViewHolder holder, int position) {
         ServerDiscovery.DiscoveredServer server = servers.get(position);
-        holder.bind(server, listener);
+        holder.bind(server, results.get(server), listener);
     }
 
     @Override
@@ -67,6 +111,7 @@ public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.Se
         private TextView tvServerName;
         private TextView tvServerAddress;
         private TextView tvServerProtocol;
+        private TextView tvServerLatency;
 
         public ServerViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -74,13 +119,20 @@ public class ServerListAdapter extends RecyclerView.Adapter<ServerListAdapter.Se
             tvServerName = itemView.findViewById(R.id.tvServerName);
             tvServerAddress = itemView.findViewById(R.id.tvServerAddress);
             tvServerProtocol = itemView.findViewById(R.id.tvServerProtocol);
+            tvServerLatency = itemView.findViewById(R.id.tvServerLatency);
         }
 
-        public void bind(ServerDiscovery.DiscoveredServer server, OnServerClickListener listener) {
+        public void bind(ServerDiscovery.DiscoveredServer server, ServerProber.Result result,
+                         OnServerClickListener listener) {
             tvServerName.setText(server.name);
             tvServerAddress.setText(server.ipAddress + ":" + server.port);
             tvServerProtocol.setText(server.protocol.toUpperCase());
 
+            // Latency as probed, dimmed while unknown or lossy
+            tvServerLatency.setText(result == null ? "..." : result.toString());
+            tvServerLatency.setTextColor(result != null && result.isMeasured() && result.lossPercent == 0
+                    ? 0xFFFFFFFF : 0xFF888888);
+
             // Set protocol badge color
             int protocolColor;
             switch (server.protocol.toLowerCase()) {
@@ -0,0 +1,305 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Measures how far each discovered server is before anyone connects to it. The probe is a
+// unicast PONIO_DISCOVER to the server's discovery port: every server already answers it,
+// and it does not open a session or create a virtual gamepad the way connecting would. A
+// new server gets a quick burst of probes so it can be ranked right away, then one every
+// couple of seconds keeps the numbers live. Median RTT and loss come from the last probes.
+// One channel and a Selector serve all servers, at most one probe is outstanding per server.
+public class ServerProber {
+    private static final String TAG = "ServerProber";
+    public static final int BURST_PROBES = 5;
+    private static final long BURST_INTERVAL_MS = 100;
+    private static final long REFRESH_INTERVAL_MS = 2000;
+    // A reply later than this is counted as lost, nobody wants to play over such a link
+    private static final long PROBE_TIMEOUT_MS = 500;
+    // Results cover this many of the most recent probes
+    static final int WINDOW = 10;
+    // Ranking cost of loss: every percent counts like 2ms more RTT, so 10% loss weighs as
+    // much as 20ms. Lost input over UDP (or retransmits over TCP) are felt more than latency.
+    static final long LOSS_PENALTY_NANOS_PER_PERCENT = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final int discoveryPort;
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+    private volatile Listener listener;
+    private volatile Selector selector;
+    // The probe thread runs while it is the current one, stop() clears it and wakes the selector
+    private volatile Thread thread;
+
+    public ServerProber(Listener listener) {
+        this(ServerDiscovery.DISCOVERY_PORT, listener);
+    }
+
+    // Package-private for tests: probe this port instead of the discovery port
+    ServerProber(int discoveryPort, Listener listener) {
+        this.discoveryPort = discoveryPort;
+        this.listener = listener;
+    }
+
+    // Starts probing the server, if it is not probed already
+    public void add(ServerDiscovery.DiscoveredServer server) {
+        synchronized (targets) {
+            String key = ServerCache.key(server);
+            if (targets.containsKey(key)) {
+                return;
+            }
+            targets.put(key, new Target(server));
+        }
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    public void remove(ServerDiscovery.DiscoveredServer server) {
+        synchronized (targets) {
+            targets.remove(ServerCache.key(server));
+        }
+    }
+
+    // Latest numbers for the server, null if it is not probed
+    public Result getResult(ServerDiscovery.DiscoveredServer server) {
+        synchronized (targets) {
+            Target target = targets.get(ServerCache.key(server));
+            return target == null ? null : target.result();
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        Selector s;
+        DatagramChannel channel;
+        try {
+            s = Selector.open();
+            channel = DatagramChannel.open();
+            channel.socket().bind(null);
+            channel.configureBlocking(false);
+            channel.register(s, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open probe channel", e);
+            return;
+        }
+        synchronized (targets) {
+            // Probes of an earlier run that never got an answer are not held against anyone
+            for (Target target : targets.values()) {
+                target.sentNanos = 0;
+                target.nextProbeNanos = 0;
+            }
+        }
+        selector = s;
+        Thread t = new Thread(() -> run(s, channel), "PonioProber");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread = null;
+        selector.wakeup();
+    }
+
+    private void run(Selector s, DatagramChannel channel) {
+        ByteBuffer probe = ByteBuffer.wrap(ServerDiscovery.DISCOVERY_MESSAGE.getBytes());
+        ByteBuffer reply = ByteBuffer.allocate(1024);
+        List<Target> changed = new ArrayList<>();
+        try {
+            while (thread == Thread.currentThread()) {
+                long now = System.nanoTime();
+                long timeout = TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MS);
+                long wake = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MS);
+                synchronized (targets) {
+                    for (Target target : targets.values()) {
+                        if (target.sentNanos != 0 && now - target.sentNanos >= timeout) {
+                            target.record(-1);
+                            changed.add(target);
+                        }
+                        if (target.sentNanos == 0 && now >= target.nextProbeNanos) {
+                            send(channel, target, probe, now);
+                        }
+                        wake = Math.min(wake, target.sentNanos != 0
+                                ? target.sentNanos + timeout
+                                : target.nextProbeNanos);
+                    }
+                }
+                notifyChanged(changed);
+
+                // select(0) would block for good, never wait less than a millisecond
+                s.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wake - now)));
+                s.selectedKeys().clear();
+
+                SocketAddress from;
+                while ((from = channel.receive(reply)) != null) {
+                    long received = System.nanoTime();
+                    String response = new String(reply.array(), 0, reply.position());
+                    reply.clear();
+                    if (!response.startsWith("PONIO_SERVER:")) {
+                        continue;
+                    }
+                    ServerDiscovery.DiscoveredServer server = ServerDiscovery.parseServerResponse(
+                            response, ((InetSocketAddress) from).getAddress().getHostAddress());
+                    if (server == null) {
+                        continue;
+                    }
+                    synchronized (targets) {
+                        Target target = targets.get(ServerCache.key(server));
+                        // Late answers to a probe already counted as lost are ignored
+                        if (target != null && target.sentNanos != 0) {
+                            target.record(received - target.sentNanos);
+                            changed.add(target);
+                        }
+                    }
+                }
+                notifyChanged(changed);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Probing stopped", e);
+        } finally {
+            try {
+                channel.close();
+                s.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    // Targets lock held
+    private void send(DatagramChannel channel, Target target, ByteBuffer probe, long now) {
+        target.sentNanos = now;
+        try {
+            probe.rewind();
+            channel.send(probe, new InetSocketAddress(target.server.ipAddress, discoveryPort));
+        } catch (IOException e) {
+            Log.w(TAG, "Probe to " + target.server.ipAddress + " failed: " + e.getMessage());
+            target.record(-1);
+        }
+    }
+
+    private void notifyChanged(List<Target> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        Listener current = listener;
+        for (Target target : changed) {
+            Result result;
+            synchronized (targets) {
+                result = target.result();
+            }
+            if (current != null) {
+                current.onProbed(target.server, result);
+            }
+        }
+        changed.clear();
+    }
+
+    private static class Target {
+        final ServerDiscovery.DiscoveredServer server;
+        // RTT of the last WINDOW probes, -1 for a lost one
+        final long[] outcomes = new long[WINDOW];
+        int probes = 0;
+        long sentNanos = 0; // outstanding probe, 0 = none
+        long nextProbeNanos = 0;
+
+        Target(ServerDiscovery.DiscoveredServer server) {
+            this.server = server;
+        }
+
+        void record(long rttNanos) {
+            outcomes[probes % WINDOW] = rttNanos;
+            probes++;
+            sentNanos = 0;
+            nextProbeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                    probes < BURST_PROBES ? BURST_INTERVAL_MS : REFRESH_INTERVAL_MS);
+        }
+
+        Result result() {
+            return Result.of(outcomes, Math.min(probes, WINDOW));
+        }
+    }
+
+    public static class Result {
+        public final int probes;
+        public final int answered;
+        public final long medianRttNanos; // 0 while nothing answered
+        public final double lossPercent;
+
+        Result(int probes, int answered, long medianRttNanos) {
+            this.probes = probes;
+            this.answered = answered;
+            this.medianRttNanos = medianRttNanos;
+            this.lossPercent = probes == 0 ? 0 : 100.0 * (probes - answered) / probes;
+        }
+
+        // First count entries of outcomes, RTTs in nanos and -1 for lost probes
+        static Result of(long[] outcomes, int count) {
+            long[] answered = new long[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                if (outcomes[i] >= 0) {
+                    answered[n++] = outcomes[i];
+                }
+            }
+            Arrays.sort(answered, 0, n);
+            long median = n == 0 ? 0 : n % 2 == 1 ? answered[n / 2] : (answered[n / 2 - 1] + answered[n / 2]) / 2;
+            return new Result(count, n, median);
+        }
+
+        public boolean isMeasured() {
+            return answered > 0;
+        }
+
+        // Lower is better: median RTT with loss priced in
+        public long score() {
+            return medianRttNanos + (long) (lossPercent * LOSS_PENALTY_NANOS_PER_PERCENT);
+        }
+
+        @Override
+        public String toString() {
+            if (!isMeasured()) {
+                return probes == 0 ? "..." : "no answer";
+            }
+            String rtt = medianRttNanos < TimeUnit.MILLISECONDS.toNanos(10)
+                    ? String.format(Locale.US, "%.1f ms", medianRttNanos / 1e6)
+                    : String.format(Locale.US, "%d ms", TimeUnit.NANOSECONDS.toMillis(medianRttNanos));
+            return lossPercent > 0 ? rtt + String.format(Locale.US, ", %.0f%% loss", lossPercent) : rtt;
+        }
+    }
+
+    // Measured servers first, best score first; servers not measured yet keep their order
+    public static final Comparator<Result> BEST_FIRST = (a, b) -> {
+        boolean aMeasured = a != null && a.isMeasured();
+        boolean bMeasured = b != null && b.isMeasured();
+        if (aMeasured != bMeasured) {
+            return aMeasured ? -1 : 1;
+        }
+        return aMeasured ? Long.compare(a.score(), b.score()) : 0;
+    };
+
+    public interface Listener {
+        // Called on the probe thread after every answered or lost probe
+        void onProbed(ServerDiscovery.DiscoveredServer server, Result result);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.ponio;
+
+import android.util.Log;
+
+// Connects to the best known server at startup without waiting for the user or a scan.
+// It runs on GamepadManager's executor while the UI is still being inflated, and is
+// checked once connected: a server that greeted us last time has to greet us again,
+// otherwise whatever accepted the connection is not the PC we knew (a DHCP lease moved
+// on, another service took the port). The outcome goes back into KnownServers.
+public class SpeculativeConnect {
+    private static final String TAG = "SpeculativeConnect";
+
+    private final GamepadManager manager;
+    private final KnownServers known;
+    private volatile int generation = 0;
+    private volatile ServerDiscovery.DiscoveredServer pending;
+
+    public SpeculativeConnect(GamepadManager manager, KnownServers known) {
+        this.manager = manager;
+        this.known = known;
+    }
+
+    // Starts connecting and returns the server tried, null when there is no candidate
+    public ServerDiscovery.DiscoveredServer start(Listener listener) {
+        KnownServers.Entry best = known.best(System.currentTimeMillis());
+        if (best == null || manager.isSessionActive()) {
+            return null;
+        }
+        int attempt = ++generation;
+        long startNanos = System.nanoTime();
+        ServerDiscovery.DiscoveredServer server = best.server;
+        pending = server;
+        Log.d(TAG, "Trying " + best);
+
+        manager.setProtocol(server.protocol);
+        manager.connect(server.ipAddress, server.port, new GamepadManager.ConnectionCallback() {
+            @Override
+            public void onSuccess(String message) {
+                if (attempt != generation) {
+                    return; // cancelled, the caller disconnects
+                }
+                validate(best, attempt, startNanos, listener);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (attempt != generation) {
+                    return;
+                }
+                pending = null;
+                known.recordFailure(server);
+                Log.d(TAG, server + " not reachable: " + error);
+                listener.onFailed(server, error);
+            }
+        });
+        return server;
+    }
+
+    // Executor thread, right after the connection came up
+    private void validate(KnownServers.Entry best, int attempt, long startNanos, Listener listener) {
+        ServerDiscovery.DiscoveredServer server = best.server;
+        Handshake.Result result = manager.getHandshakeResult();
+        if (best.rttNanos > 0 && result == null) {
+            pending = null;
+            manager.disconnect(null);
+            known.recordFailure(server);
+            Log.w(TAG, server + " accepted the connection but did not greet, not the server we knew");
+            listener.onFailed(server, "No Ponio server at " + server.ipAddress + ":" + server.port);
+            return;
+        }
+        pending = null;
+        known.recordSuccess(server, result != null ? result.rttNanos : 0, System.currentTimeMillis());
+        long elapsed = System.nanoTime() - startNanos;
+        Log.d(TAG, "Connected to " + server + " after " + elapsed / 1_000_000 + "ms"
+                + (result != null ? ", " + result : ""));
+        listener.onReady(server, elapsed);
+    }
+
+    // Still connecting or validating
+    public boolean isPending() {
+        return pending != null;
+    }
+
+    // The user picked something else: drop the attempt. Any connection it made is closed
+    // before whatever the caller connects next, both run in order on the same executor.
+    public void cancel() {
+        generation++;
+        if (pending != null) {
+            pending = null;
+            manager.disconnect(null);
+        }
+    }
+
+    public interface Listener {
+        // Called on a background thread
+        void onReady(ServerDiscovery.DiscoveredServer server, long elapsedNanos);
+        void onFailed(ServerDiscovery.DiscoveredServer server, String reason);
+    }
+}
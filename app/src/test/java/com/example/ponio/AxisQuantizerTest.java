@@ -0,0 +1,137 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AxisQuantizerTest {
+    // FloatingJoystickView's maxDistance
+    private static final float MAX_DISTANCE_PX = 80f;
+
+    @Test
+    public void quantize_snapsToBitDepth() {
+        assertEquals(0.5f, AxisQuantizer.quantize(0.5f, 511), 1f / 511);
+        assertEquals(1f, AxisQuantizer.quantize(1.2f, 511), 0f);
+        assertEquals(-1f, AxisQuantizer.quantize(-3f, 7), 0f);
+        // 4 bits: 7 steps per side
+        assertEquals(3 / 7f, AxisQuantizer.quantize(0.4f, 7), 0f);
+        assertEquals(0f, AxisQuantizer.quantize(0.05f, 7), 0f);
+
+        AxisQuantizer quantizer = new AxisQuantizer(4, 8);
+        assertTrue(quantizer.update(0.4f, 0.4f));
+        assertEquals(3 / 7f, quantizer.getX(), 0f);
+        assertEquals(51 / 127f, quantizer.getY(), 0f);
+    }
+
+    @Test
+    public void update_dropsMovesThatDoNotChangeTheQuantizedPosition() {
+        AxisQuantizer quantizer = new AxisQuantizer();
+        assertTrue(quantizer.update(0.3f, -0.2f));
+        assertFalse(quantizer.update(0.3001f, -0.2001f));
+        assertFalse(quantizer.update(0.3f, -0.2f));
+        assertTrue(quantizer.update(0.31f, -0.2f));
+        assertEquals(2, quantizer.getEmitted());
+        assertEquals(2, quantizer.getSuppressed());
+
+        // After a release the next position is always reported, even the same one
+        quantizer.reset();
+        assertTrue(quantizer.update(0.31f, -0.2f));
+    }
+
+    @Test
+    public void minChange_holdsSmallMovesButNeverTheCenterOrEdge() {
+        AxisQuantizer quantizer = new AxisQuantizer();
+        quantizer.setMinChange(0.05f);
+        assertTrue(quantizer.update(0.02f, 0.5f));
+        assertFalse(quantizer.update(0.04f, 0.52f));
+        assertTrue(quantizer.update(0.04f, 0.56f));
+        // Back to the center is a small step but must arrive
+        assertTrue(quantizer.update(0f, 0.56f));
+        assertTrue(quantizer.update(0f, 0.97f));
+        assertTrue(quantizer.update(0f, 1f));
+        assertEquals(0f, quantizer.getX(), 0f);
+        assertEquals(1f, quantizer.getY(), 0f);
+    }
+
+    @Test
+    public void touchTrace_suppressedVersusEmitted() {
+        List<float[]> moves = touchTrace(new Random(3), 60);
+        InputCodec codec = InputCodec.create("text");
+        byte[] out = new byte[codec.getMaxFrameSize()];
+        ControllerState state = new ControllerState();
+
+        // Before: every move event went to the sender
+        long rawBytes = 0;
+        int rawDuplicates = 0;
+        String previous = null;
+        for (float[] move : moves) {
+            state.setStick(ControllerState.STICK_LEFT, move[0], move[1]);
+            String line = new String(out, 0, codec.encodeStick(state, ControllerState.STICK_LEFT, 0, out));
+            rawBytes += line.length();
+            if (line.equals(previous)) rawDuplicates++;
+            previous = line;
+        }
+        BenchReport.print(String.format("Touch trace: %d move events, %d (%.1f%%) identical on the wire, %.0f B/s",
+                moves.size(), rawDuplicates, 100.0 * rawDuplicates / moves.size(), rawBytes / 60.0));
+        BenchReport.print("bits  min change   emitted  suppressed    B/s");
+
+        int[] depths = {8, 10, 12};
+        float[] thresholds = {0f, AxisQuantizer.DEFAULT_MIN_CHANGE, 0.01f};
+        for (int bits : depths) {
+            for (float threshold : thresholds) {
+                AxisQuantizer quantizer = new AxisQuantizer(bits, bits);
+                quantizer.setMinChange(threshold);
+                long bytes = 0;
+                previous = null;
+                for (float[] move : moves) {
+                    if (!quantizer.update(move[0], move[1])) {
+                        continue;
+                    }
+                    state.setStick(ControllerState.STICK_LEFT, quantizer.getX(), quantizer.getY());
+                    String line = new String(out, 0, codec.encodeStick(state, ControllerState.STICK_LEFT, 0, out));
+                    bytes += line.length();
+                    if (bits <= 10) {
+                        // Anything reported is something the server can tell apart
+                        assertFalse(line, line.equals(previous));
+                    }
+                    previous = line;
+                }
+                assertEquals(moves.size(), quantizer.getEmitted() + quantizer.getSuppressed());
+                BenchReport.print(String.format("%4d %11.3f %9d %11d %6.0f", bits, threshold,
+                        quantizer.getEmitted(), quantizer.getSuppressed(), bytes / 60.0));
+                if (bits == 10 && threshold == 0f) {
+                    assertTrue(quantizer.getSuppressed() >= rawDuplicates);
+                    assertTrue(bytes < rawBytes);
+                }
+            }
+        }
+    }
+
+    // Normalized positions as updateStickPosition computes them from raw touch coordinates at
+    // 120Hz: sub-pixel noise while the thumb rests, smooth sweeps while it moves
+    private static List<float[]> touchTrace(Random random, int seconds) {
+        List<float[]> moves = new ArrayList<>();
+        float px = 0;
+        float py = 0;
+        float targetX = 0;
+        float targetY = 0;
+        for (int i = 0; i < seconds * 120; i++) {
+            if (random.nextInt(90) == 0) {
+                double angle = random.nextDouble() * 2 * Math.PI;
+                float radius = (float) (random.nextDouble() * MAX_DISTANCE_PX);
+                targetX = radius * (float) Math.cos(angle);
+                targetY = radius * (float) Math.sin(angle);
+            }
+            px += (targetX - px) * 0.2f + (float) (random.nextGaussian() * 0.15);
+            py += (targetY - py) * 0.2f + (float) (random.nextGaussian() * 0.15);
+            float distance = (float) Math.sqrt(px * px + py * py);
+            float scale = distance > MAX_DISTANCE_PX ? MAX_DISTANCE_PX / distance : 1f;
+            moves.add(new float[]{px * scale / MAX_DISTANCE_PX, py * scale / MAX_DISTANCE_PX});
+        }
+        return moves;
+    }
+}
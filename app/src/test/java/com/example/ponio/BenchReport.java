@@ -0,0 +1,17 @@
+package com.example.ponio;
+
+// Benchmark tables and decision logs of the measurement tests. They stay quiet unless the
+// tests run with -Dponio.bench=true (./gradlew test -Pponio.bench), what they check is
+// asserted either way.
+final class BenchReport {
+    static final boolean ENABLED = Boolean.getBoolean("ponio.bench");
+
+    private BenchReport() {
+    }
+
+    static void print(String line) {
+        if (ENABLED) {
+            System.out.println(line);
+        }
+    }
+}
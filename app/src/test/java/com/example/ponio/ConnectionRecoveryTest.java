@@ -0,0 +1,187 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRecoveryTest {
+    private GamepadManager manager;
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        manager = GamepadManager.getInstance();
+        manager.setProtocol("tcp");
+        manager.setCodec("text");
+        manager.setSendMode(GamepadManager.SEND_MODE_EVENT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.setConnectionListener(null);
+        manager.setAutoReconnect(true);
+        manager.setLinkKeepalive(100, LinkWatchdog.DEFAULT_KEEPALIVE_TIMEOUT_MS);
+        CountDownLatch done = new CountDownLatch(1);
+        manager.disconnect(done::countDown);
+        done.await(2, TimeUnit.SECONDS);
+        server.close();
+    }
+
+    @Test
+    public void backoff_growsExponentiallyWithBoundedJitter() {
+        Backoff backoff = new Backoff(100, 3000, new Random(42));
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long ceiling = Math.min(3000, 100L << attempt);
+            for (int i = 0; i < 50; i++) {
+                long delay = backoff.getDelayMs(attempt);
+                assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            }
+        }
+        assertTrue(backoff.getDelayMs(100) <= 3000);
+    }
+
+    @Test
+    public void reconnect_resyncsStateCapturedDuringOutage() throws Exception {
+        CountDownLatch lost = new CountDownLatch(1);
+        CountDownLatch reconnected = new CountDownLatch(1);
+        manager.setConnectionListener(new GamepadManager.ConnectionListener() {
+            @Override
+            public void onConnectionLost() {
+                lost.countDown();
+            }
+
+            @Override
+            public void onReconnected(long recoveryNanos) {
+                reconnected.countDown();
+            }
+
+            @Override
+            public void onConnectionClosed(String reason) {
+            }
+
+            @Override
+            public void onTransportSwitched(String from, String to, long switchNanos) {
+            }
+        });
+        long recoveriesBefore = manager.getRecoveryTime().getCount();
+
+        connect();
+        manager.setButton(ControllerState.BTN_A, true);
+        assertTrue(server.awaitLine(0, "BTN_A:1"::equals, 2000) >= 0);
+
+        // Server side restart: the next write fails and triggers the reconnect
+        server.dropClient();
+        Thread.sleep(50);
+        int mark = server.received.size();
+        manager.setButton(ControllerState.BTN_B, true);
+        assertTrue(lost.await(2, TimeUnit.SECONDS));
+        // Input during the outage is still captured
+        manager.setStick(ControllerState.STICK_LEFT, 0.5f, -0.5f);
+        assertTrue(manager.isSessionActive());
+
+        assertTrue(reconnected.await(3, TimeUnit.SECONDS));
+        int hello = server.awaitLine(mark, line -> line.startsWith("HELLO:"), 2000);
+        assertTrue(hello >= 0);
+        // The full state frame right after the greeting holds everything pressed before and during the outage
+        assertTrue(server.awaitLine(hello, "BTN_B:1"::equals, 2000) > hello);
+        assertTrue(server.awaitLine(hello, "BTN_A:1"::equals, 2000) > hello);
+        assertTrue(manager.isConnected);
+        assertEquals(recoveriesBefore + 1, manager.getRecoveryTime().getCount());
+        BenchReport.print("Recovery " + manager.getRecoveryTime());
+    }
+
+    @Test
+    public void watchdog_declaresFrozenPeerDeadWithinAFewHundredMs() throws Exception {
+        manager.setAutoReconnect(false);
+        manager.setLinkKeepalive(50, 250);
+        AtomicLong closedAt = new AtomicLong();
+        CountDownLatch closed = new CountDownLatch(1);
+        manager.setConnectionListener(new GamepadManager.ConnectionListener() {
+            @Override
+            public void onConnectionLost() {
+            }
+
+            @Override
+            public void onReconnected(long recoveryNanos) {
+            }
+
+            @Override
+            public void onConnectionClosed(String reason) {
+                closedAt.set(System.nanoTime());
+                closed.countDown();
+            }
+
+            @Override
+            public void onTransportSwitched(String from, String to, long switchNanos) {
+            }
+        });
+
+        connect();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (manager.getLinkStats().pongsReceived < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(manager.getLinkStats().pongsReceived >= 3);
+
+        long frozenAt = System.nanoTime();
+        server.frozen = true;
+        assertTrue(closed.await(2, TimeUnit.SECONDS));
+        long detection = closedAt.get() - frozenAt;
+        BenchReport.print("Frozen peer detected after " + detection / 1_000_000 + "ms, silence "
+                + manager.getDeadLinkDetectionDelay());
+        assertTrue("detection took " + detection / 1_000_000 + "ms", detection < TimeUnit.MILLISECONDS.toNanos(600));
+        assertFalse(manager.isSessionActive());
+    }
+
+    @Test
+    public void watchdog_breaksAWriteStuckPastItsDeadline() throws Exception {
+        InputSender sender = new InputSender();
+        RecordingProtocol protocol = new RecordingProtocol();
+        protocol.connect("127.0.0.1", 0);
+        CountDownLatch failed = new CountDownLatch(1);
+        sender.setListener(e -> failed.countDown());
+        LinkWatchdog watchdog = new LinkWatchdog(sender, reason -> protocol.disconnect());
+        watchdog.setWriteDeadline(100);
+        sender.start();
+        sender.attach(protocol, InputCodec.create("text"));
+        watchdog.start();
+
+        try {
+            protocol.setStalled(true);
+            long stalledAt = System.nanoTime();
+            sender.publishButton(ControllerState.BTN_A, true);
+            assertTrue(failed.await(2, TimeUnit.SECONDS));
+            long detection = System.nanoTime() - stalledAt;
+            BenchReport.print("Stuck write broken after " + detection / 1_000_000 + "ms");
+            assertTrue(detection < TimeUnit.MILLISECONDS.toNanos(400));
+            assertEquals(1, watchdog.getDetectionDelay().getCount());
+        } finally {
+            watchdog.shutdown();
+            sender.stop();
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        manager.connect("127.0.0.1", server.getPort(), new GamepadManager.ConnectionCallback() {
+            @Override
+            public void onSuccess(String message) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        });
+        assertTrue(connected.await(2, TimeUnit.SECONDS));
+        assertTrue(server.awaitClient(2000));
+    }
+}
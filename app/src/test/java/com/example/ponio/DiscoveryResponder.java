@@ -0,0 +1,97 @@
+package com.example.ponio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local stand-in for the discovery side of a Ponio server: listens on one loopback address
+// (127.0.0.x, all of them reach this machine on Linux) and answers PONIO_DISCOVER probes with
+// PONIO_SERVER:name:port:protocol after a delay, like a host a few Wi-Fi hops away. It can
+// lose the first probes to stand in for broadcasts dropped on the air, or a steady share of
+// them like a host on a congested link.
+class DiscoveryResponder implements AutoCloseable {
+    private final DatagramSocket socket;
+    private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+    private final Thread thread;
+    final String name;
+    final AtomicInteger probes = new AtomicInteger();
+    volatile InetAddress lastProbeFrom;
+    volatile long replyDelayMs = 0;
+    // Port of the input server the reply points at
+    volatile int serverPort = 8888;
+    // Probes that get no answer before the first one that does
+    volatile int dropFirstProbes = 0;
+    // Share of probes after the first that get no answer, spread evenly: 40 drops 2 of 5
+    volatile int dropPercent = 0;
+    private int dropCredit = 0;
+    // Silent responders receive probes but never answer, like a host with the server stopped
+    volatile boolean silent = false;
+
+    DiscoveryResponder(String host, int port, String name) throws IOException {
+        this.name = name;
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(host), port));
+        thread = new Thread(this::serve, "responder-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[256];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                String message = new String(packet.getData(), 0, packet.getLength());
+                if (!message.equals("PONIO_DISCOVER")) {
+                    continue;
+                }
+                lastProbeFrom = packet.getAddress();
+                if (probes.incrementAndGet() <= dropFirstProbes || silent || lossy()) {
+                    continue;
+                }
+                InetAddress address = packet.getAddress();
+                int port = packet.getPort();
+                byte[] reply = ("PONIO_SERVER:" + name + ":" + serverPort + ":tcp").getBytes();
+                replies.schedule(() -> {
+                    try {
+                        socket.send(new DatagramPacket(reply, reply.length, address, port));
+                    } catch (IOException ignored) {
+                        // closed
+                    }
+                }, replyDelayMs, TimeUnit.MILLISECONDS);
+            } catch (IOException | RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private boolean lossy() {
+        dropCredit += dropPercent;
+        if (dropCredit >= 100) {
+            dropCredit -= 100;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        replies.shutdownNow();
+        socket.close();
+    }
+}
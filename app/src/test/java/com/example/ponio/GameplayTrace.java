@@ -0,0 +1,128 @@
+package com.example.ponio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Input as the controller screen produces it during play, sampled at the 120Hz touch rate:
+// the left stick steers most of the time with the finger drifting a little between samples,
+// the right stick moves the camera in bursts, and action buttons are tapped every second or
+// so. Only changes are recorded, like the touch listeners only report changes. Seeded, so
+// every run replays the same session.
+class GameplayTrace {
+    static final long SAMPLE_NANOS = 1_000_000_000L / 120;
+
+    static class Event {
+        final long timeNanos;
+        final int button; // -1 for a stick move
+        final boolean pressed;
+        final int stick;
+        final float x;
+        final float y;
+
+        Event(long timeNanos, int button, boolean pressed) {
+            this.timeNanos = timeNanos;
+            this.button = button;
+            this.pressed = pressed;
+            this.stick = -1;
+            this.x = 0;
+            this.y = 0;
+        }
+
+        Event(long timeNanos, int stick, float x, float y) {
+            this.timeNanos = timeNanos;
+            this.button = -1;
+            this.pressed = false;
+            this.stick = stick;
+            this.x = x;
+            this.y = y;
+        }
+
+        boolean isButton() {
+            return button >= 0;
+        }
+
+        void applyTo(ControllerState state) {
+            if (isButton()) {
+                state.setButton(button, pressed);
+            } else {
+                state.setStick(stick, x, y);
+            }
+        }
+    }
+
+    private static final int[] ACTION_BUTTONS = {
+            ControllerState.BTN_A, ControllerState.BTN_B, ControllerState.BTN_X, ControllerState.BTN_R1};
+
+    final List<Event> events = new ArrayList<>();
+    final long durationNanos;
+
+    GameplayTrace(long seed, int seconds) {
+        durationNanos = seconds * 1_000_000_000L;
+        Random random = new Random(seed);
+        float[] x = new float[ControllerState.STICK_COUNT];
+        float[] y = new float[ControllerState.STICK_COUNT];
+        float heading = 0;
+        boolean steering = false;
+        boolean looking = false;
+        long pressedUntil = -1;
+        int pressedButton = -1;
+        long nextPress = 500_000_000L;
+
+        for (long t = 0; t < durationNanos; t += SAMPLE_NANOS) {
+            // Left stick: steer for a few seconds, let go for a moment
+            if (random.nextInt(steering ? 400 : 60) == 0) {
+                steering = !steering;
+                heading = (float) (random.nextDouble() * 2 * Math.PI);
+            }
+            float lx = 0;
+            float ly = 0;
+            if (steering) {
+                heading += (float) (random.nextGaussian() * 0.02);
+                float radius = 0.85f + (float) (random.nextGaussian() * 0.01);
+                lx = radius * (float) Math.cos(heading);
+                ly = radius * (float) Math.sin(heading);
+            }
+            stick(t, ControllerState.STICK_LEFT, lx, ly, x, y);
+
+            // Right stick: short camera swings
+            if (random.nextInt(looking ? 40 : 150) == 0) {
+                looking = !looking;
+            }
+            float rx = looking ? clamp(x[ControllerState.STICK_RIGHT] + (float) (random.nextGaussian() * 0.08)) : 0;
+            float ry = looking ? clamp(y[ControllerState.STICK_RIGHT] + (float) (random.nextGaussian() * 0.03)) : 0;
+            stick(t, ControllerState.STICK_RIGHT, rx, ry, x, y);
+
+            // Taps on the action buttons
+            if (pressedButton >= 0 && t >= pressedUntil) {
+                events.add(new Event(t, pressedButton, false));
+                pressedButton = -1;
+            }
+            if (pressedButton < 0 && t >= nextPress) {
+                pressedButton = ACTION_BUTTONS[random.nextInt(ACTION_BUTTONS.length)];
+                events.add(new Event(t, pressedButton, true));
+                pressedUntil = t + 60_000_000L + random.nextInt(150) * 1_000_000L;
+                nextPress = t + 300_000_000L + random.nextInt(1200) * 1_000_000L;
+            }
+        }
+    }
+
+    private void stick(long t, int stick, float nx, float ny, float[] x, float[] y) {
+        // The view reports positions in steps of a thousandth
+        nx = Math.round(nx * 1000) / 1000f;
+        ny = Math.round(ny * 1000) / 1000f;
+        if (nx != x[stick] || ny != y[stick]) {
+            x[stick] = nx;
+            y[stick] = ny;
+            events.add(new Event(t, stick, nx, ny));
+        }
+    }
+
+    private static float clamp(float value) {
+        return Math.max(-1f, Math.min(1f, value));
+    }
+
+    double getSeconds() {
+        return durationNanos / 1e9;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+    private GamepadManager manager;
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        manager = GamepadManager.getInstance();
+        manager.setProtocol("tcp");
+        manager.setCodec("auto");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.setLegacyFallback(true);
+        manager.setHandshakeTimeout(500);
+        CountDownLatch done = new CountDownLatch(1);
+        manager.disconnect(done::countDown);
+        done.await(2, TimeUnit.SECONDS);
+        server.close();
+    }
+
+    @Test
+    public void welcome_parsesServerSelection() {
+        Handshake.Result result = Handshake.parseWelcome("WELCOME:1;n=2;codec=binary;tick=125;features=ping,resync");
+        assertNotNull(result);
+        assertEquals(1, result.version);
+        assertEquals(2, result.attempt);
+        assertEquals("binary", result.codec);
+        assertEquals(125, result.tickRate);
+        assertTrue(result.hasFeature(Handshake.FEATURE_PING));
+        assertFalse(result.hasFeature(Handshake.FEATURE_SNAPSHOT));
+        assertNull(Handshake.parseWelcome("WELCOME:x;codec=text"));
+    }
+
+    @Test
+    public void hello_advertisesVersionCodecsTickAndFeatures() {
+        Handshake handshake = new Handshake(Arrays.asList("binary", "text"), 1000, Arrays.asList("ping", "resync"));
+        assertEquals("HELLO:1;n=0;codecs=binary,text;tick=1000;features=ping,resync\n", new String(handshake.nextHello()));
+        assertEquals("HELLO:1;n=1;codecs=binary,text;tick=1000;features=ping,resync\n", new String(handshake.nextHello()));
+    }
+
+    @Test
+    public void connect_waitsForWelcomeAndPicksBinaryWhenBothSupportIt() throws Exception {
+        server.supportedCodecs = Arrays.asList("binary", "text");
+        server.welcomeDelayMs = 150;
+
+        long start = System.nanoTime();
+        assertNull(connect());
+        long established = System.nanoTime() - start;
+
+        assertTrue("connected before the server answered", established >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals("binary", manager.getActiveCodec());
+        Handshake.Result result = manager.getHandshakeResult();
+        assertNotNull(result);
+        assertTrue(result.rttNanos >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(server.received.get(0).startsWith("HELLO:1;n=0;codecs=delta,binary,text;"));
+        BenchReport.print("Handshake " + result);
+    }
+
+    @Test
+    public void connect_staysOnTextWhenServerOnlySpeaksText() throws Exception {
+        assertNull(connect());
+        assertEquals("text", manager.getActiveCodec());
+        assertTrue(manager.getHandshakeResult().rttNanos > 0);
+    }
+
+    @Test
+    public void connect_fallsBackToLegacyGreetingWithoutAnswer() throws Exception {
+        server.supportedCodecs = null;
+        manager.setHandshakeTimeout(100);
+
+        assertNull(connect());
+        assertEquals("text", manager.getActiveCodec());
+        assertNull(manager.getHandshakeResult());
+        assertTrue(server.awaitLine(0, line -> line.startsWith("CONNECT:Ponio Android Gamepad [TCP]"), 1000) >= 0);
+        // It never agreed to pings, so it gets none
+        assertTrue(server.awaitLine(0, line -> line.startsWith("PING"), 500) < 0);
+    }
+
+    @Test
+    public void connect_failsWithoutAnswerWhenFallbackIsOff() throws Exception {
+        server.supportedCodecs = null;
+        manager.setHandshakeTimeout(100);
+        manager.setLegacyFallback(false);
+
+        String error = connect();
+        assertNotNull(error);
+        assertFalse(manager.isConnected);
+    }
+
+    @Test
+    public void connect_failsWhenServerRejects() throws Exception {
+        server.supportedCodecs = Arrays.asList("binary");
+        manager.setCodec("text");
+
+        String error = connect();
+        assertNotNull(error);
+        assertTrue(error, error.contains("no common codec"));
+    }
+
+    // Returns null on success, the error otherwise
+    private String connect() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<String> error = new AtomicReference<>();
+        manager.connect("127.0.0.1", server.getPort(), new GamepadManager.ConnectionCallback() {
+            @Override
+            public void onSuccess(String message) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String message) {
+                error.set(message);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(3, TimeUnit.SECONDS));
+        return error.get();
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class InputCodecTest {
+
+    @Test
+    public void textCodec_matchesLegacyCommands() {
+        InputCodec codec = InputCodec.create("text");
+        ControllerState state = new ControllerState();
+        byte[] out = new byte[codec.getMaxFrameSize()];
+
+        float[] values = {0f, 1f, -1f, 0.5f, -0.25f, 0.1234f, -0.9999f, 0.0004f};
+        for (float x : values) {
+            for (float y : values) {
+                state.setStick(ControllerState.STICK_LEFT, x, y);
+                int length = codec.encodeStick(state, ControllerState.STICK_LEFT, 0, out);
+                String expected = String.format(Locale.US, "LJOY:%.3f,%.3f\n", x, y).replace("-0.000", "0.000");
+                assertEquals(expected, new String(out, 0, length));
+            }
+        }
+
+        state.setButton(ControllerState.DPAD_LEFT, true);
+        int length = codec.encodeButton(state, ControllerState.DPAD_LEFT, 0, out);
+        assertEquals("DPAD_LEFT:1\n", new String(out, 0, length));
+
+        state.setButton(ControllerState.DPAD_LEFT, false);
+        length = codec.encodeButton(state, ControllerState.DPAD_LEFT, 0, out);
+        assertEquals("DPAD_LEFT:0\n", new String(out, 0, length));
+    }
+
+    @Test
+    public void binaryCodec_roundTripsFixedSizeFrame() {
+        InputCodec codec = InputCodec.create("binary");
+        ControllerState state = new ControllerState();
+        state.setButton(ControllerState.BTN_A, true);
+        state.setButton(ControllerState.DPAD_RIGHT, true);
+        state.setStick(ControllerState.STICK_LEFT, 0.5f, -1f);
+        state.setStick(ControllerState.STICK_RIGHT, -0.333f, 1f);
+
+        byte[] out = new byte[codec.getMaxFrameSize()];
+        assertEquals(InputCodec.BinaryCodec.FRAME_SIZE, codec.encodeStick(state, ControllerState.STICK_LEFT, 42, out));
+
+        ControllerState decoded = new ControllerState();
+        assertEquals(42, InputCodec.BinaryCodec.decodeStateFrame(out, 0, decoded));
+        assertEquals(state.getButtons(), decoded.getButtons());
+        for (int stick = 0; stick < ControllerState.STICK_COUNT; stick++) {
+            assertEquals(state.getX(stick), decoded.getX(stick), 1f / Short.MAX_VALUE);
+            assertEquals(state.getY(stick), decoded.getY(stick), 1f / Short.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void textCodec_stateFrameListsSticksAndEveryButton() {
+        InputCodec codec = InputCodec.create("text");
+        ControllerState state = new ControllerState();
+        state.setStick(ControllerState.STICK_RIGHT, -1f, 0.5f);
+        state.setButton(ControllerState.BTN_START, true);
+
+        byte[] out = new byte[codec.getMaxFrameSize()];
+        String frame = new String(out, 0, codec.encodeState(state, 0, out));
+        String[] lines = frame.split("\n");
+
+        assertEquals(2 + ControllerState.BUTTON_COUNT, lines.length);
+        assertEquals("LJOY:0.000,0.000", lines[0]);
+        assertEquals("RJOY:-1.000,0.500", lines[1]);
+        assertEquals("BTN_START:1", lines[2 + ControllerState.BTN_START]);
+        assertEquals("DPAD_RIGHT:0", lines[2 + ControllerState.DPAD_RIGHT]);
+    }
+
+    @Test
+    public void deltaCodec_sendsOnlyChangedFieldsBetweenKeyframes() {
+        InputCodec.DeltaCodec codec = new InputCodec.DeltaCodec(8);
+        InputCodec.DeltaCodec.Decoder decoder = new InputCodec.DeltaCodec.Decoder();
+        ControllerState state = new ControllerState();
+        ControllerState decoded = new ControllerState();
+        byte[] out = new byte[codec.getMaxFrameSize()];
+
+        state.setStick(ControllerState.STICK_LEFT, 0.25f, -0.5f);
+        assertEquals(InputCodec.BinaryCodec.FRAME_SIZE, codec.encodeState(state, 0, out));
+        assertEquals(InputCodec.BinaryCodec.TYPE_STATE, out[1]);
+        assertTrue(decoder.decode(out, 0, InputCodec.BinaryCodec.FRAME_SIZE, decoded));
+
+        // One axis moved: header plus one field
+        state.setStick(ControllerState.STICK_LEFT, 0.3f, -0.5f);
+        int length = codec.encodeStick(state, ControllerState.STICK_LEFT, 1, out);
+        assertEquals(InputCodec.DeltaCodec.HEADER_SIZE + 2, length);
+        assertEquals(InputCodec.DeltaCodec.TYPE_DELTA, out[1]);
+        assertTrue(decoder.decode(out, 0, length, decoded));
+        assertStatesEqual(state, decoded);
+
+        // A button on top: still relative to the keyframe, so both fields
+        state.setButton(ControllerState.BTN_B, true);
+        length = codec.encodeButton(state, ControllerState.BTN_B, 2, out);
+        assertEquals(InputCodec.DeltaCodec.HEADER_SIZE + 4, length);
+        assertTrue(decoder.decode(out, 0, length, decoded));
+        assertStatesEqual(state, decoded);
+
+        // Every keyframe interval a full frame again, and after a reset right away
+        for (int sequence = 3; sequence < 8; sequence++) {
+            assertEquals(InputCodec.DeltaCodec.HEADER_SIZE + 4, codec.encodeState(state, sequence, out));
+        }
+        assertEquals(InputCodec.BinaryCodec.FRAME_SIZE, codec.encodeState(state, 8, out));
+        assertEquals(InputCodec.DeltaCodec.HEADER_SIZE, codec.encodeState(state, 9, out));
+        codec.reset();
+        assertEquals(InputCodec.BinaryCodec.FRAME_SIZE, codec.encodeState(state, 10, out));
+
+        // Nothing to gain when everything changed
+        state.setButton(ControllerState.BTN_B, false);
+        state.setStick(ControllerState.STICK_LEFT, -1f, 1f);
+        state.setStick(ControllerState.STICK_RIGHT, 1f, -1f);
+        assertEquals(InputCodec.BinaryCodec.FRAME_SIZE, codec.encodeState(state, 11, out));
+    }
+
+    @Test
+    public void deltaCodec_chainedDeltasBuildOnThePreviousFrame() {
+        InputCodec.DeltaCodec codec = new InputCodec.DeltaCodec();
+        codec.setChained(true);
+        InputCodec.DeltaCodec.Decoder decoder = new InputCodec.DeltaCodec.Decoder();
+        ControllerState state = new ControllerState();
+        ControllerState decoded = new ControllerState();
+        byte[] out = new byte[codec.getMaxFrameSize()];
+
+        assertTrue(decoder.decode(out, 0, codec.encodeState(state, 0, out), decoded));
+        state.setButton(ControllerState.BTN_A, true);
+        assertTrue(decoder.decode(out, 0, codec.encodeState(state, 1, out), decoded));
+        // Only the stick moved since the last frame, the button is not repeated
+        state.setStick(ControllerState.STICK_RIGHT, 0.75f, 0f);
+        int length = codec.encodeState(state, 2, out);
+        assertEquals(InputCodec.DeltaCodec.HEADER_SIZE + 2, length);
+        assertTrue(decoder.decode(out, 0, length, decoded));
+        assertStatesEqual(state, decoded);
+
+        // A gap breaks the chain until the next keyframe
+        state.setStick(ControllerState.STICK_RIGHT, 0.8f, 0f);
+        codec.encodeState(state, 3, out); // lost
+        state.setStick(ControllerState.STICK_RIGHT, 0.85f, 0f);
+        assertFalse(decoder.decode(out, 0, codec.encodeState(state, 4, out), decoded));
+        assertEquals(0.75f, decoded.getX(ControllerState.STICK_RIGHT), 1e-4f);
+
+        // The 16-bit sequence in deltas is widened again past the wrap
+        codec.reset();
+        int sequence = 0x1FFFE;
+        assertTrue(decoder.decode(out, 0, codec.encodeState(state, sequence, out), decoded));
+        for (int i = 1; i <= 4; i++) {
+            state.setStick(ControllerState.STICK_LEFT, i / 10f, 0f);
+            assertTrue(decoder.decode(out, 0, codec.encodeState(state, sequence + i, out), decoded));
+        }
+        assertStatesEqual(state, decoded);
+    }
+
+    @Test
+    public void deltaDecoder_survivesLostDeltasAndWaitsForTheNextKeyframe() {
+        InputCodec.DeltaCodec codec = new InputCodec.DeltaCodec(4);
+        InputCodec.DeltaCodec.Decoder decoder = new InputCodec.DeltaCodec.Decoder();
+        ControllerState state = new ControllerState();
+        ControllerState decoded = new ControllerState();
+        byte[][] frames = new byte[12][];
+        for (int sequence = 0; sequence < frames.length; sequence++) {
+            state.setStick(ControllerState.STICK_LEFT, sequence / 20f, 0f);
+            byte[] out = new byte[codec.getMaxFrameSize()];
+            frames[sequence] = Arrays.copyOf(out, codec.encodeState(state, sequence, out));
+        }
+
+        // Keyframes at 0, 4 and 8. Delta 1 is lost: 2 still decodes on its own
+        assertTrue(decoder.decode(frames[0], 0, frames[0].length, decoded));
+        assertTrue(decoder.decode(frames[2], 0, frames[2].length, decoded));
+        assertEquals(0.1f, decoded.getX(ControllerState.STICK_LEFT), 1e-4f);
+        // Late delta 1 must not move the stick back
+        assertFalse(decoder.decode(frames[1], 0, frames[1].length, decoded));
+        assertEquals(0.1f, decoded.getX(ControllerState.STICK_LEFT), 1e-4f);
+        // Keyframe 4 is lost: its deltas cannot be used
+        assertFalse(decoder.decode(frames[5], 0, frames[5].length, decoded));
+        assertFalse(decoder.decode(frames[6], 0, frames[6].length, decoded));
+        assertEquals(0.1f, decoded.getX(ControllerState.STICK_LEFT), 1e-4f);
+        assertTrue(decoder.decode(frames[8], 0, frames[8].length, decoded));
+        assertTrue(decoder.decode(frames[9], 0, frames[9].length, decoded));
+        assertEquals(0.45f, decoded.getX(ControllerState.STICK_LEFT), 1e-4f);
+        assertEquals(3, decoder.getDropped());
+    }
+
+    @Test
+    public void deltaCodec_bandwidthOnGameplayTrace() {
+        GameplayTrace trace = new GameplayTrace(7, 60);
+        BenchReport.print(String.format(Locale.US, "Gameplay trace: %d events in %.0fs", trace.events.size(), trace.getSeconds()));
+        BenchReport.print("mode                  binary B/s   delta B/s   saved   keyframes");
+
+        long tick = 1_000_000_000L / 125;
+        for (boolean chained : new boolean[]{true, false}) {
+            String base = chained ? " (stream)" : " (datagram)";
+            // Event mode: one frame per input event
+            long[] binary = replay(trace, new InputCodec.BinaryCodec(), 0);
+            InputCodec.DeltaCodec delta = new InputCodec.DeltaCodec();
+            delta.setChained(chained);
+            long[] deltas = replay(trace, delta, 0);
+            double saved = report("event" + base, trace, binary, deltas, delta);
+            assertEquals(binary[1], deltas[1]);
+            assertTrue(saved > 0.2);
+
+            // Snapshot mode at 125Hz: one frame per tick with changes
+            binary = replay(trace, new InputCodec.BinaryCodec(), tick);
+            delta = new InputCodec.DeltaCodec();
+            delta.setChained(chained);
+            deltas = replay(trace, delta, tick);
+            saved = report("snapshot" + base, trace, binary, deltas, delta);
+            assertTrue(saved > 0.2);
+        }
+    }
+
+    // Encodes the trace like the sender would, checking every frame decodes to the sender's
+    // state. tickNanos 0 is event mode. Returns bytes and frames
+    private static long[] replay(GameplayTrace trace, InputCodec codec, long tickNanos) {
+        ControllerState state = new ControllerState();
+        ControllerState decoded = new ControllerState();
+        InputCodec.DeltaCodec.Decoder decoder = new InputCodec.DeltaCodec.Decoder();
+        byte[] out = new byte[codec.getMaxFrameSize()];
+        long bytes = 0;
+        int sequence = 0;
+        int next = 0;
+        long nextTick = 0;
+        while (next < trace.events.size()) {
+            boolean changed = false;
+            if (tickNanos == 0) {
+                trace.events.get(next++).applyTo(state);
+                changed = true;
+            } else {
+                while (next < trace.events.size() && trace.events.get(next).timeNanos < nextTick) {
+                    trace.events.get(next++).applyTo(state);
+                    changed = true;
+                }
+                nextTick += tickNanos;
+            }
+            if (!changed) {
+                continue;
+            }
+            int length = codec.encodeState(state, sequence++, out);
+            bytes += length;
+            assertTrue(decoder.decode(out, 0, length, decoded));
+            assertEquals(state.getButtons(), decoded.getButtons());
+        }
+        return new long[]{bytes, sequence};
+    }
+
+    private static double report(String mode, GameplayTrace trace, long[] binary, long[] delta,
+                                 InputCodec.DeltaCodec codec) {
+        double binaryRate = binary[0] / trace.getSeconds();
+        double deltaRate = delta[0] / trace.getSeconds();
+        double saved = 1 - deltaRate / binaryRate;
+        BenchReport.print(String.format(Locale.US, "%-20s %11.0f %11.0f %6.1f%% %7d/%d", mode, binaryRate, deltaRate,
+                saved * 100, codec.getKeyframeCount(), delta[1]));
+        return saved;
+    }
+
+    private static void assertStatesEqual(ControllerState expected, ControllerState actual) {
+        assertEquals(expected.getButtons(), actual.getButtons());
+        for (int stick = 0; stick < ControllerState.STICK_COUNT; stick++) {
+            assertEquals(expected.getX(stick), actual.getX(stick), 1f / Short.MAX_VALUE);
+            assertEquals(expected.getY(stick), actual.getY(stick), 1f / Short.MAX_VALUE);
+        }
+    }
+}
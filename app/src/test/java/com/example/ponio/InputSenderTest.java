@@ -0,0 +1,291 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InputSenderTest {
+    private InputSender sender;
+    private RecordingProtocol protocol;
+
+    @Before
+    public void setUp() {
+        sender = new InputSender();
+        protocol = new RecordingProtocol();
+        protocol.connect("127.0.0.1", 0);
+        sender.start();
+        sender.attach(protocol, InputCodec.create("text"));
+    }
+
+    @After
+    public void tearDown() {
+        sender.stop();
+    }
+
+    @Test
+    public void ring_rejectsWhenFullAndPreservesOrder() {
+        InputRing ring = new InputRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.publishButton(i, i % 2 == 0));
+        }
+        assertFalse(ring.publishButton(ControllerState.BTN_A, true));
+        assertEquals(1, ring.getRejected());
+        assertEquals(4, ring.size());
+
+        for (int i = 0; i < 4; i++) {
+            int slot = ring.peek();
+            assertEquals(i, ring.getButton(slot));
+            assertEquals(i % 2 == 0, ring.isPressed(slot));
+            ring.release();
+        }
+        assertEquals(-1, ring.peek());
+    }
+
+    @Test
+    public void sender_deliversEveryEventInOrder() throws Exception {
+        int events = 500;
+        for (int i = 0; i < events; i++) {
+            sender.publishButton(ControllerState.BTN_A, i % 2 == 0);
+        }
+
+        assertTrue(protocol.awaitSent(events, 2000));
+        List<String> lines = protocol.sentLines();
+        for (int i = 0; i < events; i++) {
+            assertEquals("BTN_A:" + (i % 2 == 0 ? 1 : 0), lines.get(i));
+        }
+        Thread.sleep(50); // latency is recorded just after the send returns
+        assertEquals(events, sender.getPublishToWireLatency().getCount());
+        assertEquals(0, sender.getQueueDepth());
+        BenchReport.print("Publish to wire " + sender.getPublishToWireLatency());
+    }
+
+    @Test
+    public void sender_tracesEveryStageFromMotionEventToSocket() throws Exception {
+        int events = 100;
+        for (int i = 0; i < events; i++) {
+            long dispatch = System.nanoTime();
+            // MotionEvent 2 ms before the listener ran
+            sender.publishButton(ControllerState.BTN_X, i % 2 == 0, dispatch - 2_000_000, dispatch);
+            Thread.sleep(1);
+        }
+
+        assertTrue(protocol.awaitSent(events, 2000));
+        Thread.sleep(50);
+        InputTracer tracer = sender.getTracer();
+        for (int stage = 0; stage < InputTracer.STAGE_COUNT; stage++) {
+            assertEquals(InputTracer.STAGE_NAMES[stage], events, tracer.getStage(stage).getCount());
+        }
+        long input = tracer.getStage(InputTracer.STAGE_INPUT).getPercentileNanos(50);
+        assertTrue("input stage " + input, input >= 1_800_000 && input <= 2_200_000);
+        assertTrue(tracer.getStage(InputTracer.STAGE_TOTAL).getPercentileNanos(50) >= input);
+        BenchReport.print("Input trace\n" + tracer);
+    }
+
+    @Test
+    public void sender_snapshotModeReportsTapsShorterThanOneTick() throws Exception {
+        sender.setSnapshotRate(60);
+        sender.setSendMode(GamepadManager.SEND_MODE_SNAPSHOT);
+        assertTrue(protocol.awaitSent(1, 1000));
+        int before = protocol.sentLines().size();
+
+        sender.publishButton(ControllerState.BTN_B, true);
+        sender.publishButton(ControllerState.BTN_B, false);
+
+        assertTrue(protocol.awaitSent(3, 1000));
+        List<String> lines = protocol.sentLines();
+        int frameLines = 2 + ControllerState.BUTTON_COUNT;
+        assertEquals("BTN_B:1", lines.get(before + 2 + ControllerState.BTN_B));
+        assertEquals("BTN_B:0", lines.get(before + frameLines + 2 + ControllerState.BTN_B));
+    }
+
+    @Test
+    public void sender_coalescesAnalogButNeverDropsButtonsWhileStalled() throws Exception {
+        protocol.setStalled(true);
+        sender.publishStick(ControllerState.STICK_LEFT, 0.1f, 0.1f);
+        Thread.sleep(50); // the sender is now blocked writing the first position
+
+        for (int i = 1; i <= 100; i++) {
+            sender.publishStick(ControllerState.STICK_LEFT, i / 100f, 0f);
+            if (i % 10 == 0) {
+                sender.publishButton(ControllerState.BTN_X, (i / 10) % 2 == 1);
+            }
+        }
+        sender.publishStick(ControllerState.STICK_LEFT, 0f, 0f);
+        protocol.setStalled(false);
+
+        assertTrue(protocol.awaitSent(12, 2000));
+        Thread.sleep(50);
+        List<String> lines = protocol.sentLines();
+
+        // The stale position that was in flight, then every button edge, then only the newest position
+        assertEquals(12, lines.size());
+        assertEquals("LJOY:0.100,0.100", lines.get(0));
+        for (int i = 1; i <= 10; i++) {
+            assertEquals("BTN_X:" + (i % 2), lines.get(i));
+        }
+        assertEquals("LJOY:0.000,0.000", lines.get(11));
+        assertEquals(100, sender.getCoalescedAnalog());
+        assertEquals(0, sender.getButtonOverflows());
+    }
+
+    @Test
+    public void sender_foldsRingOverflowIntoFullState() throws Exception {
+        protocol.setStalled(true);
+        sender.publishButton(ControllerState.BTN_A, true);
+        Thread.sleep(50);
+
+        // Far more edges than the ring holds, ending with BTN_Y held down
+        for (int i = 0; i < 3000; i++) {
+            sender.publishButton(ControllerState.BTN_Y, i % 2 == 0);
+        }
+        sender.publishButton(ControllerState.BTN_Y, true);
+        protocol.setStalled(false);
+
+        Thread.sleep(200);
+        assertTrue(sender.getButtonOverflows() > 0);
+        List<String> lines = protocol.sentLines();
+        String[] last = lines.subList(lines.size() - ControllerState.BUTTON_COUNT, lines.size()).toArray(new String[0]);
+        assertEquals("BTN_A:1", last[ControllerState.BTN_A]);
+        assertEquals("BTN_Y:1", last[ControllerState.BTN_Y]);
+    }
+
+    @Test
+    public void buttonEdges_comeFromSharedFramesWithoutAllocating() throws Exception {
+        InputCodec codec = InputCodec.create("text");
+        for (int button = 0; button < ControllerState.BUTTON_COUNT; button++) {
+            assertEquals(ControllerState.BUTTON_NAMES[button] + ":1\n", new String(codec.getButtonFrame(button, true)));
+            assertEquals(ControllerState.BUTTON_NAMES[button] + ":0\n", new String(codec.getButtonFrame(button, false)));
+            assertSame(codec.getButtonFrame(button, true), InputCodec.create("text").getButtonFrame(button, true));
+        }
+        assertNull(InputCodec.create("binary").getButtonFrame(ControllerState.BTN_A, true));
+
+        // The sender hands the codec's shared frame to the protocol instead of encoding a copy
+        CountingProtocol counting = new CountingProtocol();
+        sender.attach(counting, codec);
+        int checked = ControllerState.BUTTON_COUNT * 3;
+        pressAndRelease(counting, checked);
+        synchronized (counting.frames) {
+            assertEquals(2 * checked, counting.frames.size());
+            for (int i = 0; i < checked; i++) {
+                int button = i % ControllerState.BUTTON_COUNT;
+                assertSame(codec.getButtonFrame(button, true), counting.frames.get(2 * i));
+                assertSame(codec.getButtonFrame(button, false), counting.frames.get(2 * i + 1));
+            }
+        }
+        counting.keepFrames = false;
+
+        // Per-thread allocation counters are a HotSpot extension, looked up reflectively so the
+        // test builds against the Android classpath and --release 8, and skipped elsewhere
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Method allocatedBytes = threadAllocatedBytes(threads);
+        Assume.assumeTrue("per-thread allocation counters not available", allocatedBytes != null);
+        long callerId = Thread.currentThread().getId();
+        long senderId = sender.getThread().getId();
+
+        // Warm up, so class loading, compilation and the reflective accessor are out of the way
+        pressAndRelease(counting, 20_000);
+        for (int i = 0; i < 100; i++) {
+            allocated(allocatedBytes, threads, callerId);
+        }
+        long overhead = allocated(allocatedBytes, threads, callerId);
+        overhead = allocated(allocatedBytes, threads, callerId) - overhead;
+
+        int cycles = 10_000;
+        long senderBefore = allocated(allocatedBytes, threads, senderId);
+        long callerBefore = allocated(allocatedBytes, threads, callerId);
+        pressAndRelease(counting, cycles);
+        long callerAllocated = allocated(allocatedBytes, threads, callerId) - callerBefore - overhead;
+        long senderAllocated = allocated(allocatedBytes, threads, senderId) - senderBefore;
+
+        BenchReport.print(cycles + " press/release cycles allocated " + callerAllocated + " bytes on the calling thread, "
+                + senderAllocated + " bytes on the sender thread");
+        assertEquals(0, callerAllocated);
+        assertEquals(0, senderAllocated);
+    }
+
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), or null without it
+    private static Method threadAllocatedBytes(ThreadMXBean threads) {
+        try {
+            Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+            if (!extension.isInstance(threads)) {
+                return null;
+            }
+            Method supported = extension.getMethod("isThreadAllocatedMemorySupported");
+            Method enabled = extension.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) supported.invoke(threads) || !(Boolean) enabled.invoke(threads)) {
+                return null;
+            }
+            return extension.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static long allocated(Method allocatedBytes, ThreadMXBean threads, long threadId) throws Exception {
+        return (Long) allocatedBytes.invoke(threads, threadId);
+    }
+
+    // Each cycle waits for both edges to be written, so the sender thread does its part too
+    private void pressAndRelease(CountingProtocol counting, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            int button = i % ControllerState.BUTTON_COUNT;
+            long expected = counting.messages + 2;
+            sender.publishButton(button, true);
+            sender.publishButton(button, false);
+            while (counting.messages < expected) {
+                Thread.yield();
+            }
+        }
+    }
+
+    // Counts what it is asked to send, without copying anything. Keeps the arrays it got
+    // until keepFrames is cleared, so counting alone allocates nothing
+    private static class CountingProtocol extends ConnectionProtocol {
+        volatile long messages = 0;
+        volatile boolean keepFrames = true;
+        final List<byte[]> frames = new ArrayList<>();
+
+        CountingProtocol() {
+            isConnected = true;
+        }
+
+        @Override
+        public void connect(String address, int port) {
+            isConnected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            isConnected = false;
+        }
+
+        @Override
+        public void sendData(byte[] data, int offset, int length) {
+            if (keepFrames) {
+                synchronized (frames) {
+                    frames.add(data);
+                }
+            }
+            messages++;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return isConnected;
+        }
+
+        @Override
+        public String getProtocolName() {
+            return "Counting";
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.ponio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Local UDP stand-in for the Ponio server behind an artificially lossy link: drops a share
+// of the datagrams in both directions, delivers reliable messages once and in order, and
+// acknowledges them like the real server would. Input of the newest datagram by sequence,
+// reliable or not, is what the server takes as the current state
+class LossyDatagramServer implements AutoCloseable {
+    private final DatagramSocket socket;
+    private final Random random;
+    volatile double lossRate;
+
+    final List<String> reliable = new CopyOnWriteArrayList<>();
+    final List<String> unreliable = new CopyOnWriteArrayList<>();
+    final ConnectionProtocol.UDPProtocol.ReliableFilter reliableFilter = new ConnectionProtocol.UDPProtocol.ReliableFilter();
+    final ConnectionProtocol.UDPProtocol.SequenceFilter sequenceFilter = new ConnectionProtocol.UDPProtocol.SequenceFilter();
+    final ConnectionProtocol.UDPProtocol.RedundancyDecoder redundancyDecoder = new ConnectionProtocol.UDPProtocol.RedundancyDecoder();
+    // Frames of redundant datagrams in the order they were rebuilt
+    final List<byte[]> frames = new CopyOnWriteArrayList<>();
+    volatile long droppedIn = 0;
+    // Reliable datagrams lost on the way in before any other loss applies
+    volatile int dropReliable = 0;
+    // Payload of the newest data or reliable datagram by sequence
+    volatile String current;
+    volatile long droppedOut = 0;
+
+    LossyDatagramServer(double lossRate, long seed) throws IOException {
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread receiver = new Thread(this::receiveLoop, "LossyReceiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[1500];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(buffer);
+                socket.receive(packet);
+                if (random.nextDouble() < lossRate || dropReliable(buffer)) {
+                    droppedIn++;
+                    continue;
+                }
+                onDatagram(buffer, packet.getLength(), packet.getSocketAddress());
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void onDatagram(byte[] buffer, int length, SocketAddress from) throws IOException {
+        int sequence = ConnectionProtocol.UDPProtocol.readSequence(buffer, 0);
+        byte type = buffer[4];
+        if (type == ConnectionProtocol.UDPProtocol.TYPE_RELIABLE) {
+            int id = ConnectionProtocol.UDPProtocol.readSequence(buffer, ConnectionProtocol.UDPProtocol.HEADER_SIZE);
+            int start = ConnectionProtocol.UDPProtocol.RELIABLE_HEADER_SIZE;
+            if (reliableFilter.accept(id)) {
+                reliable.add(new String(buffer, start, length - start));
+            }
+            if (sequenceFilter.accept(sequence)) {
+                current = new String(buffer, start, length - start);
+            }
+            sendAck(reliableFilter.getAckId(), from);
+        } else if (type == ConnectionProtocol.UDPProtocol.TYPE_REDUNDANT) {
+            redundancyDecoder.accept(buffer, length, (seq, data, offset, frameLength, recovered) -> {
+                byte[] frame = new byte[frameLength];
+                System.arraycopy(data, offset, frame, 0, frameLength);
+                frames.add(frame);
+            });
+        } else if (type == ConnectionProtocol.UDPProtocol.TYPE_DATA && sequenceFilter.accept(sequence)) {
+            int start = ConnectionProtocol.UDPProtocol.HEADER_SIZE;
+            current = new String(buffer, start, length - start);
+            unreliable.add(current);
+        }
+    }
+
+    private boolean dropReliable(byte[] buffer) {
+        if (dropReliable > 0 && buffer[4] == ConnectionProtocol.UDPProtocol.TYPE_RELIABLE) {
+            dropReliable--;
+            return true;
+        }
+        return false;
+    }
+
+    private void sendAck(int id, SocketAddress to) throws IOException {
+        if (random.nextDouble() < lossRate) {
+            droppedOut++;
+            return;
+        }
+        byte[] ack = new byte[ConnectionProtocol.UDPProtocol.HEADER_SIZE];
+        ConnectionProtocol.UDPProtocol.writeHeader(ack, id, ConnectionProtocol.UDPProtocol.TYPE_ACK);
+        socket.send(new DatagramPacket(ack, ack.length, to));
+    }
+
+    boolean awaitReliable(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (reliable.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return reliable.size() >= count;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
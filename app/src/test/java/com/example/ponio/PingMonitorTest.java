@@ -0,0 +1,62 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PingMonitorTest {
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L); // 1..1000 us
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_000, histogram.getPercentileNanos(50), 500_000 * 0.13);
+        assertEquals(990_000, histogram.getPercentileNanos(99), 990_000 * 0.13);
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        assertEquals(500_500, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void stats_matchEchoServerDelayJitterAndLoss() throws Exception {
+        try (StandInServer server = new StandInServer()) {
+            // Alternating 10 ms / 30 ms answers: RTT median ~10-30 ms, jitter ~20 ms
+            server.pingDelay = index -> index % 2 == 0 ? 30 : 10;
+            server.dropEveryNthPing = 5;
+
+            ConnectionProtocol protocol = ConnectionProtocol.create("tcp");
+            PingMonitor monitor = new PingMonitor(message -> {
+                try {
+                    protocol.sendData(message);
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+            protocol.setMessageListener(monitor::onMessage);
+            protocol.connect("127.0.0.1", server.getPort());
+
+            monitor.setInterval(40);
+            monitor.setTimeout(200);
+            monitor.start();
+            Thread.sleep(2500);
+            monitor.stop();
+            Thread.sleep(250);
+
+            LinkStats stats = monitor.getStats();
+            monitor.shutdown();
+            protocol.disconnect();
+            BenchReport.print("Echo server link: " + stats);
+
+            assertTrue(stats.pingsSent >= 40);
+            assertEquals(20.0, stats.lossPercent, 5.0);
+            assertTrue(stats.rttMinNanos >= 10_000_000);
+            assertTrue(stats.rttP99Nanos >= 30_000_000 && stats.rttP99Nanos < 60_000_000);
+            assertEquals(20_000_000, stats.jitterP50Nanos, 6_000_000);
+            assertTrue(stats.lossBursts[1] > 0);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateControllerTest {
+    private static final long MS = 1_000_000L;
+
+    private int appliedRate;
+    private long appliedWindow;
+
+    private RateController newController() {
+        return new RateController((rateHz, windowMicros) -> {
+            appliedRate = rateHz;
+            appliedWindow = windowMicros;
+        });
+    }
+
+    @Test
+    public void controller_backsOffOnQueueDelayAndRecoversOnCleanLink() {
+        RateController controller = newController();
+        controller.reset();
+        long now = 0;
+
+        // Clean LAN: nothing to do
+        for (int i = 0; i < 20; i++) {
+            controller.onRttSample(2 * MS + (i % 3) * 100_000, now += 100 * MS);
+        }
+        assertEquals(250, controller.getRateHz());
+        assertEquals(0, controller.getDecisions().size());
+
+        // A queue builds up on the hotspot: RTT climbs to 60ms
+        for (int i = 0; i < 20; i++) {
+            controller.onRttSample(Math.min(60, 2 + i * 6) * MS, now += 100 * MS);
+        }
+        assertTrue(controller.getDecreases() >= 3);
+        assertTrue(controller.getRateHz() < 100);
+        assertTrue(appliedWindow >= 4000);
+        assertEquals(controller.getRateHz(), appliedRate);
+        RateController.Decision first = controller.getDecisions().get(0);
+        assertEquals(RateController.ACTION_DECREASE, first.action);
+        assertTrue(first.reason, first.reason.startsWith("queue delay"));
+        int throttled = controller.getRateHz();
+
+        // Queue drained: back to full rate in steps
+        long recoveredAfter = -1;
+        for (int i = 0; i < 150 && recoveredAfter < 0; i++) {
+            controller.onRttSample(2 * MS, now += 100 * MS);
+            if (controller.getRateHz() == 250 && controller.getWindowMicros() == 0) {
+                recoveredAfter = (i + 1) * 100;
+            }
+        }
+        assertTrue(recoveredAfter > 0);
+        assertEquals(0, appliedWindow);
+
+        List<RateController.Decision> decisions = controller.getDecisions();
+        BenchReport.print("Throttled to " + throttled + "Hz, recovered " + recoveredAfter + "ms after the queue drained:");
+        for (RateController.Decision d : decisions) {
+            BenchReport.print("  " + d);
+        }
+        assertEquals(RateController.ACTION_INCREASE, decisions.get(decisions.size() - 1).action);
+    }
+
+    @Test
+    public void controller_backsOffOnLossWithoutQueueing() {
+        RateController controller = newController();
+        controller.reset();
+        long now = 0;
+        for (int i = 0; i < 40; i++) {
+            now += 100 * MS;
+            if (i % 4 == 0) {
+                controller.onLoss(now); // 25% of pings lost, RTT stays low
+            } else {
+                controller.onRttSample(2 * MS, now);
+            }
+        }
+        assertTrue(controller.getLossRate() > 0.05);
+        assertTrue(controller.getRateHz() < 250);
+        assertTrue(controller.getDecisions().get(0).reason.startsWith("loss"));
+    }
+
+    @Test
+    public void sender_rateLimitSpacesStickFramesButNeverHoldsButtons() throws Exception {
+        InputSender sender = new InputSender();
+        RecordingProtocol protocol = new RecordingProtocol();
+        protocol.connect("127.0.0.1", 0);
+        sender.start();
+        sender.attach(protocol, InputCodec.create("text"));
+        sender.setRateLimit(50);
+        try {
+            long start = System.nanoTime();
+            for (int i = 1; i <= 300; i++) {
+                sender.publishStick(ControllerState.STICK_LEFT, i / 300f, 0f);
+                if (i % 100 == 0) {
+                    sender.publishButton(ControllerState.BTN_A, i % 200 != 0);
+                }
+                Thread.sleep(1);
+            }
+            Thread.sleep(50);
+            long elapsedMs = (System.nanoTime() - start) / MS;
+
+            List<String> lines = protocol.sentLines();
+            long sticks = lines.stream().filter(l -> l.startsWith("LJOY:")).count();
+            long buttons = lines.stream().filter(l -> l.startsWith("BTN_A:")).count();
+            BenchReport.print("50Hz limit: " + sticks + " stick frames in " + elapsedMs + "ms, "
+                    + sender.getCoalescedAnalog() + " positions coalesced");
+            assertEquals(3, buttons);
+            assertTrue(sticks <= elapsedMs / 20 + 2);
+            // The newest position still goes out
+            assertEquals("LJOY:1.000,0.000", lines.stream().filter(l -> l.startsWith("LJOY:"))
+                    .reduce((a, b) -> b).orElse(""));
+        } finally {
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void manager_throttlesWhileServerQueuesPingsAndRecovers() throws Exception {
+        GamepadManager manager = GamepadManager.getInstance();
+        try (StandInServer server = new StandInServer()) {
+            manager.setProtocol("tcp");
+            manager.setCodec("text");
+            manager.setLinkKeepalive(100, 1000);
+            RateController controller = manager.getRateController();
+            controller.setHoldTimes(100, 200);
+            long decreasesBefore = controller.getDecreases();
+
+            CountDownLatch connected = new CountDownLatch(1);
+            manager.connect("127.0.0.1", server.getPort(), new GamepadManager.ConnectionCallback() {
+                @Override
+                public void onSuccess(String message) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                }
+            });
+            assertTrue(connected.await(2, TimeUnit.SECONDS));
+            assertEquals(0, manager.getSendRateLimit());
+
+            // Pongs come back later and later, like behind a filling queue
+            server.pingDelay = index -> index < 5 ? 0 : Math.min(80, (index - 5) * 10);
+            long deadline = System.currentTimeMillis() + 3000;
+            while (manager.getSendRateLimit() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(manager.getSendRateLimit() > 0);
+            assertTrue(controller.getDecreases() > decreasesBefore);
+
+            server.pingDelay = index -> 0;
+            deadline = System.currentTimeMillis() + 8000;
+            while (manager.getSendRateLimit() != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, manager.getSendRateLimit());
+            BenchReport.print("Decisions: " + controller.getDecisions());
+        } finally {
+            manager.getRateController().setHoldTimes(200, 500);
+            manager.setLinkKeepalive(100, LinkWatchdog.DEFAULT_KEEPALIVE_TIMEOUT_MS);
+            CountDownLatch done = new CountDownLatch(1);
+            manager.disconnect(done::countDown);
+            done.await(2, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.ponio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// In-memory ConnectionProtocol that keeps a copy of every message it was asked to send
+class RecordingProtocol extends ConnectionProtocol {
+    final List<byte[]> sent = new ArrayList<>();
+    volatile boolean failNextSend = false;
+    private boolean stalled = false;
+    private final Object stallLock = new Object();
+
+    @Override
+    public void connect(String address, int port) {
+        isConnected = true;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (stallLock) {
+            isConnected = false;
+            stallLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void sendData(byte[] data, int offset, int length) throws IOException {
+        synchronized (stallLock) {
+            while (stalled) {
+                if (!isConnected) {
+                    throw new IOException("Closed while the send was blocked");
+                }
+                try {
+                    stallLock.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        if (failNextSend) {
+            failNextSend = false;
+            throw new IOException("Simulated send failure");
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        synchronized (sent) {
+            sent.add(copy);
+            sent.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    @Override
+    public String getProtocolName() {
+        return "Recording";
+    }
+
+    // While stalled every send blocks, like a socket whose peer stopped reading
+    void setStalled(boolean stalled) {
+        synchronized (stallLock) {
+            this.stalled = stalled;
+            stallLock.notifyAll();
+        }
+    }
+
+    List<String> sentLines() {
+        List<String> lines = new ArrayList<>();
+        synchronized (sent) {
+            for (byte[] message : sent) {
+                for (String line : new String(message).split("\n")) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    // Waits until at least count messages were sent, returns false on timeout
+    boolean awaitSent(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (sent) {
+            while (sent.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                sent.wait(remaining);
+            }
+        }
+        return true;
+    }
+}
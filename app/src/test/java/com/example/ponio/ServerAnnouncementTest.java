@@ -0,0 +1,199 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ServerAnnouncementTest {
+    private ServerCache cache;
+    private ServerAnnouncementListener listener;
+    private final List<ServerDiscovery.DiscoveredServer> added = new CopyOnWriteArrayList<>();
+    private final List<ServerDiscovery.DiscoveredServer> expired = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        cache = new ServerCache();
+        cache.setListener(new ServerCache.Listener() {
+            @Override
+            public void onServerAdded(ServerDiscovery.DiscoveredServer server) {
+                added.add(server);
+            }
+
+            @Override
+            public void onServerExpired(ServerDiscovery.DiscoveredServer server) {
+                expired.add(server);
+            }
+        });
+        listener = new ServerAnnouncementListener(cache, 0);
+    }
+
+    @After
+    public void tearDown() {
+        listener.stop();
+    }
+
+    @Test
+    public void cache_keysByIpAndPortAndEvictsAfterTtl() {
+        cache.setTtl(1000);
+        ServerDiscovery.DiscoveredServer htpc = server("htpc", "192.168.1.20", 8888);
+        assertTrue(cache.put(htpc, 0));
+        // Second server process on the same PC is a different entry
+        assertTrue(cache.put(server("htpc-2", "192.168.1.20", 8889), 100));
+        assertTrue(cache.put(server("laptop", "192.168.1.31", 8888), 200));
+        // Renamed on the PC: still one entry, with the new name
+        assertFalse(cache.put(server("living room", "192.168.1.20", 8888), 900));
+        assertEquals(3, added.size());
+        assertEquals(900, cache.getLastSeen(htpc));
+        assertEquals("living room", cache.getServers(900).get(0).name);
+
+        // 1.25s: the two seen at 100 and 200 are past the TTL, the refreshed one is not
+        assertEquals(1, cache.getServers(1250).size());
+        assertEquals(3, cache.size());
+        List<ServerDiscovery.DiscoveredServer> evicted = cache.evictExpired(1250);
+        assertEquals(2, evicted.size());
+        assertEquals(evicted, expired);
+        assertEquals(Arrays.asList(htpc), cache.getServers(1250));
+
+        // Seen again after expiring counts as new
+        assertTrue(cache.put(server("laptop", "192.168.1.31", 8888), 1300));
+        assertEquals(4, added.size());
+    }
+
+    @Test
+    public void listener_fillsCacheFromAnnouncementsAndDropsSilentServers() throws Exception {
+        cache.setTtl(300);
+        listener.start();
+        assertTrue(listener.isListening());
+        Announcer htpc = new Announcer("127.0.0.2", listener.getPort(), "PONIO_SERVER:htpc:8888:tcp", 50);
+        Announcer laptop = new Announcer("127.0.0.3", listener.getPort(), "PONIO_SERVER:laptop:8888:udp", 50);
+        try {
+            assertTrue(await(() -> cache.getServers().size() == 2, 1000));
+            Thread.sleep(200);
+            // Announced several times, reported once each
+            assertEquals(2, added.size());
+            assertTrue(listener.getAnnouncementCount() > 4);
+            ServerDiscovery.DiscoveredServer laptopServer = server("laptop", "127.0.0.3", 8888);
+            assertTrue(cache.getServers().contains(laptopServer));
+            assertEquals("udp", cache.getServers().get(cache.getServers().indexOf(laptopServer)).protocol);
+
+            // The laptop goes to sleep, the HTPC keeps announcing
+            laptop.close();
+            assertTrue(await(() -> expired.size() == 1, 3000));
+            assertEquals(laptopServer, expired.get(0));
+            assertEquals(Arrays.asList(server("htpc", "127.0.0.2", 8888)), cache.getServers());
+        } finally {
+            htpc.close();
+            laptop.close();
+        }
+        listener.stop();
+        assertFalse(listener.isListening());
+    }
+
+    @Test
+    public void listFill_cacheVersusScan() throws Exception {
+        // A server answering probes 40ms after they arrive
+        try (DiscoveryResponder responder = new DiscoveryResponder("127.0.0.2", 0, "htpc")) {
+            responder.replyDelayMs = 40;
+            List<ServerDiscovery.ProbeTarget> targets = Arrays.asList(
+                    new ServerDiscovery.ProbeTarget(null, responder.getAddress(), null));
+
+            // Before: the main screen opened empty and waited for a scan
+            ServerDiscovery discovery = new ServerDiscovery(responder.getPort(), targets);
+            discovery.setTimeout(1000);
+            CountDownLatch found = new CountDownLatch(1);
+            CountDownLatch complete = new CountDownLatch(1);
+            long scanStart = System.nanoTime();
+            long[] foundAt = new long[1];
+            discovery.scanForServers(new ServerDiscovery.ScanCallback() {
+                @Override
+                public void onServerFound(ServerDiscovery.DiscoveredServer server) {
+                    foundAt[0] = System.nanoTime();
+                    cache.put(server);
+                    found.countDown();
+                }
+
+                @Override
+                public void onScanComplete(List<ServerDiscovery.DiscoveredServer> servers) {
+                    complete.countDown();
+                }
+
+                @Override
+                public void onScanError(String error) {
+                }
+            });
+            assertTrue(found.await(2, TimeUnit.SECONDS));
+            long scanNanos = foundAt[0] - scanStart;
+            assertTrue(complete.await(2, TimeUnit.SECONDS));
+            discovery.cleanup();
+
+            // After: the next time the screen opens the list comes out of the cache
+            long cacheStart = System.nanoTime();
+            List<ServerDiscovery.DiscoveredServer> servers = cache.getServers();
+            long cacheNanos = System.nanoTime() - cacheStart;
+            assertEquals(1, servers.size());
+
+            BenchReport.print(String.format("Server list filled: by scan after %.1fms, from the cache after %.3fms",
+                    scanNanos / 1e6, cacheNanos / 1e6));
+            assertTrue(cacheNanos < scanNanos);
+        }
+    }
+
+    private static ServerDiscovery.DiscoveredServer server(String name, String ip, int port) {
+        return new ServerDiscovery.DiscoveredServer(name, ip, port, "tcp");
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static boolean await(Condition condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.met()) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return condition.met();
+    }
+
+    // Stand-in for a server's announcement loop, sending from its own loopback address
+    private static class Announcer implements AutoCloseable {
+        private final DatagramSocket socket;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        Announcer(String host, int port, String message, long intervalMs) throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(host), 0));
+            byte[] data = message.getBytes();
+            InetAddress target = InetAddress.getByName("127.0.0.1");
+            timer.scheduleAtFixedRate(() -> {
+                try {
+                    socket.send(new DatagramPacket(data, data.length, target, port));
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }, 0, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            timer.shutdownNow();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ServerDiscoveryTest {
+    private final List<DiscoveryResponder> responders = new ArrayList<>();
+    private List<ServerDiscovery.ProbeTarget> targets;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        // Three hosts at different distances, e.g. wired HTPC, desktop over powerline, laptop
+        DiscoveryResponder first = new DiscoveryResponder("127.0.0.2", 0, "htpc");
+        port = first.getPort();
+        responders.add(first);
+        responders.add(new DiscoveryResponder("127.0.0.3", port, "desktop"));
+        responders.add(new DiscoveryResponder("127.0.0.4", port, "laptop"));
+        responders.get(0).replyDelayMs = 10;
+        responders.get(1).replyDelayMs = 40;
+        responders.get(2).replyDelayMs = 90;
+        targets = new ArrayList<>();
+        for (DiscoveryResponder responder : responders) {
+            targets.add(new ServerDiscovery.ProbeTarget(null, responder.getAddress(), null));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (DiscoveryResponder responder : responders) {
+            responder.close();
+        }
+    }
+
+    @Test
+    public void scan_reportsServersAsTheyAnswerAndStopsAtTheLimit() throws Exception {
+        ServerDiscovery discovery = new ServerDiscovery(port, targets);
+        discovery.setMaxServers(3);
+        Timing timing = new Timing();
+        discovery.scanForServers(timing);
+        assertTrue(timing.complete.await(2, TimeUnit.SECONDS));
+
+        assertNull(timing.error);
+        assertEquals(Arrays.asList("htpc", "desktop", "laptop"), timing.names());
+        assertEquals(3, timing.result.size());
+        // Done with the last answer, not the 3 second timeout
+        assertTrue(timing.completeMs() < 1000);
+        discovery.cleanup();
+    }
+
+    @Test
+    public void scan_reprobesWhenTheFirstBroadcastIsLost() throws Exception {
+        responders.get(0).dropFirstProbes = 1;
+        ServerDiscovery discovery = new ServerDiscovery(port, targets);
+        discovery.setMaxServers(3);
+        Timing timing = new Timing();
+        discovery.scanForServers(timing);
+        assertTrue(timing.complete.await(2, TimeUnit.SECONDS));
+
+        assertEquals(3, timing.result.size());
+        assertEquals("htpc", timing.names().get(2));
+        // Answers to repeated probes are not reported twice
+        assertEquals(3, timing.found.size());
+        discovery.cleanup();
+    }
+
+    @Test
+    public void stopScan_cancelsMidScan() throws Exception {
+        responders.get(2).silent = true;
+        ServerDiscovery discovery = new ServerDiscovery(port, targets);
+        discovery.setTimeout(10_000);
+        Timing timing = new Timing();
+        discovery.scanForServers(timing);
+        Thread.sleep(200);
+        assertTrue(discovery.isScanning());
+
+        long stopped = System.nanoTime();
+        discovery.stopScan();
+        assertTrue(timing.complete.await(1, TimeUnit.SECONDS));
+        long cancelMs = TimeUnit.NANOSECONDS.toMillis(timing.completeNanos - stopped);
+        BenchReport.print("Scan cancelled " + cancelMs + "ms after stopScan()");
+        assertTrue(cancelMs < 100);
+        assertEquals(2, timing.result.size());
+        assertFalse(discovery.isScanning());
+
+        // The next scan starts fresh
+        Timing again = new Timing();
+        discovery.setTimeout(300);
+        discovery.scanForServers(again);
+        assertTrue(again.complete.await(2, TimeUnit.SECONDS));
+        assertEquals(2, again.result.size());
+        discovery.cleanup();
+    }
+
+    @Test
+    public void broadcastAddress_followsThePrefixLength() throws Exception {
+        // address, prefix, directed broadcast (null = none), what the old last-octet rule sent to
+        String[][] table = {
+                {"192.168.1.37", "24", "192.168.1.255", "192.168.1.255"},
+                {"10.20.5.9", "22", "10.20.7.255", "10.20.5.255"},
+                {"10.20.6.200", "23", "10.20.7.255", "10.20.6.255"},
+                {"192.168.2.14", "23", "192.168.3.255", "192.168.2.255"},
+                {"172.16.40.3", "16", "172.16.255.255", "172.16.40.255"},
+                {"10.1.2.3", "8", "10.255.255.255", "10.1.2.255"},
+                {"192.168.43.12", "24", "192.168.43.255", "192.168.43.255"}, // Android hotspot
+                {"172.20.10.5", "28", "172.20.10.15", "172.20.10.255"}, // iPhone hotspot
+                {"192.168.1.130", "25", "192.168.1.255", "192.168.1.255"},
+                {"192.168.1.70", "26", "192.168.1.127", "192.168.1.255"},
+                {"100.64.0.9", "30", "100.64.0.11", "100.64.0.255"},
+                {"100.64.0.8", "31", null, "100.64.0.255"}, // point-to-point, no broadcast
+                {"10.0.0.1", "32", null, "10.0.0.255"},
+                {"10.0.0.1", "0", "255.255.255.255", "10.0.0.255"},
+        };
+        BenchReport.print("address          prefix  broadcast         last octet 255");
+        int legacyWrong = 0;
+        for (String[] row : table) {
+            InetAddress address = InetAddress.getByName(row[0]);
+            InetAddress broadcast = ServerDiscovery.broadcastAddress(address, Integer.parseInt(row[1]));
+            String computed = broadcast == null ? null : broadcast.getHostAddress();
+            assertEquals(row[0] + "/" + row[1], row[2], computed);
+            boolean wrong = !row[3].equals(row[2]);
+            if (wrong) legacyWrong++;
+            BenchReport.print(String.format("%-16s %6s  %-17s %s%s", row[0], "/" + row[1],
+                    computed == null ? "none" : computed, row[3], wrong ? "  (wrong)" : ""));
+        }
+        BenchReport.print(legacyWrong + " of " + table.length + " subnets got probes at the wrong address before");
+        assertEquals(11, legacyWrong);
+
+        assertNull(ServerDiscovery.broadcastAddress(InetAddress.getByName("fe80::1"), 64));
+        assertNull(ServerDiscovery.broadcastAddress(address("10.0.0.1"), 33));
+        assertNull(ServerDiscovery.broadcastAddress(address("10.0.0.1"), -1));
+    }
+
+    @Test
+    public void dedupe_probesEachBroadcastAddressOnce() throws Exception {
+        List<ServerDiscovery.ProbeTarget> candidates = Arrays.asList(
+                new ServerDiscovery.ProbeTarget(address("10.20.5.9"), address("10.20.7.255"), "wlan0"),
+                // Second address on the same /22
+                new ServerDiscovery.ProbeTarget(address("10.20.6.1"), address("10.20.7.255"), "wlan0"),
+                new ServerDiscovery.ProbeTarget(address("192.168.43.1"), address("192.168.43.255"), "ap0"),
+                new ServerDiscovery.ProbeTarget(null, address("255.255.255.255"), null),
+                new ServerDiscovery.ProbeTarget(null, address("255.255.255.255"), null));
+        List<ServerDiscovery.ProbeTarget> unique = ServerDiscovery.dedupe(candidates);
+        assertEquals(3, unique.size());
+        assertEquals(address("10.20.5.9"), unique.get(0).local);
+        assertEquals(address("192.168.43.255"), unique.get(1).broadcast);
+        assertNull(unique.get(2).local);
+    }
+
+    @Test
+    public void probe_leavesFromTheTargetsLocalAddress() throws Exception {
+        // Two "interfaces" on loopback, each probing its own responder
+        List<ServerDiscovery.ProbeTarget> bound = Arrays.asList(
+                new ServerDiscovery.ProbeTarget(address("127.0.0.5"), responders.get(0).getAddress(), "lo:5"),
+                new ServerDiscovery.ProbeTarget(address("127.0.0.6"), responders.get(1).getAddress(), "lo:6"));
+        ServerDiscovery discovery = new ServerDiscovery(port, bound);
+        discovery.setMaxServers(2);
+        Timing timing = new Timing();
+        discovery.scanForServers(timing);
+        assertTrue(timing.complete.await(2, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("htpc", "desktop"), timing.names());
+        assertEquals(address("127.0.0.5"), responders.get(0).lastProbeFrom);
+        assertEquals(address("127.0.0.6"), responders.get(1).lastProbeFrom);
+        assertEquals(0, responders.get(2).probes.get());
+        discovery.cleanup();
+    }
+
+    @Test
+    public void timeToFirstServer_legacyVersusSelector() throws Exception {
+        BenchReport.print("scenario          scan         first    all found   complete");
+        for (boolean lossy : new boolean[]{false, true}) {
+            responders.get(0).dropFirstProbes = lossy ? 1 : 0;
+            for (DiscoveryResponder responder : responders) {
+                responder.probes.set(0);
+            }
+            String scenario = lossy ? "first probe lost" : "clean";
+
+            Timing legacy = new Timing();
+            legacyScan(port, targets, 3000, legacy);
+            print(scenario, "legacy", legacy);
+            assertTrue(legacy.completeMs() >= 3000);
+
+            for (DiscoveryResponder responder : responders) {
+                responder.probes.set(0);
+            }
+            ServerDiscovery discovery = new ServerDiscovery(port, targets);
+            discovery.setMaxServers(3);
+            Timing selector = new Timing();
+            discovery.scanForServers(selector);
+            assertTrue(selector.complete.await(4, TimeUnit.SECONDS));
+            print(scenario, "selector", selector);
+            discovery.cleanup();
+
+            // All three, even the one whose first probe was lost: the re-probe reaches it
+            assertEquals(3, selector.result.size());
+            assertTrue(selector.lastMs() < 1000);
+            assertTrue(selector.completeMs() < legacy.completeMs() / 2);
+            assertEquals(lossy ? 2 : 3, legacy.result.size());
+        }
+    }
+
+    private static InetAddress address(String host) throws IOException {
+        return InetAddress.getByName(host);
+    }
+
+    private static void print(String scenario, String scan, Timing timing) {
+        BenchReport.print(String.format("%-17s %-9s %8s %12s %8dms  (%d found)", scenario, scan,
+                timing.firstMs() < 0 ? "-" : timing.firstMs() + "ms",
+                timing.found.size() < 3 ? "never" : timing.lastMs() + "ms",
+                timing.completeMs(), timing.result.size()));
+    }
+
+    // Records when each callback arrived, relative to the scan start
+    private static class Timing implements ServerDiscovery.ScanCallback {
+        final long startNanos = System.nanoTime();
+        final List<ServerDiscovery.DiscoveredServer> found = new CopyOnWriteArrayList<>();
+        final List<Long> foundNanos = new CopyOnWriteArrayList<>();
+        final CountDownLatch complete = new CountDownLatch(1);
+        volatile List<ServerDiscovery.DiscoveredServer> result;
+        volatile long completeNanos;
+        volatile String error;
+
+        @Override
+        public void onServerFound(ServerDiscovery.DiscoveredServer server) {
+            foundNanos.add(System.nanoTime());
+            found.add(server);
+        }
+
+        @Override
+        public void onScanComplete(List<ServerDiscovery.DiscoveredServer> servers) {
+            completeNanos = System.nanoTime();
+            result = servers;
+            complete.countDown();
+        }
+
+        @Override
+        public void onScanError(String error) {
+            this.error = error;
+            completeNanos = System.nanoTime();
+            result = new ArrayList<>();
+            complete.countDown();
+        }
+
+        List<String> names() {
+            List<String> names = new ArrayList<>();
+            for (ServerDiscovery.DiscoveredServer server : found) {
+                names.add(server.name);
+            }
+            return names;
+        }
+
+        long firstMs() {
+            return foundNanos.isEmpty() ? -1 : TimeUnit.NANOSECONDS.toMillis(foundNanos.get(0) - startNanos);
+        }
+
+        long lastMs() {
+            return TimeUnit.NANOSECONDS.toMillis(foundNanos.get(foundNanos.size() - 1) - startNanos);
+        }
+
+        long completeMs() {
+            return TimeUnit.NANOSECONDS.toMillis(completeNanos - startNanos);
+        }
+    }
+
+    // The scan loop as it was before the Selector rewrite: one probe per target, then
+    // socket.receive with a timeout until the full timeout is over
+    private static void legacyScan(int port, List<ServerDiscovery.ProbeTarget> targets, int timeoutMs,
+                                   ServerDiscovery.ScanCallback callback) throws IOException {
+        List<ServerDiscovery.DiscoveredServer> servers = new ArrayList<>();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            socket.setSoTimeout(timeoutMs);
+            byte[] sendData = "PONIO_DISCOVER".getBytes();
+            for (ServerDiscovery.ProbeTarget target : targets) {
+                socket.send(new DatagramPacket(sendData, sendData.length, target.broadcast, port));
+            }
+
+            byte[] receiveData = new byte[1024];
+            long startTime = System.currentTimeMillis();
+            while (System.currentTimeMillis() - startTime < timeoutMs) {
+                try {
+                    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+                    socket.receive(receivePacket);
+                    String response = new String(receivePacket.getData(), 0, receivePacket.getLength());
+                    String[] parts = response.split(":");
+                    if (response.startsWith("PONIO_SERVER:") && parts.length >= 4) {
+                        ServerDiscovery.DiscoveredServer server = new ServerDiscovery.DiscoveredServer(parts[1],
+                                receivePacket.getAddress().getHostAddress(), Integer.parseInt(parts[2]), parts[3]);
+                        if (!servers.contains(server)) {
+                            servers.add(server);
+                            callback.onServerFound(server);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Timeout or error - continue scanning
+                }
+            }
+        }
+        callback.onScanComplete(servers);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ServerProberTest {
+    private final List<DiscoveryResponder> responders = new ArrayList<>();
+    private final List<ServerDiscovery.DiscoveredServer> servers = new ArrayList<>();
+    private ServerProber prober;
+    private volatile int updates = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        // In the order a scan reports them: by how fast the first answer came back
+        DiscoveryResponder htpc = new DiscoveryResponder("127.0.0.2", 0, "htpc");
+        int port = htpc.getPort();
+        responders.add(htpc);
+        responders.add(new DiscoveryResponder("127.0.0.3", port, "laptop"));
+        responders.add(new DiscoveryResponder("127.0.0.4", port, "desktop"));
+        // Wired living room HTPC
+        responders.get(0).replyDelayMs = 2;
+        // Laptop on 2.4GHz: close, but drops a lot
+        responders.get(1).replyDelayMs = 5;
+        responders.get(1).dropPercent = 40;
+        // Desktop over powerline: slower, steady
+        responders.get(2).replyDelayMs = 15;
+        for (DiscoveryResponder responder : responders) {
+            servers.add(new ServerDiscovery.DiscoveredServer(responder.name,
+                    responder.getAddress().getHostAddress(), 8888, "tcp"));
+        }
+        prober = new ServerProber(port, (server, result) -> updates++);
+    }
+
+    @After
+    public void tearDown() {
+        prober.stop();
+        for (DiscoveryResponder responder : responders) {
+            responder.close();
+        }
+    }
+
+    @Test
+    public void result_takesMedianAndLossOfTheWindow() {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        ServerProber.Result result = ServerProber.Result.of(new long[]{5 * ms, -1, 3 * ms, 40 * ms, 4 * ms}, 5);
+        assertEquals(5, result.probes);
+        assertEquals(4, result.answered);
+        assertEquals(20.0, result.lossPercent, 0.001);
+        // One slow outlier does not move the median much: (4 + 5) / 2
+        assertEquals(4_500_000, result.medianRttNanos);
+        assertEquals("4.5 ms, 20% loss", result.toString());
+
+        ServerProber.Result lost = ServerProber.Result.of(new long[]{-1, -1}, 2);
+        assertFalse(lost.isMeasured());
+        assertEquals("no answer", lost.toString());
+        assertEquals("...", ServerProber.Result.of(new long[0], 0).toString());
+        assertEquals("12 ms", ServerProber.Result.of(new long[]{12 * ms}, 1).toString());
+    }
+
+    @Test
+    public void ranking_pricesLossAgainstLatency() {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        ServerProber.Result fast = ServerProber.Result.of(new long[]{2 * ms, 2 * ms}, 2);
+        ServerProber.Result slow = ServerProber.Result.of(new long[]{15 * ms, 15 * ms}, 2);
+        ServerProber.Result lossy = ServerProber.Result.of(new long[]{5 * ms, -1, 5 * ms, -1, 5 * ms}, 5);
+        ServerProber.Result silent = ServerProber.Result.of(new long[]{-1}, 1);
+        List<ServerProber.Result> results = new ArrayList<>(Arrays.asList(silent, null, lossy, slow, fast));
+        Collections.sort(results, ServerProber.BEST_FIRST);
+        // 5ms with 40% loss ranks like 85ms
+        assertEquals(Arrays.asList(fast, slow, lossy, silent, null), results);
+    }
+
+    @Test
+    public void liveProbes_rankServersByHowTheyWillFeel() throws Exception {
+        long start = System.nanoTime();
+        for (ServerDiscovery.DiscoveredServer server : servers) {
+            prober.add(server);
+        }
+        prober.start();
+
+        List<String> expected = Arrays.asList("htpc", "desktop", "laptop");
+        long rankedAfter = -1;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (rankedAfter < 0 && ranking().equals(expected)) {
+                rankedAfter = System.nanoTime() - start;
+            }
+            if (allProbed(ServerProber.BURST_PROBES)) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        assertTrue(allProbed(ServerProber.BURST_PROBES));
+
+        BenchReport.print("arrival  ranked   median    loss");
+        List<String> ranked = ranking();
+        for (int i = 0; i < servers.size(); i++) {
+            ServerDiscovery.DiscoveredServer server = find(ranked.get(i));
+            ServerProber.Result result = prober.getResult(server);
+            BenchReport.print(String.format("%-8s %-8s %5.1fms %6.0f%%", servers.get(i).name, server.name,
+                    result.medianRttNanos / 1e6, result.lossPercent));
+        }
+        BenchReport.print(String.format("Final order first reached after %.0fms, %d updates",
+                rankedAfter / 1e6, updates));
+        assertEquals(expected, ranked);
+        assertEquals(40.0, prober.getResult(find("laptop")).lossPercent, 0.001);
+        assertEquals(0.0, prober.getResult(find("htpc")).lossPercent, 0.001);
+        assertTrue(rankedAfter > 0 && rankedAfter < TimeUnit.SECONDS.toNanos(2));
+
+        // A server that went away stops being probed
+        prober.remove(find("laptop"));
+        assertNull(prober.getResult(find("laptop")));
+    }
+
+    private boolean allProbed(int probes) {
+        for (ServerDiscovery.DiscoveredServer server : servers) {
+            ServerProber.Result result = prober.getResult(server);
+            if (result == null || result.probes < probes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<String> ranking() {
+        List<ServerDiscovery.DiscoveredServer> sorted = new ArrayList<>(servers);
+        Collections.sort(sorted, (a, b) -> ServerProber.BEST_FIRST.compare(prober.getResult(a), prober.getResult(b)));
+        List<String> names = new ArrayList<>();
+        for (ServerDiscovery.DiscoveredServer server : sorted) {
+            names.add(server.name);
+        }
+        return names;
+    }
+
+    private ServerDiscovery.DiscoveredServer find(String name) {
+        for (ServerDiscovery.DiscoveredServer server : servers) {
+            if (server.name.equals(name)) {
+                return server;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionResumeTest {
+    // The stand-in answers greetings after this long, like a server one RTT away that also
+    // has to set up its virtual gamepad
+    private static final long ANSWER_DELAY_MS = 60;
+
+    private GamepadManager manager;
+    private StandInServer server;
+    private CountDownLatch lost;
+    private CountDownLatch reconnected;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        server.sessions = true;
+        manager = GamepadManager.getInstance();
+        manager.setProtocol("tcp");
+        manager.setCodec("text");
+        manager.setSendMode(GamepadManager.SEND_MODE_EVENT);
+        listen();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.setConnectionListener(null);
+        manager.setSessionResumption(true);
+        manager.setFailoverEnabled(true);
+        manager.setLegacyFallback(true);
+        manager.setLinkKeepalive(100, LinkWatchdog.DEFAULT_KEEPALIVE_TIMEOUT_MS);
+        manager.setReconnectBackoff(100, 3000);
+        CountDownLatch done = new CountDownLatch(1);
+        manager.disconnect(done::countDown);
+        done.await(2, TimeUnit.SECONDS);
+        manager.setProtocol("tcp");
+        server.close();
+    }
+
+    @Test
+    public void handshake_carriesSessionToken() {
+        Handshake.Result welcome = Handshake.parseWelcome("WELCOME:1;n=0;codec=binary;tick=125;features=ping,resume;session=ab12");
+        assertNotNull(welcome);
+        assertEquals("ab12", welcome.session);
+        assertTrue(welcome.hasFeature(Handshake.FEATURE_RESUME));
+        assertNull(Handshake.parseWelcome("WELCOME:1;codec=text").session);
+
+        Handshake resume = new Handshake(welcome);
+        assertEquals("RESUME:1;n=0;session=ab12\n", new String(resume.nextResume()));
+        Handshake.Result resumed = Handshake.parseResumed("RESUMED:1;n=0;session=ab12", welcome);
+        assertNotNull(resumed);
+        assertTrue(resumed.resumed);
+        assertEquals("binary", resumed.codec);
+        assertTrue(resumed.hasFeature(Handshake.FEATURE_PING));
+        assertNull(Handshake.parseResumed("RESUMED:1;n=0;session=other", welcome));
+    }
+
+    @Test
+    public void reconnect_withTokenSendsInputWithoutWaitingForTheServer() throws Exception {
+        server.welcomeDelayMs = ANSWER_DELAY_MS;
+        connect();
+        manager.setButton(ControllerState.BTN_A, true);
+        assertTrue(server.awaitLine(0, "BTN_A:1"::equals, 2000) >= 0);
+        assertEquals(1, server.devicesCreated.get());
+
+        // Without resumption every reconnect greets from scratch
+        manager.setSessionResumption(false);
+        long greeted = reconnectAndTimeFirstInput("HELLO:");
+        assertEquals(2, server.devicesCreated.get());
+
+        manager.setSessionResumption(true);
+        long resumesBefore = manager.getResumeCount();
+        long resumed = reconnectAndTimeFirstInput("RESUME:");
+        assertEquals(2, server.devicesCreated.get());
+        assertEquals(1, server.sessionsResumed.get());
+        assertEquals(resumesBefore + 1, manager.getResumeCount());
+        assertTrue(manager.getHandshakeResult().resumed);
+
+        BenchReport.print(String.format("Reconnect to first input at the server, answer delay %dms: "
+                + "full handshake %.2fms, resumed %.2fms", ANSWER_DELAY_MS, greeted / 1e6, resumed / 1e6));
+        assertTrue(greeted >= TimeUnit.MILLISECONDS.toNanos(ANSWER_DELAY_MS));
+        assertTrue(resumed < TimeUnit.MILLISECONDS.toNanos(ANSWER_DELAY_MS / 2));
+        assertTrue(resumed < greeted);
+    }
+
+    @Test
+    public void reconnect_fallsBackToHandshakeWhenServerForgotTheSession() throws Exception {
+        connect();
+        manager.setButton(ControllerState.BTN_A, true);
+        assertTrue(server.awaitLine(0, "BTN_A:1"::equals, 2000) >= 0);
+        long failedBefore = manager.getFailedResumeCount();
+
+        server.forgetSessions(); // server restarted
+        int mark = server.received.size();
+        triggerReconnect();
+
+        int hello = server.awaitLine(mark, line -> line.startsWith("HELLO:"), 2000);
+        assertTrue(hello > server.awaitLine(mark, line -> line.startsWith("RESUME:"), 2000));
+        assertTrue(server.awaitLine(hello, "BTN_A:1"::equals, 2000) > hello);
+        assertEquals(failedBefore + 1, manager.getFailedResumeCount());
+        assertFalse(manager.getHandshakeResult().resumed);
+        assertEquals(2, server.devicesCreated.get());
+    }
+
+    @Test
+    public void udpResume_continuesTheSequenceSpace() throws Exception {
+        server.enableUdp();
+        manager.setProtocol("udp");
+        manager.setFailoverEnabled(false);
+        manager.setLegacyFallback(false);
+        manager.setLinkKeepalive(50, 250);
+        manager.setReconnectBackoff(20, 100);
+        connect();
+        manager.setButton(ControllerState.BTN_B, true);
+        assertTrue(server.awaitLine(0, "BTN_B:1"::equals, 2000) >= 0);
+        // The watchdog only judges silence once the server answered a ping
+        long deadline = System.currentTimeMillis() + 2000;
+        while (manager.getLinkStats().pongsReceived < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        int lastSequence = server.udpSequences.get(server.udpSequences.size() - 1);
+
+        // The network drops everything for a while, e.g. during a roam
+        server.udpFiltered = true;
+        assertTrue(lost.await(2, TimeUnit.SECONDS));
+        int mark = server.udpReceived.size();
+        Thread.sleep(100);
+        server.udpFiltered = false;
+        assertTrue(reconnected.await(3, TimeUnit.SECONDS));
+
+        int resume = -1;
+        for (int i = mark; i < server.udpReceived.size() && resume < 0; i++) {
+            if (server.udpReceived.get(i).startsWith("RESUME:")) resume = i;
+        }
+        assertTrue(resume >= 0);
+        assertTrue(server.udpSequences.get(resume) > lastSequence);
+        assertTrue(server.awaitLine(0, "BTN_B:1"::equals, 2000) >= 0);
+        assertTrue(server.udpReceived.subList(resume, server.udpReceived.size()).contains("BTN_B:1"));
+        assertEquals(1, server.devicesCreated.get());
+        assertTrue(manager.getHandshakeResult().resumed);
+    }
+
+    // Drops the connection and returns the time from the server accepting the new one
+    // until the first input line behind the greeting arrived
+    private long reconnectAndTimeFirstInput(String greeting) throws Exception {
+        reconnected = new CountDownLatch(1);
+        int mark = server.received.size();
+        triggerReconnect();
+        assertTrue(reconnected.await(3, TimeUnit.SECONDS));
+        int greet = server.awaitLine(mark, line -> line.startsWith(greeting), 2000);
+        assertTrue(greet >= 0);
+        int input = server.awaitLine(greet, line -> line.startsWith("BTN_"), 2000);
+        assertTrue(input > greet);
+        return server.receivedNanos.get(input) - server.acceptedNanos;
+    }
+
+    // Server side restart of the connection, the next write notices
+    private void triggerReconnect() throws Exception {
+        lost = new CountDownLatch(1);
+        server.dropClient();
+        Thread.sleep(50);
+        manager.setButton(ControllerState.BTN_Y, true);
+        assertTrue(lost.await(2, TimeUnit.SECONDS));
+        manager.setButton(ControllerState.BTN_Y, false);
+    }
+
+    private void listen() {
+        lost = new CountDownLatch(1);
+        reconnected = new CountDownLatch(1);
+        manager.setConnectionListener(new GamepadManager.ConnectionListener() {
+            @Override
+            public void onConnectionLost() {
+                lost.countDown();
+            }
+
+            @Override
+            public void onReconnected(long recoveryNanos) {
+                reconnected.countDown();
+            }
+
+            @Override
+            public void onConnectionClosed(String reason) {
+            }
+
+            @Override
+            public void onTransportSwitched(String from, String to, long switchNanos) {
+            }
+        });
+    }
+
+    private void connect() throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        manager.connect("127.0.0.1", server.getPort(), new GamepadManager.ConnectionCallback() {
+            @Override
+            public void onSuccess(String message) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        });
+        assertTrue(connected.await(3, TimeUnit.SECONDS));
+    }
+}
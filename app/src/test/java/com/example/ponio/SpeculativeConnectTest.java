@@ -0,0 +1,225 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SpeculativeConnectTest {
+    // Stand-in for setContentView and view setup of the main screen on a mid-range phone
+    private static final long INFLATE_MS = 150;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private GamepadManager manager;
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        manager = GamepadManager.getInstance();
+        manager.setProtocol("tcp");
+        manager.setCodec("text");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.setHandshakeTimeout(500);
+        CountDownLatch done = new CountDownLatch(1);
+        manager.disconnect(done::countDown);
+        done.await(2, TimeUnit.SECONDS);
+        server.close();
+    }
+
+    @Test
+    public void knownServers_picksMostRecentWorkingServer() {
+        long now = 100 * 24 * HOUR;
+        KnownServers known = new KnownServers();
+        assertNull(known.best(now));
+
+        ServerDiscovery.DiscoveredServer htpc = server("htpc", "192.168.1.20");
+        ServerDiscovery.DiscoveredServer laptop = server("laptop", "192.168.1.31");
+        known.recordSuccess(htpc, 3_000_000, now - 2 * HOUR);
+        known.recordSuccess(laptop, 9_000_000, now - HOUR);
+        assertEquals(laptop, known.best(now).server);
+
+        // The laptop stopped answering: back to the HTPC once it failed often enough
+        for (int i = 0; i < KnownServers.MAX_FAILURES; i++) {
+            assertEquals(laptop, known.best(now).server);
+            known.recordFailure(laptop);
+        }
+        assertEquals(htpc, known.best(now).server);
+        // A success clears the failures, a legacy connect keeps the RTT measured before
+        known.recordSuccess(laptop, 0, now);
+        assertEquals(laptop, known.best(now).server);
+        assertEquals(9_000_000, known.best(now).rttNanos);
+
+        // Last week's network is not worth trying
+        assertNull(known.best(now + KnownServers.MAX_AGE_MS + 1));
+
+        for (int i = 0; i < 20; i++) {
+            known.recordSuccess(server("pc" + i, "10.0.0." + i), 1, now + i);
+        }
+        assertEquals(KnownServers.MAX_ENTRIES, known.getEntries().size());
+        assertEquals("pc19", known.best(now + 20).server.name);
+    }
+
+    @Test
+    public void knownServers_survivesEncoding() {
+        KnownServers known = new KnownServers();
+        known.recordSuccess(server("living\troom", "192.168.1.20"), 2_500_000, 1000);
+        known.recordSuccess(new ServerDiscovery.DiscoveredServer("laptop", "192.168.1.31", 9000, "udp"), 0, 2000);
+        known.recordFailure(server("living room", "192.168.1.20"));
+
+        KnownServers decoded = KnownServers.decode(known.encode() + "garbage\tline\n");
+        assertEquals(2, decoded.getEntries().size());
+        KnownServers.Entry laptop = decoded.getEntries().get(0);
+        assertEquals("udp", laptop.server.protocol);
+        assertEquals(9000, laptop.server.port);
+        assertEquals(2000, laptop.lastSuccessMillis);
+        KnownServers.Entry htpc = decoded.getEntries().get(1);
+        assertEquals("living room", htpc.server.name);
+        assertEquals(2_500_000, htpc.rttNanos);
+        assertEquals(1, htpc.failures);
+        assertTrue(KnownServers.decode(null).getEntries().isEmpty());
+    }
+
+    @Test
+    public void validation_rejectsAHostThatNoLongerGreets() throws Exception {
+        KnownServers known = new KnownServers();
+        ServerDiscovery.DiscoveredServer pc = server("htpc", "127.0.0.1", server.getPort());
+        known.recordSuccess(pc, 2_000_000, System.currentTimeMillis());
+        // Something else on that address now: accepts TCP, never answers a HELLO
+        server.supportedCodecs = null;
+        manager.setHandshakeTimeout(100);
+
+        Outcome outcome = new Outcome();
+        assertEquals(pc, new SpeculativeConnect(manager, known).start(outcome));
+        assertTrue(outcome.done.await(3, TimeUnit.SECONDS));
+        assertEquals(pc, outcome.failed.get());
+        assertEquals(1, known.find(pc).failures);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (manager.isConnected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(manager.isConnected);
+    }
+
+    @Test
+    public void unreachableServer_isReportedAndCounted() throws Exception {
+        KnownServers known = new KnownServers();
+        ServerDiscovery.DiscoveredServer gone = server("htpc", "127.0.0.1", server.getPort());
+        known.recordSuccess(gone, 2_000_000, System.currentTimeMillis());
+        server.close(); // PC switched off
+
+        Outcome outcome = new Outcome();
+        new SpeculativeConnect(manager, known).start(outcome);
+        assertTrue(outcome.done.await(5, TimeUnit.SECONDS));
+        assertEquals(gone, outcome.failed.get());
+        assertEquals(1, known.find(gone).failures);
+        server = new StandInServer();
+    }
+
+    @Test
+    public void coldStart_toControllerReady() throws Exception {
+        try (DiscoveryResponder responder = new DiscoveryResponder("127.0.0.1", 0, "htpc")) {
+            responder.replyDelayMs = 40;
+            responder.serverPort = server.getPort();
+
+            // Before: inflate, scan, connect to the first server that answers
+            long start = System.nanoTime();
+            Thread.sleep(INFLATE_MS);
+            ServerDiscovery discovery = new ServerDiscovery(responder.getPort(), Arrays.asList(
+                    new ServerDiscovery.ProbeTarget(null, InetAddress.getByName("127.0.0.1"), null)));
+            AtomicReference<ServerDiscovery.DiscoveredServer> first = new AtomicReference<>();
+            CountDownLatch found = new CountDownLatch(1);
+            discovery.scanForServers(new ServerDiscovery.ScanCallback() {
+                @Override
+                public void onServerFound(ServerDiscovery.DiscoveredServer answer) {
+                    first.compareAndSet(null, answer);
+                    found.countDown();
+                }
+
+                @Override
+                public void onScanComplete(List<ServerDiscovery.DiscoveredServer> servers) {
+                }
+
+                @Override
+                public void onScanError(String error) {
+                }
+            });
+            assertTrue(found.await(2, TimeUnit.SECONDS));
+            discovery.stopScan();
+            CountDownLatch connected = new CountDownLatch(1);
+            manager.connect(first.get().ipAddress, first.get().port, new GamepadManager.ConnectionCallback() {
+                @Override
+                public void onSuccess(String message) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                }
+            });
+            assertTrue(connected.await(2, TimeUnit.SECONDS));
+            long before = System.nanoTime() - start;
+            discovery.cleanup();
+            KnownServers known = new KnownServers();
+            known.recordSuccess(first.get(), manager.getHandshakeResult().rttNanos, System.currentTimeMillis());
+
+            CountDownLatch done = new CountDownLatch(1);
+            manager.disconnect(done::countDown);
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+
+            // After: connect to the remembered server while the UI inflates
+            start = System.nanoTime();
+            Outcome outcome = new Outcome();
+            assertEquals(first.get(), new SpeculativeConnect(manager, known).start(outcome));
+            Thread.sleep(INFLATE_MS);
+            assertTrue(outcome.done.await(2, TimeUnit.SECONDS));
+            assertNull(outcome.failed.get());
+            long after = System.nanoTime() - start;
+            assertTrue(manager.isConnected);
+
+            BenchReport.print(String.format("Cold start to controller ready (%dms inflation): "
+                            + "scan and connect %.1fms, speculative connect %.1fms (connected after %.1fms)",
+                    INFLATE_MS, before / 1e6, after / 1e6, outcome.readyNanos.get() / 1e6));
+            assertTrue(outcome.readyNanos.get() < TimeUnit.MILLISECONDS.toNanos(INFLATE_MS));
+            assertTrue(after < before);
+        }
+    }
+
+    private static ServerDiscovery.DiscoveredServer server(String name, String ip) {
+        return server(name, ip, 8888);
+    }
+
+    private static ServerDiscovery.DiscoveredServer server(String name, String ip, int port) {
+        return new ServerDiscovery.DiscoveredServer(name, ip, port, "tcp");
+    }
+
+    private static class Outcome implements SpeculativeConnect.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<ServerDiscovery.DiscoveredServer> failed = new AtomicReference<>();
+        final AtomicLong readyNanos = new AtomicLong();
+
+        @Override
+        public void onReady(ServerDiscovery.DiscoveredServer server, long elapsedNanos) {
+            readyNanos.set(elapsedNanos);
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(ServerDiscovery.DiscoveredServer server, String reason) {
+            failed.set(server);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.ponio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+// Minimal local stand-in for the Ponio PC server: accepts TCP clients, records every line
+// and answers PING lines with PONG after a configurable delay. With enableUdp() it also takes
+// plain datagrams on the same port number, like the real server does. With sessions on it
+// hands out session tokens and counts the virtual gamepads it had to create.
+class StandInServer implements AutoCloseable {
+    interface PingDelay {
+        long delayMs(long pingIndex);
+    }
+
+    private interface Reply {
+        void send(String message);
+    }
+
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+    final List<String> received = new CopyOnWriteArrayList<>();
+    // When each received line arrived, same index as received
+    final List<Long> receivedNanos = new CopyOnWriteArrayList<>();
+    private volatile Socket client;
+    volatile long acceptedNanos = 0;
+
+    volatile PingDelay pingDelay = index -> 0;
+    // Every n-th ping gets no answer, 0 = answer all
+    volatile int dropEveryNthPing = 0;
+    private long pingIndex = 0;
+    // A frozen server neither reads nor answers, like a PC that went to sleep
+    volatile boolean frozen = false;
+    // Codecs the server accepts in a HELLO, null for a legacy server that ignores it
+    volatile List<String> supportedCodecs = Arrays.asList("text");
+    volatile long welcomeDelayMs = 0;
+    // Session resumption: tokens handed out in WELCOME and still known
+    volatile boolean sessions = false;
+    private final Set<String> knownSessions = ConcurrentHashMap.newKeySet();
+    final AtomicInteger devicesCreated = new AtomicInteger();
+    final AtomicInteger sessionsResumed = new AtomicInteger();
+
+    private DatagramSocket udpSocket;
+    final List<String> udpReceived = new CopyOnWriteArrayList<>();
+    // Sequence number of the datagram each udpReceived line came in
+    final List<Integer> udpSequences = new CopyOnWriteArrayList<>();
+    volatile PingDelay udpPingDelay = index -> 0;
+    // Drops every datagram, like a network that filters UDP
+    volatile boolean udpFiltered = false;
+
+    StandInServer() throws IOException {
+        serverSocket = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "StandInAccept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                acceptedNanos = System.nanoTime();
+                client = socket;
+                Thread reader = new Thread(() -> readLoop(socket), "StandInReader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null) {
+                while (frozen && !socket.isClosed()) {
+                    Thread.sleep(5);
+                }
+                record(line);
+                onLine(message -> reply(socket, message), pingDelay, line);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client went away
+        }
+    }
+
+    private synchronized void record(String line) {
+        receivedNanos.add(System.nanoTime());
+        received.add(line);
+    }
+
+    private void onLine(Reply out, PingDelay delay, String line) {
+        if (line.startsWith("HELLO:") && supportedCodecs != null) {
+            String welcome = welcome(line);
+            try {
+                replies.schedule(() -> out.send(welcome), welcomeDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Server already closed
+            }
+        } else if (line.startsWith("RESUME:") && sessions) {
+            String answer = resumed(line);
+            try {
+                replies.schedule(() -> out.send(answer), welcomeDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Server already closed
+            }
+        } else if (line.equals("DISCONNECT")) {
+            knownSessions.clear();
+        } else if (line.startsWith("PING:")) {
+            long index = ++pingIndex;
+            if (dropEveryNthPing > 0 && index % dropEveryNthPing == 0) {
+                return;
+            }
+            String pong = "PONG:" + line.substring(5) + "\n";
+            try {
+                replies.schedule(() -> out.send(pong), delay.delayMs(index), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Server already closed
+            }
+        }
+    }
+
+    // Picks the first offered codec the server supports
+    private String welcome(String hello) {
+        String attempt = "0";
+        String chosen = null;
+        for (String field : hello.substring(6).split(";")) {
+            if (field.startsWith("n=")) {
+                attempt = field.substring(2);
+            } else if (field.startsWith("codecs=")) {
+                for (String codec : field.substring(7).split(",")) {
+                    if (chosen == null && supportedCodecs.contains(codec)) {
+                        chosen = codec;
+                    }
+                }
+            }
+        }
+        if (chosen == null) {
+            return "REJECT:no common codec\n";
+        }
+        devicesCreated.incrementAndGet();
+        if (!sessions) {
+            return "WELCOME:1;n=" + attempt + ";codec=" + chosen + ";tick=125;features=ping\n";
+        }
+        String session = UUID.randomUUID().toString().replace("-", "");
+        knownSessions.add(session);
+        return "WELCOME:1;n=" + attempt + ";codec=" + chosen + ";tick=125;features=ping,resume;session=" + session + "\n";
+    }
+
+    // Reattaches a known session, the virtual gamepad stays as it is
+    private String resumed(String resume) {
+        String attempt = "0";
+        String session = "";
+        for (String field : resume.substring(7).split(";")) {
+            if (field.startsWith("n=")) {
+                attempt = field.substring(2);
+            } else if (field.startsWith("session=")) {
+                session = field.substring(8);
+            }
+        }
+        if (!knownSessions.contains(session)) {
+            return "REJECT:unknown session\n";
+        }
+        sessionsResumed.incrementAndGet();
+        return "RESUMED:1;n=" + attempt + ";session=" + session + "\n";
+    }
+
+    // Like a server restart: every session is gone
+    void forgetSessions() {
+        knownSessions.clear();
+    }
+
+    void reply(Socket socket, String message) {
+        if (frozen) {
+            return;
+        }
+        try {
+            OutputStream out = socket.getOutputStream();
+            synchronized (socket) {
+                out.write(message.getBytes());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    // Also listen for datagrams on the TCP port number
+    void enableUdp() throws IOException {
+        udpSocket = new DatagramSocket(getPort(), InetAddress.getLoopbackAddress());
+        Thread reader = new Thread(this::udpLoop, "StandInUdp");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Plain datagrams only: the stand-in offers neither acks nor redundancy
+    private void udpLoop() {
+        byte[] buffer = new byte[1500];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!udpSocket.isClosed()) {
+            try {
+                packet.setData(buffer);
+                udpSocket.receive(packet);
+                int header = ConnectionProtocol.UDPProtocol.HEADER_SIZE;
+                if (udpFiltered || frozen || packet.getLength() <= header
+                        || buffer[4] != ConnectionProtocol.UDPProtocol.TYPE_DATA) {
+                    continue;
+                }
+                SocketAddress from = packet.getSocketAddress();
+                int sequence = ConnectionProtocol.UDPProtocol.readSequence(buffer, 0);
+                for (String line : new String(buffer, header, packet.getLength() - header).split("\n")) {
+                    udpSequences.add(sequence);
+                    udpReceived.add(line);
+                    record(line);
+                    onLine(message -> replyUdp(from, message), udpPingDelay, line);
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void replyUdp(SocketAddress to, String message) {
+        if (frozen || udpFiltered) {
+            return;
+        }
+        byte[] body = message.getBytes();
+        byte[] datagram = new byte[ConnectionProtocol.UDPProtocol.HEADER_SIZE + body.length];
+        ConnectionProtocol.UDPProtocol.writeHeader(datagram, 0, ConnectionProtocol.UDPProtocol.TYPE_DATA);
+        System.arraycopy(body, 0, datagram, ConnectionProtocol.UDPProtocol.HEADER_SIZE, body.length);
+        try {
+            udpSocket.send(new DatagramPacket(datagram, datagram.length, to));
+        } catch (IOException e) {
+            // Server already closed
+        }
+    }
+
+    // Drops the current client like a server restart would
+    void dropClient() throws IOException {
+        Socket c = client;
+        client = null;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    // Waits until a line satisfying the predicate arrived at or after index from
+    int awaitLine(int from, Predicate<String> predicate, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = from; i < received.size(); i++) {
+                if (predicate.test(received.get(i))) {
+                    return i;
+                }
+            }
+            Thread.sleep(2);
+        }
+        return -1;
+    }
+
+    boolean awaitClient(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (client == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return client != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        replies.shutdownNow();
+        serverSocket.close();
+        if (udpSocket != null) {
+            udpSocket.close();
+        }
+        Socket c = client;
+        if (c != null) {
+            c.close();
+        }
+    }
+}
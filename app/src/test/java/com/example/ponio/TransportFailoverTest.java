@@ -0,0 +1,195 @@
+package com.example.ponio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TransportFailoverTest {
+    private GamepadManager manager;
+    private StandInServer server;
+    private final CountDownLatch switched = new CountDownLatch(1);
+    private final AtomicLong switchNanos = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        server.enableUdp();
+        manager = GamepadManager.getInstance();
+        manager.setCodec("text");
+        manager.setSendMode(GamepadManager.SEND_MODE_EVENT);
+        manager.setFailoverCooldown(0);
+        // Keep the watchdog out of it, slow pongs are what this is about
+        manager.setLinkKeepalive(100, 2000);
+        manager.setConnectionListener(new GamepadManager.ConnectionListener() {
+            @Override
+            public void onConnectionLost() {
+            }
+
+            @Override
+            public void onReconnected(long recoveryNanos) {
+            }
+
+            @Override
+            public void onConnectionClosed(String reason) {
+            }
+
+            @Override
+            public void onTransportSwitched(String from, String to, long nanos) {
+                switchNanos.set(nanos);
+                switched.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.setConnectionListener(null);
+        manager.setFailoverCooldown(10_000);
+        manager.setLinkKeepalive(100, LinkWatchdog.DEFAULT_KEEPALIVE_TIMEOUT_MS);
+        CountDownLatch done = new CountDownLatch(1);
+        manager.disconnect(done::countDown);
+        done.await(2, TimeUnit.SECONDS);
+        manager.setProtocol("tcp");
+        server.close();
+    }
+
+    @Test
+    public void quality_scoreFallsWithRttAndLoss() {
+        LinkQuality quality = new LinkQuality();
+        for (int i = 0; i < 20; i++) {
+            quality.onRttSample(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        assertEquals(100, quality.getScore());
+        assertFalse(quality.isDegraded());
+
+        for (int i = 0; i < 30; i++) {
+            quality.onRttSample(TimeUnit.MILLISECONDS.toNanos(280));
+        }
+        assertTrue(quality.getScore() < 20);
+        assertTrue(quality.isDegraded());
+
+        quality.reset();
+        for (int i = 0; i < 12; i++) {
+            quality.onLoss();
+        }
+        assertTrue(quality.toString(), quality.getScore() < 40);
+        assertTrue(quality.isDegraded());
+        // Pongs again: healthy once the score is back above the threshold, not at the first one
+        int samples = 0;
+        while (quality.isDegraded()) {
+            quality.onRttSample(TimeUnit.MILLISECONDS.toNanos(3));
+            samples++;
+        }
+        assertTrue(samples > 1);
+        assertTrue(quality.getScore() >= 40);
+    }
+
+    @Test
+    public void stallingTcp_movesSessionToUdpWithoutLosingState() throws Exception {
+        manager.setProtocol("tcp");
+        long switchesBefore = manager.getSwitchTime().getCount();
+        connect();
+        manager.setButton(ControllerState.BTN_A, true);
+        assertTrue(server.awaitLine(0, "BTN_A:1"::equals, 2000) >= 0);
+
+        // TCP gets stuck behind a queue: pongs come back 250ms late
+        server.pingDelay = index -> 250;
+        int moves = 0;
+        long deadline = System.currentTimeMillis() + 8000;
+        while (switched.getCount() > 0 && System.currentTimeMillis() < deadline) {
+            manager.setStick(ControllerState.STICK_LEFT, (++moves % 1000) / 1000f, 0f);
+            Thread.sleep(5);
+        }
+        assertEquals(0, switched.getCount());
+        // Input keeps flowing right after the switch
+        for (int i = 0; i < 20; i++) {
+            manager.setStick(ControllerState.STICK_LEFT, (++moves % 1000) / 1000f, 0f);
+            Thread.sleep(5);
+        }
+        String last = "LJOY:" + String.format(Locale.US, "%.3f", (moves % 1000) / 1000f) + ",0.000";
+
+        assertEquals("udp", manager.getCurrentProtocol());
+        int hello = -1;
+        for (int i = 0; i < server.udpReceived.size() && hello < 0; i++) {
+            if (server.udpReceived.get(i).startsWith("HELLO:")) hello = i;
+        }
+        assertTrue(hello >= 0);
+        // The first thing after the greeting is the full state, held button included
+        assertTrue(awaitUdpLine(hello, "BTN_A:1", 2000));
+        assertTrue(awaitUdpLine(hello, last, 2000));
+        assertTrue(server.awaitLine(0, "DISCONNECT"::equals, 2000) >= 0);
+        assertEquals(switchesBefore + 1, manager.getSwitchTime().getCount());
+        BenchReport.print(String.format("TCP -> UDP after %d stick moves, switch took %.1fms (%s)",
+                moves, switchNanos.get() / 1e6, manager.getSwitchTime()));
+    }
+
+    @Test
+    public void filteredUdp_movesSessionToTcp() throws Exception {
+        server.udpFiltered = true;
+        manager.setProtocol("udp");
+        connect(); // no answer to HELLO, so it looks like a legacy server at first
+        manager.setButton(ControllerState.BTN_B, true);
+
+        assertTrue(switched.await(6, TimeUnit.SECONDS));
+        assertEquals("tcp", manager.getCurrentProtocol());
+        int hello = server.awaitLine(0, line -> line.startsWith("HELLO:"), 2000);
+        assertTrue(hello >= 0);
+        assertTrue(server.awaitLine(hello, "BTN_B:1"::equals, 2000) > hello);
+        assertTrue(manager.isConnected);
+        BenchReport.print(String.format("UDP filtered -> TCP, switch took %.1fms", switchNanos.get() / 1e6));
+    }
+
+    @Test
+    public void failedSwitch_keepsTheOldTransport() throws Exception {
+        server.udpFiltered = true; // nothing to switch to
+        manager.setProtocol("tcp");
+        connect();
+        server.pingDelay = index -> 250;
+
+        long deadline = System.currentTimeMillis() + 8000;
+        while (manager.getFailedFailoverCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long failedBefore = manager.getFailedFailoverCount();
+        assertTrue(failedBefore > 0);
+        assertEquals("tcp", manager.getCurrentProtocol());
+        assertTrue(manager.isConnected);
+        manager.setButton(ControllerState.BTN_X, true);
+        assertTrue(server.awaitLine(0, "BTN_X:1"::equals, 2000) >= 0);
+    }
+
+    private boolean awaitUdpLine(int from, String line, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = from; i < server.udpReceived.size(); i++) {
+                if (server.udpReceived.get(i).equals(line)) {
+                    return true;
+                }
+            }
+            Thread.sleep(2);
+        }
+        return false;
+    }
+
+    private void connect() throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        manager.connect("127.0.0.1", server.getPort(), new GamepadManager.ConnectionCallback() {
+            @Override
+            public void onSuccess(String message) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        });
+        assertTrue(connected.await(3, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback comparison of the UDP and TCP transports, run on the development machine.
+ */
+public class TransportLatencyTest {
+    private static final int MESSAGES = 1000;
+    private static final int PAYLOAD_SIZE = 16;
+
+    @Test
+    public void sequenceFilter_dropsReorderedAndStale() {
+        ConnectionProtocol.UDPProtocol.SequenceFilter filter = new ConnectionProtocol.UDPProtocol.SequenceFilter();
+
+        assertTrue(filter.accept(1));
+        assertTrue(filter.accept(3));
+        assertFalse(filter.accept(2));
+        assertFalse(filter.accept(3));
+        assertTrue(filter.accept(4));
+
+        // Wraps around without treating the new packets as stale
+        assertTrue(filter.accept(Integer.MAX_VALUE));
+        assertTrue(filter.accept(Integer.MIN_VALUE));
+
+        assertEquals(5, filter.getAccepted());
+        assertEquals(2, filter.getDropped());
+    }
+
+    @Test
+    public void udp_carriesMonotonicSequenceNumbers() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(2000);
+        ConnectionProtocol protocol = ConnectionProtocol.create("udp");
+        protocol.connect("127.0.0.1", receiver.getLocalPort());
+
+        try {
+            byte[] buffer = new byte[64];
+            for (int i = 0; i < 10; i++) {
+                protocol.sendData(("BTN_A:" + (i % 2) + "\n").getBytes());
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                receiver.receive(packet);
+
+                assertEquals(i, ConnectionProtocol.UDPProtocol.readSequence(buffer, 0));
+                assertEquals(ConnectionProtocol.UDPProtocol.TYPE_DATA, buffer[4]);
+                String payload = new String(buffer, ConnectionProtocol.UDPProtocol.HEADER_SIZE,
+                        packet.getLength() - ConnectionProtocol.UDPProtocol.HEADER_SIZE);
+                assertEquals("BTN_A:" + (i % 2) + "\n", payload);
+            }
+        } finally {
+            protocol.disconnect();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void nio_gathersBatchIntoOneWriteAndReadsServerMessages() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        ConnectionProtocol.NioTCPProtocol protocol = new ConnectionProtocol.NioTCPProtocol();
+        List<String> inbound = new CopyOnWriteArrayList<>();
+        protocol.setMessageListener((data, offset, length) -> inbound.add(new String(data, offset, length)));
+        protocol.connect("127.0.0.1", server.getLocalPort());
+
+        try (Socket client = server.accept()) {
+            protocol.beginBatch();
+            protocol.sendData("LJOY:0.100,0.200\n".getBytes());
+            protocol.sendData("RJOY:0.300,0.400\n".getBytes());
+            protocol.sendData("BTN_A:1\n".getBytes());
+            assertEquals(0, protocol.getWriteCalls());
+            protocol.endBatch();
+            assertEquals(1, protocol.getWriteCalls());
+            assertEquals(3, protocol.getFramesWritten());
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            assertEquals("LJOY:0.100,0.200", reader.readLine());
+            assertEquals("RJOY:0.300,0.400", reader.readLine());
+            assertEquals("BTN_A:1", reader.readLine());
+
+            client.getOutputStream().write("PONG:1\nPONG:2\n".getBytes());
+            long deadline = System.currentTimeMillis() + 2000;
+            while (inbound.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(Arrays.asList("PONG:1", "PONG:2"), inbound);
+        } finally {
+            protocol.disconnect();
+            server.close();
+        }
+    }
+
+    @Test
+    public void tcp_batchWindowSendsOneDispatchCycleAsOneSegment() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        ConnectionProtocol.TCPProtocol protocol = new ConnectionProtocol.TCPProtocol();
+        protocol.setBatchWindowMicros(20_000);
+        protocol.connect("127.0.0.1", server.getLocalPort());
+        InputSender sender = new InputSender();
+        sender.start();
+
+        try (Socket client = server.accept()) {
+            sender.attach(protocol, InputCodec.create("text"));
+            for (int cycle = 0; cycle < 5; cycle++) {
+                // One multi-touch dispatch: both sticks and a button
+                sender.publishStick(ControllerState.STICK_LEFT, 0.5f, cycle / 10f);
+                sender.publishStick(ControllerState.STICK_RIGHT, -0.5f, cycle / 10f);
+                sender.publishButton(ControllerState.BTN_A, cycle % 2 == 0);
+                Thread.sleep(100);
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            for (int i = 0; i < 15; i++) {
+                assertNotNull(reader.readLine());
+            }
+            BenchReport.print("TCP batching: " + protocol.getSegmentsSent() + " segments for "
+                    + protocol.getMessagesCarried() + " messages");
+            assertEquals(15, protocol.getMessagesCarried());
+            // One segment per cycle unless the scheduler stalls the sender past a cycle
+            // boundary and two cycles share a window, so only the upper bound is certain
+            assertTrue("segments: " + protocol.getSegmentsSent(), protocol.getSegmentsSent() <= 5);
+        } finally {
+            sender.stop();
+            protocol.disconnect();
+            server.close();
+        }
+    }
+
+    @Test
+    public void loopbackLatency_udpVersusTcp() throws Exception {
+        long[] udp = measureUdp();
+        long[] tcp = measureTcp("tcp");
+        long[] nio = measureTcp("nio");
+
+        BenchReport.print("UDP loopback " + describe(udp));
+        BenchReport.print("TCP loopback " + describe(tcp));
+        BenchReport.print("TCP-NIO loopback " + describe(nio));
+
+        assertTrue("UDP delivered too few datagrams: " + udp.length, udp.length > MESSAGES * 9 / 10);
+        assertEquals(MESSAGES, tcp.length);
+        assertEquals(MESSAGES, nio.length);
+        if (BenchReport.ENABLED) {
+            // Loopback hands a message over in microseconds, but a loaded CI machine can stall
+            // any of them, so the timing is only checked when benchmarking on purpose
+            assertTrue("UDP loopback " + describe(udp), median(udp) < TimeUnit.MILLISECONDS.toNanos(1));
+            assertTrue("TCP loopback " + describe(tcp), median(tcp) < TimeUnit.MILLISECONDS.toNanos(1));
+            assertTrue("TCP-NIO loopback " + describe(nio), median(nio) < TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private long[] measureUdp() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiver.setSoTimeout(500);
+        long[] latencies = new long[MESSAGES];
+        int[] received = new int[1];
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[64];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            ConnectionProtocol.UDPProtocol.SequenceFilter filter = new ConnectionProtocol.UDPProtocol.SequenceFilter();
+            try {
+                while (received[0] < MESSAGES) {
+                    receiver.receive(packet);
+                    long now = System.nanoTime();
+                    if (filter.accept(ConnectionProtocol.UDPProtocol.readSequence(buffer, 0))) {
+                        latencies[received[0]++] = now - readLong(buffer, ConnectionProtocol.UDPProtocol.HEADER_SIZE);
+                    }
+                }
+            } catch (Exception e) {
+                // Timed out waiting for lost datagrams
+            }
+        });
+        reader.start();
+
+        ConnectionProtocol protocol = ConnectionProtocol.create("udp");
+        protocol.connect("127.0.0.1", receiver.getLocalPort());
+        sendTimestamped(protocol);
+        reader.join(5000);
+        protocol.disconnect();
+        receiver.close();
+
+        return Arrays.copyOf(latencies, received[0]);
+    }
+
+    private long[] measureTcp(String protocolType) throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        long[] latencies = new long[MESSAGES];
+        int[] received = new int[1];
+        CountDownLatch accepted = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> {
+            try (Socket client = server.accept()) {
+                client.setTcpNoDelay(true);
+                accepted.countDown();
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                byte[] buffer = new byte[PAYLOAD_SIZE];
+                while (received[0] < MESSAGES) {
+                    in.readFully(buffer);
+                    latencies[received[0]++] = System.nanoTime() - readLong(buffer, 0);
+                }
+            } catch (Exception e) {
+                // Connection closed early
+            }
+        });
+        reader.start();
+
+        ConnectionProtocol protocol = ConnectionProtocol.create(protocolType);
+        protocol.connect("127.0.0.1", server.getLocalPort());
+        assertTrue(accepted.await(2, TimeUnit.SECONDS));
+        sendTimestamped(protocol);
+        reader.join(5000);
+        protocol.disconnect();
+        server.close();
+
+        return Arrays.copyOf(latencies, received[0]);
+    }
+
+    private static void sendTimestamped(ConnectionProtocol protocol) throws Exception {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < MESSAGES; i++) {
+            writeLong(payload, 0, System.nanoTime());
+            protocol.sendData(payload);
+            // Roughly a 5 kHz event rate, well above any real touch sampling rate
+            LockSupport.parkNanos(200_000);
+        }
+    }
+
+    private static String describe(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return String.format("n=%d p50=%.1fus p99=%.1fus", sorted.length,
+                percentile(sorted, 0.50) / 1000.0, percentile(sorted, 0.99) / 1000.0);
+    }
+
+    private static long median(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return percentile(sorted, 0.50);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
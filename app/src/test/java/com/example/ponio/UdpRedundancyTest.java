@@ -0,0 +1,186 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UdpRedundancyTest {
+    private static final int TICK_MS = 8; // 125 Hz of input
+
+    @Test
+    public void decoder_rebuildsFramesWhoseDatagramWasLost() {
+        ConnectionProtocol.UDPProtocol.RedundancyEncoder encoder = new ConnectionProtocol.UDPProtocol.RedundancyEncoder(2);
+        ConnectionProtocol.UDPProtocol.RedundancyDecoder decoder = new ConnectionProtocol.UDPProtocol.RedundancyDecoder();
+        List<byte[]> sent = new ArrayList<>();
+        List<byte[]> received = new ArrayList<>();
+        List<Boolean> recovered = new ArrayList<>();
+        byte[] datagram = new byte[1400];
+        ControllerState state = new ControllerState();
+
+        for (int i = 0; i < 6; i++) {
+            state.setStick(ControllerState.STICK_LEFT, i / 10f, 0f);
+            state.setButton(ControllerState.BTN_A, i >= 3);
+            byte[] frame = new byte[InputCodec.BinaryCodec.FRAME_SIZE];
+            InputCodec.BinaryCodec.writeStateFrame(state, i, frame);
+            sent.add(frame);
+            ConnectionProtocol.UDPProtocol.writeHeader(datagram, i, ConnectionProtocol.UDPProtocol.TYPE_REDUNDANT);
+            int length = encoder.encode(i, frame, 0, frame.length, datagram, ConnectionProtocol.UDPProtocol.HEADER_SIZE, datagram.length);
+            if (i == 0) {
+                assertEquals(ConnectionProtocol.UDPProtocol.HEADER_SIZE + 3 + 16, length);
+            }
+            if (i == 1 || i == 2 || i == 4) {
+                continue; // lost
+            }
+            decoder.accept(datagram, length, (seq, data, offset, frameLength, fromHistory) -> {
+                received.add(Arrays.copyOfRange(data, offset, offset + frameLength));
+                recovered.add(fromHistory);
+            });
+        }
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertTrue("frame " + i, Arrays.equals(sent.get(i), received.get(i)));
+        }
+        assertEquals(Arrays.asList(false, true, true, false, true, false), recovered);
+        assertEquals(6, decoder.getDelivered());
+        assertEquals(3, decoder.getRecovered());
+    }
+
+    @Test
+    public void encoder_keepsEarlierStatesSmall() {
+        ConnectionProtocol.UDPProtocol.RedundancyEncoder encoder = new ConnectionProtocol.UDPProtocol.RedundancyEncoder(3);
+        byte[] datagram = new byte[1400];
+        byte[] frame = new byte[InputCodec.BinaryCodec.FRAME_SIZE];
+        ControllerState state = new ControllerState();
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            state.setStick(ControllerState.STICK_LEFT, i / 10f, 0f);
+            InputCodec.BinaryCodec.writeStateFrame(state, i, frame);
+            length = encoder.encode(i, frame, 0, frame.length, datagram, 0, datagram.length);
+        }
+        // Sequence and one stick changed: distance, kind, 2 mask bytes and up to 4+2 bytes each
+        assertTrue("datagram body " + length, length <= 3 + 16 + 3 * 10);
+        BenchReport.print("N=3 body " + length + " bytes vs " + (3 + 16) + " without redundancy");
+    }
+
+    // Effective latency of the state the server sees: a frame counts as delivered with the first
+    // datagram that carries it, its own or a later one. Trace driven, 125 Hz, virtual time
+    @Test
+    public void benchmark_deliveredStateLatencyUnderLoss() {
+        int frames = 20_000;
+        double[] losses = {0.01, 0.02, 0.05, 0.10};
+        int[] redundancies = {0, 1, 2, 3};
+        BenchReport.print("loss   N  p50      p99      p99.9    max      never   bytes/datagram");
+        for (double loss : losses) {
+            long previousNever = frames;
+            for (int n : redundancies) {
+                Result r = simulate(frames, loss, n, 42);
+                BenchReport.print(String.format("%4.0f%%  %d  %6.2fms %6.2fms %6.2fms %6.2fms  %5.2f%%  %.1f",
+                        loss * 100, n,
+                        r.latency.getPercentileNanos(50) / 1e6, r.latency.getPercentileNanos(99) / 1e6,
+                        r.latency.getPercentileNanos(99.9) / 1e6, r.latency.getMaxNanos() / 1e6,
+                        100.0 * r.neverDelivered / frames, r.bytes / (double) frames));
+                // Every extra copy loses fewer states
+                assertTrue(r.neverDelivered <= previousNever);
+                previousNever = r.neverDelivered;
+                if (n == 0) {
+                    assertEquals(loss, r.neverDelivered / (double) frames, 0.01);
+                }
+                if (n == 3) {
+                    // Losing a state now takes four datagrams in a row
+                    assertTrue(r.neverDelivered <= frames * loss * loss * loss * loss * 5 + 1);
+                    assertTrue(r.latency.getPercentileNanos(99) <= 2L * TICK_MS * 1_000_000);
+                }
+            }
+        }
+    }
+
+    private static class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long neverDelivered;
+        long bytes;
+    }
+
+    private static Result simulate(int frames, double loss, int n, long seed) {
+        ConnectionProtocol.UDPProtocol.RedundancyEncoder encoder = new ConnectionProtocol.UDPProtocol.RedundancyEncoder(n);
+        ConnectionProtocol.UDPProtocol.RedundancyDecoder decoder = new ConnectionProtocol.UDPProtocol.RedundancyDecoder();
+        Random random = new Random(seed);
+        Result result = new Result();
+        boolean[] delivered = new boolean[frames];
+        byte[] datagram = new byte[1400];
+        byte[] frame = new byte[InputCodec.BinaryCodec.FRAME_SIZE];
+        ControllerState state = new ControllerState();
+        long[] now = new long[1];
+
+        for (int i = 0; i < frames; i++) {
+            // Gameplay-ish: the left stick circles, the right one drifts, A is tapped every 300ms
+            double t = i * TICK_MS / 1000.0;
+            state.setStick(ControllerState.STICK_LEFT, (float) Math.cos(t * 3), (float) Math.sin(t * 3));
+            state.setStick(ControllerState.STICK_RIGHT, (float) Math.sin(t * 0.7) * 0.3f, 0f);
+            state.setButton(ControllerState.BTN_A, (i % 38) < 6);
+            InputCodec.BinaryCodec.writeStateFrame(state, i, frame);
+
+            ConnectionProtocol.UDPProtocol.writeHeader(datagram, i, ConnectionProtocol.UDPProtocol.TYPE_REDUNDANT);
+            int length = encoder.encode(i, frame, 0, frame.length, datagram, ConnectionProtocol.UDPProtocol.HEADER_SIZE, datagram.length);
+            result.bytes += length;
+            if (random.nextDouble() < loss) {
+                continue;
+            }
+            now[0] = (long) i * TICK_MS * 1_000_000;
+            decoder.accept(datagram, length, (seq, data, offset, frameLength, recovered) -> {
+                delivered[seq] = true;
+                result.latency.record(now[0] - (long) seq * TICK_MS * 1_000_000);
+            });
+        }
+        for (boolean d : delivered) {
+            if (!d) result.neverDelivered++;
+        }
+        return result;
+    }
+
+    @Test
+    public void lossyLink_serverRebuildsEveryStateFromLaterDatagrams() throws Exception {
+        int moves = 200;
+        try (LossyDatagramServer server = new LossyDatagramServer(0.10, 11)) {
+            ConnectionProtocol.UDPProtocol protocol = new ConnectionProtocol.UDPProtocol();
+            protocol.setRedundancy(3);
+            protocol.connect("127.0.0.1", server.getPort());
+            InputSender sender = new InputSender();
+            sender.start();
+            sender.attach(protocol, InputCodec.create("binary"));
+
+            try {
+                for (int i = 0; i < moves; i++) {
+                    sender.publishStick(ControllerState.STICK_LEFT, (i + 1) / (float) moves, 0f);
+                    Thread.sleep(2);
+                }
+                long sent = protocol.getLastSequence() + 1;
+                long deadline = System.currentTimeMillis() + 2000;
+                while (server.redundancyDecoder.getDelivered() < sent - 3 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                BenchReport.print(String.format("10%% loss, N=3: %d datagrams sent, %d dropped, %d frames rebuilt (%d recovered)",
+                        sent, server.droppedIn, server.redundancyDecoder.getDelivered(),
+                        server.redundancyDecoder.getRecovered()));
+                assertTrue(server.droppedIn > 0);
+                assertTrue(server.redundancyDecoder.getRecovered() > 0);
+                // Every frame up to the newest datagram that made it through
+                ControllerState last = new ControllerState();
+                byte[] newest = server.frames.get(server.frames.size() - 1);
+                int sequence = InputCodec.BinaryCodec.decodeStateFrame(newest, 0, last);
+                assertEquals(sequence + 1, server.frames.size());
+                for (int i = 0; i < server.frames.size(); i++) {
+                    assertEquals(i, InputCodec.BinaryCodec.decodeStateFrame(server.frames.get(i), 0, last));
+                }
+            } finally {
+                sender.stop();
+                protocol.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.ponio;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UdpReliabilityTest {
+
+    @Test
+    public void reliableFilter_deliversOnceAndInOrder() {
+        ConnectionProtocol.UDPProtocol.ReliableFilter filter = new ConnectionProtocol.UDPProtocol.ReliableFilter();
+        assertEquals(-1, filter.getAckId());
+        assertTrue(filter.accept(0));
+        assertFalse(filter.accept(2)); // 1 is missing
+        assertTrue(filter.accept(1));
+        assertFalse(filter.accept(1)); // retransmit of a delivered one
+        assertTrue(filter.accept(2));
+        assertEquals(2, filter.getAckId());
+        assertEquals(3, filter.getDelivered());
+        assertEquals(1, filter.getDuplicates());
+        assertEquals(1, filter.getOutOfOrder());
+    }
+
+    @Test
+    public void retransmit_doesNotOverwriteNewerState() throws Exception {
+        try (LossyDatagramServer server = new LossyDatagramServer(0, 3)) {
+            server.dropReliable = 1;
+            ConnectionProtocol.UDPProtocol protocol = new ConnectionProtocol.UDPProtocol();
+            protocol.setReliableEnabled(true);
+            protocol.connect("127.0.0.1", server.getPort());
+            try {
+                // A full state with a button edge is lost, the next state gets through
+                byte[] pressed = "BTN_A:1;LJOY:0.000,0.000\n".getBytes();
+                byte[] moved = "BTN_A:1;LJOY:0.500,0.000\n".getBytes();
+                protocol.sendReliable(pressed, 0, pressed.length);
+                protocol.sendData(moved, 0, moved.length);
+
+                assertTrue(server.awaitReliable(1, 2000));
+                assertEquals("BTN_A:1;LJOY:0.000,0.000\n", server.reliable.get(0));
+                assertTrue(protocol.getReliableLane().getRetransmits() > 0);
+                // The edge arrived, but the repeated frame is older than the stick move
+                assertEquals("BTN_A:1;LJOY:0.500,0.000\n", server.current);
+            } finally {
+                protocol.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void lossyLink_deliversEveryButtonEdgeWhileAnalogStaysBestEffort() throws Exception {
+        int edges = 200;
+        try (LossyDatagramServer server = new LossyDatagramServer(0.10, 7)) {
+            ConnectionProtocol.UDPProtocol protocol = new ConnectionProtocol.UDPProtocol();
+            protocol.setReliableEnabled(true);
+            protocol.connect("127.0.0.1", server.getPort());
+            InputSender sender = new InputSender();
+            sender.start();
+            sender.attach(protocol, InputCodec.create("text"));
+
+            try {
+                for (int i = 0; i < edges; i++) {
+                    sender.publishButton(ControllerState.BTN_A, i % 2 == 0);
+                    sender.publishStick(ControllerState.STICK_LEFT, i / (float) edges, 0f);
+                    Thread.sleep(5);
+                }
+                assertTrue("delivered " + server.reliable.size(), server.awaitReliable(edges, 10_000));
+
+                List<String> delivered = server.reliable;
+                for (int i = 0; i < edges; i++) {
+                    assertEquals("BTN_A:" + (i % 2 == 0 ? 1 : 0) + "\n", delivered.get(i));
+                }
+                ReliableLane lane = protocol.getReliableLane();
+                BenchReport.print(String.format(
+                        "10%% loss: %d edges, %d retransmits (%d fast), ack p50=%.2fms p99=%.2fms, rto=%.1fms, "
+                                + "%d duplicates suppressed, %d duplicate acks, analog %d/%d arrived",
+                        edges, lane.getRetransmits(), lane.getFastRetransmits(),
+                        lane.getAckLatency().getPercentileNanos(50) / 1e6,
+                        lane.getAckLatency().getPercentileNanos(99) / 1e6,
+                        lane.getRtoNanos() / 1e6,
+                        server.reliableFilter.getDuplicates(), lane.getDuplicateAcks(),
+                        server.unreliable.size(), edges));
+                assertTrue(lane.getRetransmits() > 0);
+                assertEquals(edges, server.reliableFilter.getDelivered());
+                // Sticks are never retransmitted
+                assertTrue(server.unreliable.size() < edges);
+            } finally {
+                sender.stop();
+                protocol.disconnect();
+            }
+        }
+    }
+}